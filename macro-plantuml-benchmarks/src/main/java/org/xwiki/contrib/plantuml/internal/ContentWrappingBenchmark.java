@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+
+/**
+ * Measures the wrapping of the macro content with the {@code @start}/{@code @end} markers and the title, done for
+ * each macro execution.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentWrappingBenchmark
+{
+    @Param({ "plantuml", "ditaa", "mindmap", "gantt" })
+    private PlantUMLDiagramType type;
+
+    @Param({ "false", "true" })
+    private boolean withMarkers;
+
+    private PlantUMLMacro macro;
+
+    private PlantUMLMacroParameters parameters;
+
+    private String content;
+
+    /**
+     * Prepare the macro and its content.
+     */
+    @Setup
+    public void setUp()
+    {
+        this.macro = new PlantUMLMacro();
+        this.parameters = new PlantUMLMacroParameters();
+        this.parameters.setType(this.type);
+        this.parameters.setTitle("Benchmark diagram");
+        this.content = this.withMarkers ? Diagrams.getWrapped(this.type) : Diagrams.get(this.type);
+    }
+
+    /**
+     * @return the content with the markers
+     */
+    @Benchmark
+    public String addContentMarkers()
+    {
+        return this.macro.maybeAddContentMarkers(this.content, this.parameters);
+    }
+
+    /**
+     * @return the content with the markers and the title
+     */
+    @Benchmark
+    public String addContentMarkersAndTitle()
+    {
+        return this.macro.maybeAddTitle(this.macro.maybeAddContentMarkers(this.content, this.parameters),
+            this.parameters);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+
+/**
+ * Sample diagram contents (without the {@code @start}/{@code @end} markers) used by the benchmarks.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public final class Diagrams
+{
+    private static final Map<PlantUMLDiagramType, String> CONTENTS = new EnumMap<>(PlantUMLDiagramType.class);
+
+    static {
+        // A sequence diagram, which (unlike most UML diagrams) doesn't need GraphViz to be installed.
+        CONTENTS.put(PlantUMLDiagramType.plantuml, "Bob -> Alice : hello\nactivate Alice\n"
+            + "Alice -> Carol : forward\nCarol --> Alice : ok\nAlice --> Bob : ok\ndeactivate Alice\n");
+        CONTENTS.put(PlantUMLDiagramType.ditaa, "+--------+   +-------+\n|  cBLU  +-->+ data  |\n"
+            + "|  text  |   |  {d}  |\n+--------+   +-------+\n");
+        CONTENTS.put(PlantUMLDiagramType.salt, "{\n  Login    | \"MyName   \"\n  Password | \"****     \"\n"
+            + "  [Cancel] | [  OK   ]\n}\n");
+        CONTENTS.put(PlantUMLDiagramType.mindmap, "* Debian\n** Ubuntu\n*** Linux Mint\n*** Kubuntu\n** LMDE\n"
+            + "** SolydXK\n");
+        CONTENTS.put(PlantUMLDiagramType.gantt, "[Prototype design] lasts 15 days\n"
+            + "[Test prototype] lasts 10 days\n[Test prototype] starts at [Prototype design]'s end\n");
+        CONTENTS.put(PlantUMLDiagramType.wbs, "* Business Process Modelling WBS\n** Launch the project\n"
+            + "*** Complete Stakeholder Research\n** Design phase\n*** Model of AsIs Processes Completed\n");
+        CONTENTS.put(PlantUMLDiagramType.json,
+            "{\n  \"name\": \"PlantUML\",\n  \"formats\": [\"png\", \"svg\"]\n}\n");
+        CONTENTS.put(PlantUMLDiagramType.regex, "/([a-z]+)@([a-z]+)\\.com/\n");
+    }
+
+    private Diagrams()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param type the diagram type
+     * @return a sample content for the passed diagram type
+     */
+    public static String get(PlantUMLDiagramType type)
+    {
+        String content = CONTENTS.get(type);
+        if (content == null) {
+            throw new IllegalArgumentException(String.format("No sample diagram for type [%s]", type));
+        }
+        return content;
+    }
+
+    /**
+     * @param type the diagram type
+     * @return a sample content for the passed diagram type, wrapped with the markers added by the macro
+     */
+    public static String getWrapped(PlantUMLDiagramType type)
+    {
+        PlantUMLMacroParameters parameters = new PlantUMLMacroParameters();
+        parameters.setType(type);
+        return new PlantUMLMacro().maybeAddContentMarkers(get(type), parameters);
+    }
+}
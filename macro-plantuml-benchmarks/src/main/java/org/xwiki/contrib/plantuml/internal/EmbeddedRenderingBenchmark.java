@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures the generation of diagrams in embedded mode (i.e. without PlantUML server), for each diagram type and
+ * output format. Not all the types support all the formats: PlantUML generates an error image in this case.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedRenderingBenchmark
+{
+    @Param({ "plantuml", "ditaa", "salt", "mindmap", "gantt", "wbs", "json", "regex" })
+    private PlantUMLDiagramType type;
+
+    @Param({ "png", "svg", "txt" })
+    private PlantUMLDiagramFormat format;
+
+    private DefaultPlantUMLGenerator generator;
+
+    private RenderingExecutor renderingExecutor;
+
+    private String content;
+
+    /**
+     * Prepare the generator.
+     *
+     * @throws Exception when the rendering executor fails to initialize
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        PlantUMLConfiguration configuration = mock(PlantUMLConfiguration.class);
+
+        this.renderingExecutor = new RenderingExecutor();
+        ReflectionUtils.setFieldValue(this.renderingExecutor, "configuration", configuration);
+        this.renderingExecutor.initialize();
+
+        this.generator = new DefaultPlantUMLGenerator();
+        ReflectionUtils.setFieldValue(this.generator, "renderingExecutor", this.renderingExecutor);
+        ReflectionUtils.setFieldValue(this.generator, "configuration", configuration);
+        ReflectionUtils.setFieldValue(this.generator, "metrics", new PlantUMLMetrics());
+
+        this.content = Diagrams.getWrapped(this.type);
+    }
+
+    /**
+     * Stop the rendering threads.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        this.renderingExecutor.dispose();
+    }
+
+    /**
+     * @return the generated diagram
+     * @throws IOException when the generation fails
+     */
+    @Benchmark
+    public byte[] generate() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        this.generator.outputImage(this.content, outputStream, null, this.format);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Measures the minification of the generated SVG diagrams, compared to their compression. The byte savings of each
+ * diagram are printed when the benchmark starts.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SvgMinificationBenchmark
+{
+    @Param({ "plantuml", "salt", "mindmap", "gantt", "wbs", "json" })
+    private PlantUMLDiagramType type;
+
+    private byte[] svg;
+
+    private byte[] minifiedSvg;
+
+    /**
+     * Generate the diagram.
+     *
+     * @throws IOException when the generation fails
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SourceStringReader(Diagrams.getWrapped(this.type)).outputImage(outputStream,
+            new FileFormatOption(FileFormat.SVG));
+        this.svg = outputStream.toByteArray();
+        this.minifiedSvg = SvgMinifier.minify(this.svg);
+
+        int compressedSize = compress(this.svg).length;
+        int minifiedCompressedSize = compress(this.minifiedSvg).length;
+        System.out.printf("%n%s: %d bytes, %d bytes minified (%d%%), %d bytes compressed, %d bytes minified and "
+            + "compressed (%d%%)%n", this.type, this.svg.length, this.minifiedSvg.length,
+            getSavings(this.svg.length, this.minifiedSvg.length), compressedSize, minifiedCompressedSize,
+            getSavings(compressedSize, minifiedCompressedSize));
+    }
+
+    /**
+     * @return the minified diagram
+     * @throws IOException when the minification fails
+     */
+    @Benchmark
+    public byte[] minify() throws IOException
+    {
+        return SvgMinifier.minify(this.svg);
+    }
+
+    /**
+     * @return the compressed diagram, as stored next to the SVG images
+     * @throws IOException when the compression fails
+     */
+    @Benchmark
+    public byte[] compress() throws IOException
+    {
+        return compress(this.svg);
+    }
+
+    /**
+     * @return the minified and compressed diagram
+     * @throws IOException when the minification or the compression fails
+     */
+    @Benchmark
+    public byte[] minifyAndCompress() throws IOException
+    {
+        return compress(SvgMinifier.minify(this.svg));
+    }
+
+    private static byte[] compress(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(data);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static long getSavings(int size, int reducedSize)
+    {
+        return Math.round(100.0 * (size - reducedSize) / size);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures the generation of the first diagram in embedded mode, in a new JVM, with and without warming up PlantUML
+ * beforehand (see {@link DefaultPlantUMLGenerator#warmUp()}). The generation of the next diagrams is measured by
+ * {@link EmbeddedRenderingBenchmark}.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+@State(Scope.Benchmark)
+public class WarmUpBenchmark
+{
+    @Param({ "false", "true" })
+    private boolean warmUp;
+
+    @Param({ "plantuml", "mindmap" })
+    private PlantUMLDiagramType type;
+
+    @Param({ "png", "svg" })
+    private PlantUMLDiagramFormat format;
+
+    private DefaultPlantUMLGenerator generator;
+
+    private RenderingExecutor renderingExecutor;
+
+    private String content;
+
+    /**
+     * Prepare the generator and warm up PlantUML if needed.
+     *
+     * @throws Exception when the rendering executor fails to initialize or the warm up fails
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        PlantUMLConfiguration configuration = mock(PlantUMLConfiguration.class);
+
+        this.renderingExecutor = new RenderingExecutor();
+        ReflectionUtils.setFieldValue(this.renderingExecutor, "configuration", configuration);
+        this.renderingExecutor.initialize();
+
+        this.generator = new DefaultPlantUMLGenerator();
+        ReflectionUtils.setFieldValue(this.generator, "renderingExecutor", this.renderingExecutor);
+        ReflectionUtils.setFieldValue(this.generator, "configuration", configuration);
+        ReflectionUtils.setFieldValue(this.generator, "metrics", new PlantUMLMetrics());
+
+        this.content = Diagrams.getWrapped(this.type);
+
+        if (this.warmUp) {
+            this.generator.warmUp();
+        }
+    }
+
+    /**
+     * Stop the rendering threads.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        this.renderingExecutor.dispose();
+    }
+
+    /**
+     * @return the first generated diagram
+     * @throws IOException when the generation fails
+     */
+    @Benchmark
+    public byte[] generateFirst() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        this.generator.outputImage(this.content, outputStream, null, this.format);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.internal.Diagrams;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures the calls to a PlantUML server, using a local stub server which always returns the same pre-generated
+ * image, so that only the client side (connection handling, copy of the response) is measured. The pooled client
+ * used by the macro (blocking and asynchronous) is compared to a client created for each request, as done before the
+ * connection pooling.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+// Without TCP_NODELAY the stub server answers kept alive connections only after the client delayed ACK (~40ms).
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class RemoteRenderingBenchmark
+{
+    private static final String PATH = "png/benchmark";
+
+    /**
+     * The number of replicas of the stub server.
+     */
+    @Param({ "1", "2" })
+    private int serverCount;
+
+    private HttpServer[] servers;
+
+    private String serverURLs;
+
+    private PlantUMLServerClient serverClient;
+
+    /**
+     * Start the stub servers and prepare the client.
+     *
+     * @throws Exception when the servers or the client fail to start
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        new SourceStringReader(Diagrams.getWrapped(PlantUMLDiagramType.plantuml)).outputImage(image,
+            new FileFormatOption(PlantUMLDiagramFormat.png.getFileFormat()));
+        byte[] response = image.toByteArray();
+
+        this.servers = new HttpServer[this.serverCount];
+        StringBuilder urls = new StringBuilder();
+        for (int i = 0; i < this.serverCount; i++) {
+            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/plantuml", exchange -> {
+                try (InputStream inputStream = exchange.getRequestBody()) {
+                    exchange.getResponseHeaders().set("Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, response.length);
+                    try (OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(response);
+                    }
+                }
+            });
+            server.setExecutor(Executors.newFixedThreadPool(4));
+            server.start();
+            this.servers[i] = server;
+            if (i > 0) {
+                urls.append(',');
+            }
+            urls.append(String.format("http://localhost:%d/plantuml", server.getAddress().getPort()));
+        }
+        this.serverURLs = urls.toString();
+
+        PlantUMLConfiguration configuration = mock(PlantUMLConfiguration.class);
+        ServerLoadBalancer loadBalancer = new ServerLoadBalancer();
+        ReflectionUtils.setFieldValue(loadBalancer, "configuration", configuration);
+        this.serverClient = new PlantUMLServerClient();
+        ReflectionUtils.setFieldValue(this.serverClient, "configuration", configuration);
+        ReflectionUtils.setFieldValue(this.serverClient, "loadBalancer", loadBalancer);
+        ReflectionUtils.setFieldValue(this.serverClient, "metrics", new PlantUMLMetrics());
+        this.serverClient.initialize();
+    }
+
+    /**
+     * Stop the client and the stub servers.
+     *
+     * @throws Exception when the client fails to stop
+     */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.serverClient.dispose();
+        for (HttpServer server : this.servers) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * @return the returned image
+     * @throws IOException when the call fails
+     */
+    @Benchmark
+    public byte[] pooledClient() throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        this.serverClient.get(this.serverURLs, PATH, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return the returned image
+     * @throws Exception when the call fails
+     */
+    @Benchmark
+    public byte[] asyncClient() throws Exception
+    {
+        return this.serverClient.getAsync(this.serverURLs, PATH).get();
+    }
+
+    /**
+     * @return the returned image
+     * @throws IOException when the call fails
+     */
+    @Benchmark
+    public byte[] clientPerRequest() throws IOException
+    {
+        String serverURL = this.serverURLs.split(",")[0];
+        try (CloseableHttpClient httpClient = HttpClients.createDefault();
+            CloseableHttpResponse response = httpClient.execute(new HttpGet(serverURL + '/' + PATH))) {
+            return EntityUtils.toByteArray(response.getEntity());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramCache;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the storage of the generated images: writing a new image, checking that an image already exists and
+ * copying an image from the persistent diagram cache.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageStorageBenchmark
+{
+    private static final String IMAGE_ID = "benchmark.png";
+
+    /**
+     * The size (in bytes) of the stored image.
+     */
+    @Param({ "10240", "1048576" })
+    private int imageSize;
+
+    private Path directory;
+
+    private byte[] image;
+
+    private TemporaryImageWriter imageWriter;
+
+    private DiagramCache diagramCache;
+
+    private DiagramKey key;
+
+    /**
+     * Prepare the image writer and the diagram cache.
+     *
+     * @throws Exception when the storage cannot be prepared
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.directory = Files.createTempDirectory("plantuml-benchmark");
+        this.image = new byte[this.imageSize];
+        new Random(0).nextBytes(this.image);
+
+        PlantUMLConfiguration configuration = mock(PlantUMLConfiguration.class);
+
+        DocumentAccessBridge documentAccessBridge = mock(DocumentAccessBridge.class);
+        when(documentAccessBridge.getCurrentDocumentReference())
+            .thenReturn(new DocumentReference("wiki", "space", "page"));
+        TemporaryResourceStore temporaryResourceStore = mock(TemporaryResourceStore.class);
+        File imageFile = this.directory.resolve("tmp").resolve(IMAGE_ID).toFile();
+        when(temporaryResourceStore.getTemporaryFile(any())).thenReturn(imageFile);
+        this.imageWriter = new TemporaryImageWriter();
+        ReflectionUtils.setFieldValue(this.imageWriter, "documentAccessBridge", documentAccessBridge);
+        ReflectionUtils.setFieldValue(this.imageWriter, "temporaryResourceStore", temporaryResourceStore);
+        ReflectionUtils.setFieldValue(this.imageWriter, "configuration", configuration);
+        this.imageWriter.write(IMAGE_ID, outputStream -> outputStream.write(this.image));
+
+        Environment environment = mock(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.directory.resolve("permanent").toFile());
+        this.diagramCache = new DiagramCache();
+        ReflectionUtils.setFieldValue(this.diagramCache, "environment", environment);
+        ReflectionUtils.setFieldValue(this.diagramCache, "configuration", configuration);
+        this.diagramCache.initialize();
+        this.key = new DiagramKey("benchmark", null, PlantUMLDiagramFormat.png);
+        this.diagramCache.put(this.key, this.image);
+    }
+
+    /**
+     * Remove the stored files.
+     *
+     * @throws IOException when the files cannot be removed
+     */
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Write a generated image held in memory.
+     *
+     * @throws Exception when the image cannot be written
+     */
+    @Benchmark
+    public void writeImage() throws Exception
+    {
+        this.imageWriter.write(IMAGE_ID, outputStream -> outputStream.write(this.image));
+    }
+
+    /**
+     * Write an image found in the persistent diagram cache.
+     *
+     * @throws Exception when the image cannot be written
+     */
+    @Benchmark
+    public void copyCachedImage() throws Exception
+    {
+        this.imageWriter.write(IMAGE_ID, outputStream -> this.diagramCache.copyTo(this.key, outputStream));
+    }
+
+    /**
+     * @return {@code true} since the image has been written during the setup
+     * @throws MacroExecutionException when the image location cannot be computed
+     */
+    @Benchmark
+    public boolean existingImage() throws MacroExecutionException
+    {
+        return this.imageWriter.exists(IMAGE_ID);
+    }
+}
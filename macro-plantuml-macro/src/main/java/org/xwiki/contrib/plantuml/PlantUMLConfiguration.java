@@ -32,7 +32,7 @@ public interface PlantUMLConfiguration
 {
     /**
      * @return the (optional) PlantUML server URL (e.g. {@code https://www.plantuml.com/plantuml})
-     * or null if not defined
+     * or null if not defined. Several replicas of the server can be listed, separated by commas
      */
     String getPlantUMLServerURL();
 
@@ -45,4 +45,358 @@ public interface PlantUMLConfiguration
         // Fallback for backward compatibility
         return PlantUMLDiagramFormat.png;
     }
+
+    /**
+     * @return the maximum number of pooled HTTP connections kept open to all the PlantUML servers
+     * @since 2.5
+     */
+    default int getServerMaxConnections()
+    {
+        return 20;
+    }
+
+    /**
+     * @return the maximum number of pooled HTTP connections kept open to a single PlantUML server
+     * @since 2.5
+     */
+    default int getServerMaxConnectionsPerRoute()
+    {
+        return 10;
+    }
+
+    /**
+     * @return the maximum time (in seconds) during which an HTTP connection to a PlantUML server is kept alive
+     *         between two requests, when the server doesn't specify it
+     * @since 2.5
+     */
+    default long getServerKeepAlive()
+    {
+        return 60;
+    }
+
+    /**
+     * @return the time (in seconds) after which an idle pooled HTTP connection to a PlantUML server is closed
+     * @since 2.5
+     */
+    default long getServerIdleTimeout()
+    {
+        return 30;
+    }
+
+    /**
+     * @return the maximum size (in megabytes) of the persistent cache of generated diagrams
+     * @since 2.5
+     */
+    default long getCacheMaxSize()
+    {
+        return 100;
+    }
+
+    /**
+     * @return the maximum size (in megabytes) of the in-memory cache of diagrams generated as text (SVG, ASCII art)
+     * @since 2.5
+     */
+    default long getMemoryCacheMaxSize()
+    {
+        return 10;
+    }
+
+    /**
+     * @return the time (in seconds) during which a diagram generated as text is kept in the in-memory cache
+     * @since 2.5
+     */
+    default long getMemoryCacheTimeToLive()
+    {
+        return 3600;
+    }
+
+    /**
+     * @return {@code true} if the layouts computed by GraphViz in embedded mode should be kept in memory, so that the
+     *         diagrams with the same structure (e.g. the same diagram with another title or output format) don't start
+     *         a GraphViz process
+     * @since 2.5
+     */
+    default boolean isLayoutCacheEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @return the maximum size (in megabytes) of the in-memory cache of the layouts computed by GraphViz
+     * @since 2.5
+     */
+    default long getLayoutCacheMaxSize()
+    {
+        return 10;
+    }
+
+    /**
+     * @return the maximum number of diagrams generated at the same time in embedded mode, or 0 to use the number of
+     *         available processors
+     * @since 2.5
+     */
+    default int getRenderingMaxParallelism()
+    {
+        return 0;
+    }
+
+    /**
+     * @return the maximum number of diagrams waiting to be generated in embedded mode
+     * @since 2.5
+     */
+    default int getRenderingQueueSize()
+    {
+        return 100;
+    }
+
+    /**
+     * @return what to do when the embedded generation queue is full: {@code placeholder} to display a placeholder
+     *         instead of the diagram, or {@code wait} to wait for a free place in the queue
+     * @since 2.5
+     */
+    default String getRenderingRejectionPolicy()
+    {
+        return "placeholder";
+    }
+
+    /**
+     * @return {@code true} if a few diagrams should be generated in embedded mode, in the background, when the macro is
+     *         loaded, so that the first diagrams displayed don't have to wait for PlantUML to be initialized
+     * @since 2.5
+     */
+    default boolean isRenderingWarmUpEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @return the maximum time (in seconds) to wait for the connection to a PlantUML server
+     * @since 2.5
+     */
+    default int getServerConnectTimeout()
+    {
+        return 10;
+    }
+
+    /**
+     * @return the maximum time (in seconds) to wait for data from a PlantUML server
+     * @since 2.5
+     */
+    default int getServerResponseTimeout()
+    {
+        return 30;
+    }
+
+    /**
+     * @return the maximum total time (in seconds) of a call to a PlantUML server
+     * @since 2.5
+     */
+    default int getServerRequestTimeout()
+    {
+        return 60;
+    }
+
+    /**
+     * @return the number of consecutive failures after which a PlantUML server is not called anymore for some time
+     * @since 2.5
+     */
+    default int getServerFailureThreshold()
+    {
+        return 5;
+    }
+
+    /**
+     * @return the time (in seconds) during which a PlantUML server which failed too many times is not called
+     * @since 2.5
+     */
+    default long getServerCooldown()
+    {
+        return 30;
+    }
+
+    /**
+     * @return {@code true} if the diagrams should be generated in embedded mode when the PlantUML server is not
+     *         called because it failed too many times, {@code false} to display an error instead
+     * @since 2.5
+     */
+    default boolean isServerFallbackEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return the strategy used to distribute the calls between several replicas of the PlantUML server, either
+     *         {@code roundRobin} or {@code leastRequests}
+     * @since 2.5
+     */
+    default String getServerLoadBalancing()
+    {
+        return "roundRobin";
+    }
+
+    /**
+     * @return the maximum size (in megabytes) of the generated images stored in the temporary directory
+     * @since 2.5
+     */
+    default long getImageStorageMaxSize()
+    {
+        return 500;
+    }
+
+    /**
+     * @return the time (in seconds) after which a generated image which hasn't been used is removed from the
+     *         temporary directory
+     * @since 2.5
+     */
+    default long getImageStorageMaxAge()
+    {
+        return 604800;
+    }
+
+    /**
+     * @return the time (in seconds) between two cleanups of the generated images stored in the temporary directory
+     * @since 2.5
+     */
+    default long getImageStorageCleanupInterval()
+    {
+        return 3600;
+    }
+
+    /**
+     * @return the time (in seconds) during which the browsers and proxies can cache the generated images, which never
+     *         change since their URL is computed from their content
+     * @since 2.5
+     */
+    default long getImageStorageCacheMaxAge()
+    {
+        return 31536000;
+    }
+
+    /**
+     * @return {@code true} if a compressed copy of the generated SVG images should be stored and sent to the browsers
+     *         supporting it
+     * @since 2.5
+     */
+    default boolean isImageStorageCompressionEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the SVG diagrams should be stored and loaded as images, which can be cached by the
+     *         browsers, instead of being inlined in the page
+     * @since 2.5
+     */
+    default boolean isExternalSvgEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the generated SVG diagrams should be minified (comments, metadata, indentation and
+     *         useless decimals removed) before being cached and displayed
+     * @since 2.5
+     */
+    default boolean isSvgMinificationEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the generated PNG diagrams should be encoded again (with a palette when they have few
+     *         colors) to make them smaller, before being cached and stored
+     * @since 2.5
+     */
+    default boolean isPngOptimizationEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return the compression level (from 0 for no compression to 9 for the best compression) used to encode again
+     *         the PNG diagrams
+     * @since 2.5
+     */
+    default int getPngCompressionLevel()
+    {
+        return 9;
+    }
+
+    /**
+     * @return {@code true} if a PNG diagram twice as big should also be generated, to be displayed instead by the
+     *         browsers of high resolution screens
+     * @since 2.5
+     */
+    default boolean isPngHighResolutionEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the diagrams should be loaded by the browser only when they are about to be displayed,
+     *         in which case the SVG diagrams are not inlined in the page anymore but loaded as images
+     * @since 2.5
+     */
+    default boolean isLazyLoadingEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return {@code true} if all the diagrams of a page should start being generated concurrently as soon as the first
+     *         of them is rendered, {@code false} to generate them one after the other
+     * @since 2.5
+     */
+    default boolean isBatchRenderingEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @return the maximum number of diagrams of a page being generated at the same time when the batch rendering is
+     *         enabled
+     * @since 2.5
+     */
+    default int getBatchRenderingMaxParallelism()
+    {
+        return 10;
+    }
+
+    /**
+     * @return {@code true} if the diagrams of a document should be generated in the background when the document is
+     *         saved, so that they are ready when the document is displayed
+     * @since 2.5
+     */
+    default boolean isPrerenderOnSaveEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the diagrams of all the documents should be generated in the background when the wiki
+     *         is started
+     * @since 2.5
+     */
+    default boolean isPrerenderOnStartupEnabled()
+    {
+        return false;
+    }
+
+    /**
+     * @return the maximum number of diagrams of a document being generated at the same time in the background
+     * @since 2.5
+     */
+    default int getPrerenderMaxParallelism()
+    {
+        return 2;
+    }
+
+    /**
+     * @return the time (in milliseconds) to wait between the background generation of the diagrams of two documents
+     * @since 2.5
+     */
+    default long getPrerenderDelay()
+    {
+        return 500;
+    }
 }
@@ -19,8 +19,10 @@
  */
 package org.xwiki.contrib.plantuml;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.xwiki.component.annotation.Role;
 
@@ -70,4 +72,28 @@ public interface PlantUMLGenerator
         // Default method implementation is for backward compatibility.
         throw new IOException("Not implemented");
     }
+
+    /**
+     * Generate the image asynchronously, using PlantUML. When a PlantUML server is used, no thread is blocked while
+     * waiting for the server, which allows generating many diagrams at the same time.
+     *
+     * @param input the textual definition input
+     * @param serverURL the optional plantUML server URL (see
+     *        {@link #outputImage(String, OutputStream, String, PlantUMLDiagramFormat)})
+     * @param format the diagram output format (see {@link PlantUMLDiagramFormat})
+     * @return the future generated image, failed with an {@link IOException} when there's a generation error
+     * @since 2.5
+     */
+    default CompletableFuture<byte[]> outputImageAsync(String input, String serverURL, PlantUMLDiagramFormat format)
+    {
+        // Default method implementation is for backward compatibility: generate the image synchronously.
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try (ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+            outputImage(input, output, serverURL, format);
+            future.complete(output.toByteArray());
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 }
@@ -43,7 +43,8 @@ public class PlantUMLMacroParameters
     /**
      * @param serverURL see {@link #getServer()}
      */
-    @PropertyDescription("the PlantUML Server URL")
+    @PropertyDescription(
+        "the PlantUML Server URL (several replicas of the server can be listed, separated by commas)")
     public void setServer(String serverURL)
     {
         this.serverURL = serverURL;
@@ -126,6 +127,8 @@ public class PlantUMLMacroParameters
         return new EqualsBuilder()
             .append(getServer(), rhs.getServer())
             .append(getFormat(), rhs.getFormat())
+            .append(getType(), rhs.getType())
+            .append(getTitle(), rhs.getTitle())
             .isEquals();
     }
 
@@ -135,6 +138,8 @@ public class PlantUMLMacroParameters
         return new HashCodeBuilder(5, 37)
             .append(getServer())
             .append(getFormat())
+            .append(getType())
+            .append(getTitle())
             .toHashCode();
     }
 }
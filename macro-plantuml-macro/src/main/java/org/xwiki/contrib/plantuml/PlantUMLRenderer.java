@@ -19,6 +19,8 @@
  */
 package org.xwiki.contrib.plantuml;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.xwiki.component.annotation.Role;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.macro.MacroExecutionException;
@@ -46,4 +48,22 @@ public interface PlantUMLRenderer
      */
     Block renderDiagram(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
         throws MacroExecutionException;
+
+    /**
+     * Start generating the diagram without waiting for it, so that a following
+     * {@link #renderDiagram(String, String, PlantUMLDiagramFormat)} call for the same diagram doesn't have to generate
+     * it again.
+     *
+     * @param content diagram as a code (see {@link PlantUMLGenerator#outputImage})
+     * @param serverURL optional generator URL  (see {@link PlantUMLGenerator#outputImage})
+     * @param diagramFormat diagram output format (see {@link PlantUMLDiagramFormat})
+     * @return the future completed when the diagram is generated
+     * @since 2.5
+     */
+    default CompletableFuture<Void> prepareDiagram(String content, String serverURL,
+        PlantUMLDiagramFormat diagramFormat)
+    {
+        // Default method implementation is for backward compatibility: the diagram is generated when rendered.
+        return CompletableFuture.completedFuture(null);
+    }
 }
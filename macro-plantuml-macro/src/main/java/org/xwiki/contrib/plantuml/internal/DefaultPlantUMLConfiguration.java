@@ -19,14 +19,21 @@
  */
 package org.xwiki.contrib.plantuml.internal;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
 import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.internal.server.ServerLoadBalancer;
 
 /**
  * Implementation of the PlantUML configuration.
@@ -38,6 +45,34 @@ import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
 @Singleton
 public class DefaultPlantUMLConfiguration implements PlantUMLConfiguration
 {
+    private static final String PREFIX = "plantuml.";
+
+    private static final String SERVER_PREFIX = "plantuml.server.";
+
+    private static final String CACHE_PREFIX = "plantuml.cache.";
+
+    private static final String MEMORY_CACHE_PREFIX = "plantuml.memoryCache.";
+
+    private static final String RENDERING_PREFIX = "plantuml.rendering.";
+
+    private static final String IMAGE_STORAGE_PREFIX = "plantuml.imageStorage.";
+
+    private static final String BATCH_RENDERING_PREFIX = "plantuml.batchRendering.";
+
+    private static final String PRERENDER_PREFIX = "plantuml.prerender.";
+
+    private static final String SVG_PREFIX = "plantuml.svg.";
+
+    private static final String PNG_PREFIX = "plantuml.png.";
+
+    private static final String LAYOUT_CACHE_PREFIX = "plantuml.layoutCache.";
+
+    private static final String MAX_SIZE = "maxSize";
+
+    private static final String MAX_PARALLELISM = "maxParallelism";
+
+    private static final int MAX_PNG_COMPRESSION_LEVEL = 9;
+
     @Inject
     @Named("plantuml")
     private ConfigurationSource plantUMLConfigurationSource;
@@ -46,6 +81,14 @@ public class DefaultPlantUMLConfiguration implements PlantUMLConfiguration
     @Named("xwikiproperties")
     private ConfigurationSource xwikiPropertiesConfigurationSource;
 
+    @Inject
+    private Logger logger;
+
+    /**
+     * The invalid values already reported, to avoid logging a warning each time the configuration is read.
+     */
+    private final Set<String> reportedInvalidValues = ConcurrentHashMap.newKeySet();
+
     @Override
     public String getPlantUMLServerURL()
     {
@@ -64,4 +107,299 @@ public class DefaultPlantUMLConfiguration implements PlantUMLConfiguration
         String format = this.xwikiPropertiesConfigurationSource.getProperty("plantuml.format", "png");
         return PlantUMLDiagramFormat.fromString(format);
     }
+
+    @Override
+    public int getServerMaxConnections()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "maxConnections",
+            PlantUMLConfiguration.super.getServerMaxConnections());
+    }
+
+    @Override
+    public int getServerMaxConnectionsPerRoute()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "maxConnectionsPerRoute",
+            PlantUMLConfiguration.super.getServerMaxConnectionsPerRoute());
+    }
+
+    @Override
+    public long getServerKeepAlive()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "keepAlive", PlantUMLConfiguration.super.getServerKeepAlive());
+    }
+
+    @Override
+    public long getServerIdleTimeout()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "idleTimeout", PlantUMLConfiguration.super.getServerIdleTimeout());
+    }
+
+    @Override
+    public long getCacheMaxSize()
+    {
+        return getPositiveProperty(CACHE_PREFIX + MAX_SIZE, PlantUMLConfiguration.super.getCacheMaxSize());
+    }
+
+    @Override
+    public long getMemoryCacheMaxSize()
+    {
+        return getPositiveProperty(MEMORY_CACHE_PREFIX + MAX_SIZE, PlantUMLConfiguration.super.getMemoryCacheMaxSize());
+    }
+
+    @Override
+    public long getMemoryCacheTimeToLive()
+    {
+        return getPositiveProperty(MEMORY_CACHE_PREFIX + "timeToLive",
+            PlantUMLConfiguration.super.getMemoryCacheTimeToLive());
+    }
+
+    @Override
+    public boolean isLayoutCacheEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(LAYOUT_CACHE_PREFIX + "enabled",
+            PlantUMLConfiguration.super.isLayoutCacheEnabled());
+    }
+
+    @Override
+    public long getLayoutCacheMaxSize()
+    {
+        return getPositiveProperty(LAYOUT_CACHE_PREFIX + MAX_SIZE, PlantUMLConfiguration.super.getLayoutCacheMaxSize());
+    }
+
+    @Override
+    public int getRenderingMaxParallelism()
+    {
+        return getNotNegativeProperty(RENDERING_PREFIX + MAX_PARALLELISM,
+            PlantUMLConfiguration.super.getRenderingMaxParallelism());
+    }
+
+    @Override
+    public int getRenderingQueueSize()
+    {
+        return getNotNegativeProperty(RENDERING_PREFIX + "queueSize",
+            PlantUMLConfiguration.super.getRenderingQueueSize());
+    }
+
+    @Override
+    public String getRenderingRejectionPolicy()
+    {
+        return getProperty(RENDERING_PREFIX + "rejectionPolicy",
+            PlantUMLConfiguration.super.getRenderingRejectionPolicy(),
+            oneOf(RenderingExecutor.POLICY_PLACEHOLDER, RenderingExecutor.POLICY_WAIT));
+    }
+
+    @Override
+    public boolean isRenderingWarmUpEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(RENDERING_PREFIX + "warmUp",
+            PlantUMLConfiguration.super.isRenderingWarmUpEnabled());
+    }
+
+    @Override
+    public int getServerConnectTimeout()
+    {
+        return getServerTimeout("connectTimeout", PlantUMLConfiguration.super.getServerConnectTimeout());
+    }
+
+    @Override
+    public int getServerResponseTimeout()
+    {
+        return getServerTimeout("responseTimeout", PlantUMLConfiguration.super.getServerResponseTimeout());
+    }
+
+    @Override
+    public int getServerRequestTimeout()
+    {
+        return getServerTimeout("requestTimeout", PlantUMLConfiguration.super.getServerRequestTimeout());
+    }
+
+    @Override
+    public int getServerFailureThreshold()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "failureThreshold",
+            PlantUMLConfiguration.super.getServerFailureThreshold());
+    }
+
+    @Override
+    public long getServerCooldown()
+    {
+        return getPositiveProperty(SERVER_PREFIX + "cooldown", PlantUMLConfiguration.super.getServerCooldown());
+    }
+
+    @Override
+    public boolean isServerFallbackEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(SERVER_PREFIX + "fallback",
+            PlantUMLConfiguration.super.isServerFallbackEnabled());
+    }
+
+    @Override
+    public String getServerLoadBalancing()
+    {
+        return getProperty(SERVER_PREFIX + "loadBalancing", PlantUMLConfiguration.super.getServerLoadBalancing(),
+            oneOf(ServerLoadBalancer.ROUND_ROBIN, ServerLoadBalancer.LEAST_REQUESTS));
+    }
+
+    @Override
+    public long getImageStorageMaxSize()
+    {
+        return getPositiveProperty(IMAGE_STORAGE_PREFIX + MAX_SIZE,
+            PlantUMLConfiguration.super.getImageStorageMaxSize());
+    }
+
+    @Override
+    public long getImageStorageMaxAge()
+    {
+        return getPositiveProperty(IMAGE_STORAGE_PREFIX + "maxAge",
+            PlantUMLConfiguration.super.getImageStorageMaxAge());
+    }
+
+    @Override
+    public long getImageStorageCleanupInterval()
+    {
+        return getPositiveProperty(IMAGE_STORAGE_PREFIX + "cleanupInterval",
+            PlantUMLConfiguration.super.getImageStorageCleanupInterval());
+    }
+
+    @Override
+    public long getImageStorageCacheMaxAge()
+    {
+        return getNotNegativeProperty(IMAGE_STORAGE_PREFIX + "cacheMaxAge",
+            PlantUMLConfiguration.super.getImageStorageCacheMaxAge());
+    }
+
+    @Override
+    public boolean isImageStorageCompressionEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(IMAGE_STORAGE_PREFIX + "compression",
+            PlantUMLConfiguration.super.isImageStorageCompressionEnabled());
+    }
+
+    @Override
+    public boolean isExternalSvgEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(SVG_PREFIX + "external",
+            PlantUMLConfiguration.super.isExternalSvgEnabled());
+    }
+
+    @Override
+    public boolean isSvgMinificationEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(SVG_PREFIX + "minification",
+            PlantUMLConfiguration.super.isSvgMinificationEnabled());
+    }
+
+    @Override
+    public boolean isPngOptimizationEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(PNG_PREFIX + "optimization",
+            PlantUMLConfiguration.super.isPngOptimizationEnabled());
+    }
+
+    @Override
+    public int getPngCompressionLevel()
+    {
+        return getProperty(PNG_PREFIX + "compressionLevel", PlantUMLConfiguration.super.getPngCompressionLevel(),
+            level -> level >= 0 && level <= MAX_PNG_COMPRESSION_LEVEL);
+    }
+
+    @Override
+    public boolean isPngHighResolutionEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(PNG_PREFIX + "highResolution",
+            PlantUMLConfiguration.super.isPngHighResolutionEnabled());
+    }
+
+    @Override
+    public boolean isLazyLoadingEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(PREFIX + "lazyLoading",
+            PlantUMLConfiguration.super.isLazyLoadingEnabled());
+    }
+
+    @Override
+    public boolean isBatchRenderingEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(BATCH_RENDERING_PREFIX + "enabled",
+            PlantUMLConfiguration.super.isBatchRenderingEnabled());
+    }
+
+    @Override
+    public int getBatchRenderingMaxParallelism()
+    {
+        return getPositiveProperty(BATCH_RENDERING_PREFIX + MAX_PARALLELISM,
+            PlantUMLConfiguration.super.getBatchRenderingMaxParallelism());
+    }
+
+    @Override
+    public boolean isPrerenderOnSaveEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(PRERENDER_PREFIX + "onSave",
+            PlantUMLConfiguration.super.isPrerenderOnSaveEnabled());
+    }
+
+    @Override
+    public boolean isPrerenderOnStartupEnabled()
+    {
+        return this.xwikiPropertiesConfigurationSource.getProperty(PRERENDER_PREFIX + "onStartup",
+            PlantUMLConfiguration.super.isPrerenderOnStartupEnabled());
+    }
+
+    @Override
+    public int getPrerenderMaxParallelism()
+    {
+        return getPositiveProperty(PRERENDER_PREFIX + MAX_PARALLELISM,
+            PlantUMLConfiguration.super.getPrerenderMaxParallelism());
+    }
+
+    @Override
+    public long getPrerenderDelay()
+    {
+        return getNotNegativeProperty(PRERENDER_PREFIX + "delay", PlantUMLConfiguration.super.getPrerenderDelay());
+    }
+
+    private int getServerTimeout(String name, int defaultValue)
+    {
+        Integer timeout = this.plantUMLConfigurationSource.getProperty(name, Integer.class);
+        // The returned value can be null if no xobject has been defined on the wiki config page or if the timeout is
+        // not set.
+        if (timeout == null) {
+            // Fallback to xwiki.properties
+            return getPositiveProperty(SERVER_PREFIX + name, defaultValue);
+        }
+        return validate(name, timeout, defaultValue, value -> value > 0);
+    }
+
+    private <T> T getProperty(String key, T defaultValue, Predicate<T> validator)
+    {
+        return validate(key, this.xwikiPropertiesConfigurationSource.getProperty(key, defaultValue), defaultValue,
+            validator);
+    }
+
+    private <T> T validate(String key, T value, T defaultValue, Predicate<T> validator)
+    {
+        if (value != null && validator.test(value)) {
+            return value;
+        }
+        if (this.reportedInvalidValues.add(key + '=' + value)) {
+            this.logger.warn("Invalid value [{}] for the PlantUML configuration property [{}]. Using [{}] instead.",
+                value, key, defaultValue);
+        }
+        return defaultValue;
+    }
+
+    private <T extends Number> T getPositiveProperty(String key, T defaultValue)
+    {
+        return getProperty(key, defaultValue, value -> value.longValue() > 0);
+    }
+
+    private <T extends Number> T getNotNegativeProperty(String key, T defaultValue)
+    {
+        return getProperty(key, defaultValue, value -> value.longValue() >= 0);
+    }
+
+    private static Predicate<String> oneOf(String... values)
+    {
+        return Arrays.asList(values)::contains;
+    }
 }
@@ -19,23 +19,31 @@
  */
 package org.xwiki.contrib.plantuml.internal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.HttpEntity;
-import org.apache.hc.core5.http.HttpStatus;
-import org.apache.poi.util.IOUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
 import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
 import org.xwiki.contrib.plantuml.PlantUMLGenerator;
+import org.xwiki.contrib.plantuml.internal.cache.CachingGraphvizFactory;
+import org.xwiki.contrib.plantuml.internal.cache.GraphvizLayoutCache;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+import org.xwiki.contrib.plantuml.internal.server.PlantUMLServerClient;
+import org.xwiki.contrib.plantuml.internal.server.ServerUnavailableException;
 
 import net.sourceforge.plantuml.SourceStringReader;
 import net.sourceforge.plantuml.code.TranscoderUtil;
@@ -50,55 +58,163 @@ import net.sourceforge.plantuml.FileFormatOption;
  */
 @Component
 @Singleton
-public class DefaultPlantUMLGenerator implements PlantUMLGenerator
+public class DefaultPlantUMLGenerator implements PlantUMLGenerator, Initializable, Disposable
 {
+    /**
+     * A small diagram going through the preprocessor, generated to initialize PlantUML.
+     */
+    private static final String WARM_UP_DIAGRAM = "@startuml\n!$target = \"Alice\"\nBob -> $target : hello\n@enduml\n";
+
+    @Inject
+    private PlantUMLServerClient serverClient;
+
+    @Inject
+    private RenderingExecutor renderingExecutor;
+
+    @Inject
+    private GraphvizLayoutCache layoutCache;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private PlantUMLMetrics metrics;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        if (this.configuration.isLayoutCacheEnabled()) {
+            // PlantUML instantiates the GraphViz factories itself so we pass them the cache before generating diagrams.
+            CachingGraphvizFactory.setLayoutCache(this.layoutCache);
+        }
+
+        if (this.configuration.isRenderingWarmUpEnabled()) {
+            // Don't delay the startup: the diagrams displayed in the meantime are generated concurrently.
+            this.renderingExecutor.submit(() -> {
+                warmUp();
+                return null;
+            }).whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    this.logger.debug("Failed to warm up PlantUML. Root cause: [{}]",
+                        ExceptionUtils.getRootCauseMessage(throwable));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        CachingGraphvizFactory.removeLayoutCache(this.layoutCache);
+    }
+
+    /**
+     * The first generation of a diagram is much slower than the next ones since it loads the PlantUML classes, fonts,
+     * skin parameters and preprocessor, which are then kept by PlantUML. The first generation in each output format
+     * also initializes the corresponding graphic classes.
+     *
+     * @throws IOException when the generation fails
+     */
+    void warmUp() throws IOException
+    {
+        for (FileFormat fileFormat : Arrays.asList(FileFormat.PNG, FileFormat.SVG)) {
+            new SourceStringReader(WARM_UP_DIAGRAM).outputImage(new ByteArrayOutputStream(),
+                new FileFormatOption(fileFormat));
+        }
+    }
+
     @Override
     public void outputImage(String input, OutputStream outputStream, String serverURL, PlantUMLDiagramFormat format)
             throws IOException
     {
+        long startTime = System.nanoTime();
         if (StringUtils.isEmpty(serverURL)) {
             internalGenerator(input, outputStream, format.getFileFormat());
+            this.metrics.generated(startTime, format.name(), PlantUMLMetrics.BACKEND_EMBEDDED);
         } else {
-            externalGenerator(input, outputStream, serverURL, format.getPathParameter());
+            try {
+                externalGenerator(input, outputStream, serverURL, format.getPathParameter());
+                this.metrics.generated(startTime, format.name(), PlantUMLMetrics.BACKEND_SERVER);
+            } catch (ServerUnavailableException e) {
+                // Nothing has been written yet since the server hasn't been called.
+                if (this.configuration.isServerFallbackEnabled()) {
+                    internalGenerator(input, outputStream, format.getFileFormat());
+                    this.metrics.generated(startTime, format.name(), PlantUMLMetrics.BACKEND_EMBEDDED);
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> outputImageAsync(String input, String serverURL, PlantUMLDiagramFormat format)
+    {
+        long startTime = System.nanoTime();
+        if (StringUtils.isEmpty(serverURL)) {
+            return internalGeneratorAsync(input, format, startTime);
+        }
+
+        String path;
+        try {
+            path = getPath(input, format.getPathParameter());
+        } catch (IOException e) {
+            CompletableFuture<byte[]> failure = new CompletableFuture<>();
+            failure.completeExceptionally(e);
+            return failure;
         }
+
+        return this.serverClient.getAsync(serverURL, path)
+            .handle((data, throwable) -> {
+                if (throwable == null) {
+                    this.metrics.generated(startTime, format.name(), PlantUMLMetrics.BACKEND_SERVER);
+                    return CompletableFuture.completedFuture(data);
+                }
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                if (cause instanceof ServerUnavailableException && this.configuration.isServerFallbackEnabled()) {
+                    return internalGeneratorAsync(input, format, startTime);
+                }
+                CompletableFuture<byte[]> failure = new CompletableFuture<>();
+                failure.completeExceptionally(cause);
+                return failure;
+            }).thenCompose(future -> future);
     }
 
     private void internalGenerator(String input, OutputStream outputStream, FileFormat fileFormat) throws IOException
     {
-        new SourceStringReader(input).outputImage(outputStream, new FileFormatOption(fileFormat));
+        // Limit the number of diagrams generated at the same time since each of them can start a GraphViz process.
+        this.renderingExecutor.execute(
+            () -> new SourceStringReader(input).outputImage(outputStream, new FileFormatOption(fileFormat)));
+    }
+
+    private CompletableFuture<byte[]> internalGeneratorAsync(String input, PlantUMLDiagramFormat format,
+        long startTime)
+    {
+        return this.renderingExecutor.submit(() -> {
+            try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+                new SourceStringReader(input).outputImage(outputStream,
+                    new FileFormatOption(format.getFileFormat()));
+                this.metrics.generated(startTime, format.name(), PlantUMLMetrics.BACKEND_EMBEDDED);
+                return outputStream.toByteArray();
+            }
+        });
     }
 
     private void externalGenerator(String input, OutputStream outputStream, String serverURL, String outputFormat)
             throws IOException
     {
-        // Call the remote server, by passing the input text compressed and encoded, see
-        // https://plantuml.com/text-encoding
-        String baseURL = StringUtils.removeEnd(serverURL, "/");
-        String compressedInput = TranscoderUtil.getDefaultTranscoder().encode(input);
-        String fullURL = String.format("%s/%s/%s", baseURL, outputFormat, compressedInput);
-        // Call the server and get the response
-        try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-            HttpGet httpGet = new HttpGet(fullURL);
-            try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-                handleResponse(response, outputStream, fullURL);
-            }
-        }
+        // Call the server (or one of its replicas) and get the response, reusing a pooled connection when possible
+        this.serverClient.get(serverURL, getPath(input, outputFormat), outputStream);
     }
 
-    private void handleResponse(CloseableHttpResponse response, OutputStream outputStream, String fullURL)
-        throws IOException
+    private String getPath(String input, String outputFormat) throws IOException
     {
-        int status = response.getCode();
-        if (status >= HttpStatus.SC_SUCCESS && status < HttpStatus.SC_REDIRECTION) {
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                try (InputStream inputStream = entity.getContent()) {
-                    IOUtils.copy(inputStream, outputStream);
-                }
-            }
-        } else {
-            throw new IOException(String.format("Unexpected response status for [%s] : [%s]", fullURL,
-                status));
-        }
+        // Call the remote server, by passing the input text compressed and encoded, see
+        // https://plantuml.com/text-encoding
+        String compressedInput = TranscoderUtil.getDefaultTranscoder().encode(input);
+        return String.format("%s/%s", outputFormat, compressedInput);
     }
 }
@@ -19,10 +19,14 @@
  */
 package org.xwiki.contrib.plantuml.internal;
 
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
 import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
-import org.xwiki.contrib.plantuml.PlantUMLGenerator;
 import org.xwiki.contrib.plantuml.PlantUMLRenderer;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.cache.RenderedTextCache;
 import org.xwiki.contrib.plantuml.internal.store.ImageWriter;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.ImageBlock;
@@ -35,12 +39,13 @@ import org.xwiki.rendering.syntax.Syntax;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Render PlantUML diagram as a wiki {@link org.xwiki.rendering.block.Block}.
@@ -53,26 +58,50 @@ import java.util.Map;
 public class DefaultPlantUMLRenderer implements PlantUMLRenderer
 {
     @Inject
-    private PlantUMLGenerator plantUMLGenerator;
+    private DiagramGenerator diagramGenerator;
 
     @Inject
-    @Named("tmp")
+    @Named("shared")
     private ImageWriter imageWriter;
 
+    @Inject
+    private RenderedTextCache textCache;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The scale of the image generated for high resolution screens.
+     */
+    private static final int HIGH_RESOLUTION_SCALE = 2;
+
+    private static final String HIGH_RESOLUTION_SUFFIX = "-2x";
+
+    private static final String AT_START = "@start";
+
+    private static final String AT_START_DITAA = "@startditaa";
+
+    /**
+     * Concurrent renderings of the same image share the same write to the image storage.
+     */
+    private final SingleFlight<String> imageWrites = new SingleFlight<>();
+
     /**
      * Local functional interface to serve rendering registry.
      */
     interface BlockRenderer
     {
-        Block render(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
-                throws MacroExecutionException;
+        Block render(DiagramKey key) throws MacroExecutionException;
     }
     // Map {@link org.xwiki.contrib.plantuml.PlantUMLDiagramFormat} to corresponding rendering method in registry.
     private final Map<PlantUMLDiagramFormat, BlockRenderer> renderers;
     {
         renderers = new HashMap<>();
         renderers.put(PlantUMLDiagramFormat.png, this::renderImageBlock);
-        renderers.put(PlantUMLDiagramFormat.svg, this::renderRawBlock);
+        renderers.put(PlantUMLDiagramFormat.svg, this::renderSvgBlock);
         renderers.put(PlantUMLDiagramFormat.txt, this::renderPreBlock);
     }
 
@@ -87,20 +116,66 @@ public class DefaultPlantUMLRenderer implements PlantUMLRenderer
         if (renderer == null) {
             throw new MacroExecutionException("Unknown diagram format: " + diagramFormat);
         }
-        return renderer.render(content, serverURL, diagramFormat);
+        return renderer.render(this.diagramGenerator.createKey(content, serverURL, diagramFormat));
     }
 
-    private Block renderRawBlock(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
-            throws MacroExecutionException
+    @Override
+    public CompletableFuture<Void> prepareDiagram(String content, String serverURL,
+        PlantUMLDiagramFormat diagramFormat)
+    {
+        DiagramKey key = this.diagramGenerator.createKey(content, serverURL, diagramFormat);
+        CompletableFuture<Void> future = prepare(key);
+        if (diagramFormat == PlantUMLDiagramFormat.png && this.configuration.isPngHighResolutionEnabled()) {
+            DiagramKey scaledKey = scale(key);
+            if (scaledKey != null) {
+                future = CompletableFuture.allOf(future, prepare(scaledKey));
+            }
+        }
+        return future;
+    }
+
+    private CompletableFuture<Void> prepare(DiagramKey key)
+    {
+        if (isGenerated(key)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.diagramGenerator.generateAsync(key);
+    }
+
+    private boolean isGenerated(DiagramKey key)
+    {
+        if (this.diagramGenerator.isCached(key)) {
+            return true;
+        } else if (key.getFormat() == PlantUMLDiagramFormat.png) {
+            try {
+                return this.imageWriter.exists(getImageId(key, StringUtils.EMPTY));
+            } catch (MacroExecutionException e) {
+                // The rendering will report the problem.
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Block renderSvgBlock(DiagramKey key) throws MacroExecutionException
+    {
+        // An inlined SVG cannot be cached by the browser nor loaded lazily.
+        if (this.configuration.isExternalSvgEnabled() || this.configuration.isLazyLoadingEnabled()) {
+            return renderImageBlock(key);
+        }
+        return renderRawBlock(key);
+    }
+
+    private Block renderRawBlock(DiagramKey key) throws MacroExecutionException
     {
-        String text = renderToString(content, serverURL, diagramFormat);
+        String text = renderToString(key);
         return new RawBlock(text, Syntax.XHTML_1_0);
     }
 
-    private Block renderPreBlock(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
-            throws MacroExecutionException
+    private Block renderPreBlock(DiagramKey key) throws MacroExecutionException
     {
-        String text = renderToString(content, serverURL, diagramFormat);
+        String text = renderToString(key);
         return new RawBlock(String.format("<pre>\n%s\n</pre>", escapeHtml(text)), Syntax.XHTML_1_0);
     }
 
@@ -115,37 +190,141 @@ public class DefaultPlantUMLRenderer implements PlantUMLRenderer
                 .replace(">", "&gt;");
     }
 
-    private String renderToString(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
-            throws MacroExecutionException
+    private String renderToString(DiagramKey key) throws MacroExecutionException
     {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            this.plantUMLGenerator.outputImage(content, baos, serverURL, diagramFormat);
-            return baos.toString(StandardCharsets.UTF_8.name());
+        // Avoid reading or generating again the diagrams used recently (e.g. when the async rendering cache is
+        // invalidated by an unrelated modification of the document).
+        String text = this.textCache.get(key);
+        if (text != null) {
+            return text;
+        }
+        try {
+            byte[] data = this.diagramGenerator.generate(key);
+            text = new String(data, StandardCharsets.UTF_8);
+            this.textCache.put(key, text, data.length);
+            return text;
         } catch (IOException e) {
             throw new MacroExecutionException(
-                    String.format("Failed to generate a text using PlantUML for content [%s]", content), e);
+                    String.format("Failed to generate a text using PlantUML for content [%s]", key.getContent()), e);
         }
     }
 
-    private Block renderImageBlock(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
-            throws MacroExecutionException
+    private Block renderImageBlock(DiagramKey key) throws MacroExecutionException
     {
-        String imageId = getImageId(content, diagramFormat.getFileFormat().getFileSuffix());
-        try (OutputStream os = this.imageWriter.getOutputStream(imageId)) {
-            this.plantUMLGenerator.outputImage(content, os, serverURL, diagramFormat);
+        String imageId = getImageId(key, StringUtils.EMPTY);
+        String imageURL;
+        try {
+            imageURL = writeImage(imageId, key);
         } catch (IOException e) {
             throw new MacroExecutionException(
-                    String.format("Failed to generate an image using PlantUML for content [%s]", content), e);
+                    String.format("Failed to generate an image using PlantUML for content [%s]", key.getContent()), e);
         }
 
         // Return the image block pointing to the generated image.
-        ResourceReference resourceReference =
-                new ResourceReference(this.imageWriter.getURL(imageId).serialize(), ResourceType.URL);
-        return new ImageBlock(resourceReference, false);
+        ResourceReference resourceReference = new ResourceReference(imageURL, ResourceType.URL);
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (key.getFormat() == PlantUMLDiagramFormat.png && this.configuration.isPngHighResolutionEnabled()) {
+            String highResolutionImageURL = renderHighResolutionImage(key, imageId);
+            if (highResolutionImageURL != null) {
+                parameters.put("srcset", String.format("%s 1x, %s %dx", imageURL, highResolutionImageURL,
+                    HIGH_RESOLUTION_SCALE));
+            }
+        }
+        if (this.configuration.isLazyLoadingEnabled()) {
+            // Reserve the space of the diagram so that the page layout doesn't change when it's loaded.
+            DiagramDimensions dimensions = getDimensions(imageId, key.getFormat());
+            if (dimensions != null) {
+                parameters.put("width", String.valueOf(dimensions.getWidth()));
+                parameters.put("height", String.valueOf(dimensions.getHeight()));
+            }
+            parameters.put("loading", "lazy");
+        }
+        return new ImageBlock(resourceReference, false, parameters);
+    }
+
+    private String renderHighResolutionImage(DiagramKey key, String imageId) throws MacroExecutionException
+    {
+        DiagramKey scaledKey = scale(key);
+        if (scaledKey == null) {
+            return null;
+        }
+
+        // Identify the scaled image by the hash of the displayed diagram so that they are stored next to each other.
+        String scaledImageId = getImageId(key, HIGH_RESOLUTION_SUFFIX);
+        String scaledImageURL;
+        try {
+            scaledImageURL = writeImage(scaledImageId, scaledKey);
+        } catch (IOException e) {
+            // The diagram is displayed anyway, only less sharp on high resolution screens.
+            this.logger.debug("Failed to generate the high resolution image of the PlantUML diagram [{}]",
+                key.getContent(), e);
+            return null;
+        }
+
+        // Make sure the diagram type supports the scale.
+        DiagramDimensions dimensions = getDimensions(imageId, key.getFormat());
+        DiagramDimensions scaledDimensions = getDimensions(scaledImageId, key.getFormat());
+        if (dimensions == null || scaledDimensions == null || Math.abs(
+            scaledDimensions.getWidth() - HIGH_RESOLUTION_SCALE * dimensions.getWidth()) > HIGH_RESOLUTION_SCALE) {
+            return null;
+        }
+        return scaledImageURL;
+    }
+
+    private DiagramKey scale(DiagramKey key)
+    {
+        String content = key.getContent();
+        int start = content.indexOf(AT_START);
+        int lineEnd = start >= 0 ? content.indexOf('\n', start) : -1;
+        if (lineEnd < 0) {
+            return null;
+        }
+        String startLine = content.substring(start, lineEnd).trim();
+        String scaledContent;
+        if (startLine.startsWith(AT_START_DITAA)) {
+            // Ditaa ignores the scale command but supports a scale option.
+            scaledContent = content.substring(0, start) + startLine + " scale=" + HIGH_RESOLUTION_SCALE
+                + content.substring(lineEnd);
+        } else {
+            scaledContent = content.substring(0, lineEnd + 1) + "scale " + HIGH_RESOLUTION_SCALE + '\n'
+                + content.substring(lineEnd + 1);
+        }
+        return new DiagramKey(scaledContent, key.getServerURL(), key.getFormat(), key.getProcessing());
+    }
+
+    private String writeImage(String imageId, DiagramKey key) throws MacroExecutionException, IOException
+    {
+        String imageURL = this.imageWriter.getURL(imageId).serialize();
+        // The image location depends on the current wiki so we use its URL to identify the write.
+        return this.imageWrites.execute(imageURL, () -> {
+            try {
+                // The image id is computed from everything influencing the image so an existing image is up to
+                // date and doesn't need to be written again.
+                if (!this.imageWriter.exists(imageId)) {
+                    // Keep the source of the image so that it can be generated again if it's removed from the
+                    // storage while still displayed (e.g. by a page whose rendering is cached).
+                    this.imageWriter.write(imageId, key, os -> this.diagramGenerator.writeTo(key, os));
+                }
+            } catch (MacroExecutionException e) {
+                throw new IOException(e);
+            }
+            return imageURL;
+        });
+    }
+
+    private DiagramDimensions getDimensions(String imageId, PlantUMLDiagramFormat diagramFormat)
+            throws MacroExecutionException
+    {
+        try (InputStream inputStream = this.imageWriter.getInputStream(imageId)) {
+            return inputStream != null ? DiagramDimensions.read(inputStream, diagramFormat) : null;
+        } catch (IOException e) {
+            // The diagram is displayed anyway, only the space it takes is not known in advance.
+            return null;
+        }
     }
 
-    private String getImageId(String content, String extension)
+    private String getImageId(DiagramKey key, String variant)
     {
-        return String.format("%d%s", content.hashCode(), extension);
+        return key.getHash() + variant + key.getFormat().getFileFormat().getFileSuffix();
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+/**
+ * The size of a generated diagram, read from the beginning of the generated image.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class DiagramDimensions
+{
+    /**
+     * The PNG signature followed by the length and type of the IHDR chunk holding the size of the image.
+     */
+    private static final int PNG_HEADER_SIZE = 16;
+
+    /**
+     * PlantUML writes the size of the SVG in the root element, which comes first.
+     */
+    private static final int SVG_HEADER_SIZE = 4096;
+
+    private static final Pattern SVG_ROOT = Pattern.compile("<svg\\b[^>]*>");
+
+    private static final Pattern SVG_VIEW_BOX =
+        Pattern.compile("\\bviewBox=\"[-\\d.]+[\\s,]+[-\\d.]+[\\s,]+([\\d.]+)[\\s,]+([\\d.]+)\"");
+
+    private static final String SVG_LENGTH = "\\b%s=\"([\\d.]+)(px)?\"";
+
+    private static final Pattern SVG_WIDTH = Pattern.compile(String.format(SVG_LENGTH, "width"));
+
+    private static final Pattern SVG_HEIGHT = Pattern.compile(String.format(SVG_LENGTH, "height"));
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * @param width the width of the diagram, in pixels
+     * @param height the height of the diagram, in pixels
+     */
+    public DiagramDimensions(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the width of the diagram, in pixels
+     */
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    /**
+     * @return the height of the diagram, in pixels
+     */
+    public int getHeight()
+    {
+        return this.height;
+    }
+
+    /**
+     * Read the size of a generated diagram. Only the beginning of the image is read.
+     *
+     * @param inputStream the generated image
+     * @param format the format of the generated image
+     * @return the size of the diagram, or {@code null} if it cannot be found
+     * @throws IOException when the image cannot be read
+     */
+    public static DiagramDimensions read(InputStream inputStream, PlantUMLDiagramFormat format) throws IOException
+    {
+        if (format == PlantUMLDiagramFormat.png) {
+            byte[] header = new byte[PNG_HEADER_SIZE + 8];
+            if (read(inputStream, header) == header.length) {
+                ByteBuffer buffer = ByteBuffer.wrap(header, PNG_HEADER_SIZE, 8);
+                return valid(buffer.getInt(), buffer.getInt());
+            }
+        } else if (format == PlantUMLDiagramFormat.svg) {
+            byte[] header = new byte[SVG_HEADER_SIZE];
+            int length = read(inputStream, header);
+            Matcher root = SVG_ROOT.matcher(new String(header, 0, length, StandardCharsets.UTF_8));
+            if (root.find()) {
+                return readSVG(root.group());
+            }
+        }
+
+        return null;
+    }
+
+    private static int read(InputStream inputStream, byte[] buffer) throws IOException
+    {
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = inputStream.read(buffer, length, buffer.length - length)) >= 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    private static DiagramDimensions readSVG(String root)
+    {
+        Matcher width = SVG_WIDTH.matcher(root);
+        Matcher height = SVG_HEIGHT.matcher(root);
+        if (width.find() && height.find()) {
+            return valid(parse(width.group(1)), parse(height.group(1)));
+        }
+        Matcher viewBox = SVG_VIEW_BOX.matcher(root);
+        if (viewBox.find()) {
+            return valid(parse(viewBox.group(1)), parse(viewBox.group(2)));
+        }
+        return null;
+    }
+
+    private static int parse(String length)
+    {
+        try {
+            return (int) Math.ceil(Double.parseDouble(length));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static DiagramDimensions valid(int width, int height)
+    {
+        return width > 0 && height > 0 ? new DiagramDimensions(width, height) : null;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLGenerator;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramCache;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+
+/**
+ * Generates the post-processed diagrams identified by a {@link DiagramKey}, going through the {@link DiagramCache} so
+ * that a diagram is generated only once. Concurrent generations of the same diagram share the same PlantUML call.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = DiagramGenerator.class)
+@Singleton
+public class DiagramGenerator implements Initializable, Disposable
+{
+    /**
+     * The time after which an idle post-processing thread is stopped.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    @Inject
+    private PlantUMLGenerator plantUMLGenerator;
+
+    @Inject
+    private DiagramCache diagramCache;
+
+    @Inject
+    private PlantUMLMetrics metrics;
+
+    @Inject
+    private List<DiagramPostProcessor> postProcessors;
+
+    @Inject
+    private Logger logger;
+
+    private final SingleFlight<byte[]> generations = new SingleFlight<>();
+
+    /**
+     * Post-processes and caches the diagrams generated asynchronously, so that the threads completing the generation
+     * (e.g. the HTTP client I/O threads) are not blocked, without using the common pool shared with the whole wiki.
+     */
+    private ThreadPoolExecutor postProcessingExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        this.postProcessingExecutor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new BasicThreadFactory.Builder().namingPattern("PlantUML post-processing %d").daemon(true).build());
+        this.postProcessingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.postProcessingExecutor.shutdownNow();
+    }
+
+    /**
+     * @param content the textual definition of the diagram
+     * @param serverURL the (optional) PlantUML server URL used to generate the diagram
+     * @param diagramFormat the diagram output format
+     * @return the key identifying the diagram generated and post-processed with the current configuration
+     */
+    public DiagramKey createKey(String content, String serverURL, PlantUMLDiagramFormat diagramFormat)
+    {
+        // The generated diagrams are cached once post-processed, so the post-processing settings are part of the key.
+        Set<String> processing = new TreeSet<>();
+        for (DiagramPostProcessor postProcessor : this.postProcessors) {
+            String processingId = postProcessor.getId(diagramFormat);
+            if (processingId != null) {
+                processing.add(processingId);
+            }
+        }
+        return new DiagramKey(content, serverURL, diagramFormat, String.join(",", processing));
+    }
+
+    /**
+     * @param key the diagram key
+     * @return the generated diagram, read from the cache when it has already been generated
+     * @throws IOException when the diagram fails to be generated
+     */
+    public byte[] generate(DiagramKey key) throws IOException
+    {
+        return this.generations.execute(key.getHash(), () -> {
+            // Only call PlantUML when the same diagram hasn't already been generated.
+            byte[] data = this.diagramCache.get(key);
+            if (data == null) {
+                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                    this.plantUMLGenerator.outputImage(key.getContent(), baos, key.getServerURL(), key.getFormat());
+                    data = postProcess(baos.toByteArray(), key.getFormat());
+                }
+                this.metrics.output(key.getFormat().name(), data.length);
+                this.diagramCache.put(key, data);
+            }
+            return data;
+        });
+    }
+
+    /**
+     * Generate a diagram in the background and store it in the cache.
+     *
+     * @param key the diagram key
+     * @return the future completed once the diagram is in the cache
+     */
+    public CompletableFuture<Void> generateAsync(DiagramKey key)
+    {
+        // A rendering of the same diagram started in the meantime waits for this generation.
+        PlantUMLDiagramFormat diagramFormat = key.getFormat();
+        return this.generations.executeAsync(key.getHash(),
+            () -> this.plantUMLGenerator.outputImageAsync(key.getContent(), key.getServerURL(), diagramFormat)
+                // Don't write the cache from the HTTP client I/O threads.
+                .thenApplyAsync(output -> {
+                    byte[] data = postProcess(output, diagramFormat);
+                    this.metrics.output(diagramFormat.name(), data.length);
+                    this.diagramCache.put(key, data);
+                    return data;
+                }, this.postProcessingExecutor))
+            .thenApply(data -> null);
+    }
+
+    /**
+     * Write a diagram to the passed output stream, transferring the cached diagram directly when possible.
+     *
+     * @param key the diagram key
+     * @param outputStream the stream into which the diagram is written
+     * @throws IOException when the diagram fails to be generated or written
+     */
+    public void writeTo(DiagramKey key, OutputStream outputStream) throws IOException
+    {
+        if (!this.diagramCache.copyTo(key, outputStream)) {
+            outputStream.write(generate(key));
+        }
+    }
+
+    /**
+     * @param key the diagram key
+     * @return {@code true} if the diagram is in the cache, {@code false} otherwise
+     */
+    public boolean isCached(DiagramKey key)
+    {
+        return this.diagramCache.contains(key);
+    }
+
+    private byte[] postProcess(byte[] data, PlantUMLDiagramFormat diagramFormat)
+    {
+        byte[] result = data;
+        for (DiagramPostProcessor postProcessor : this.postProcessors) {
+            try {
+                result = postProcessor.process(result, diagramFormat);
+            } catch (IOException e) {
+                // Display the diagram as generated.
+                this.logger.warn("Failed to post-process a PlantUML [{}] diagram. Root cause: [{}]", diagramFormat,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+/**
+ * Transforms a diagram generated by PlantUML before it is cached and displayed, e.g. to make it smaller. Since the
+ * result is cached, a diagram is processed only once whatever the number of times it is displayed, and the processing
+ * applied to a diagram is part of its cache key (see {@link #getId(PlantUMLDiagramFormat)}).
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Role
+public interface DiagramPostProcessor
+{
+    /**
+     * @param diagram the generated diagram
+     * @param format the format of the diagram
+     * @return the processed diagram, or the passed one when it's not supported or doesn't need to be processed
+     * @throws IOException when the diagram fails to be processed
+     */
+    byte[] process(byte[] diagram, PlantUMLDiagramFormat format) throws IOException;
+
+    /**
+     * @param format the format of the diagrams
+     * @return identifies the processing applied to the diagrams of the passed format with the current configuration
+     *         (including the settings influencing the result), or {@code null} when they are not processed
+     */
+    String getId(PlantUMLDiagramFormat format);
+}
@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+import org.xwiki.contrib.plantuml.PlantUMLRenderer;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.properties.PropertyException;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+
+/**
+ * Starts generating all the PlantUML diagrams of a content as soon as the result of its first PlantUML macro is not
+ * found in the asynchronous rendering cache, so that they are generated concurrently instead of one after the other.
+ * Each macro then finds its diagram already generated or waits for the generation in progress.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = PlantUMLBatchRenderer.class)
+@Singleton
+public class PlantUMLBatchRenderer
+{
+    @Inject
+    private PlantUMLRenderer plantUMLRenderer;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private BeanManager beanManager;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * @param context the context of the currently executed macro
+     * @return the PlantUML macro calls of the transformed content, if the currently executed macro is the first of
+     *         them and their diagrams should be generated concurrently, or an empty list
+     */
+    public List<MacroBlock> getBatch(MacroTransformationContext context)
+    {
+        MacroBlock currentMacroBlock = context.getCurrentMacroBlock();
+        XDOM xdom = context.getXDOM();
+        if (!this.configuration.isBatchRenderingEnabled() || currentMacroBlock == null || xdom == null) {
+            return Collections.emptyList();
+        }
+
+        // The macros are executed in the order in which they appear in the content.
+        List<MacroBlock> macroBlocks =
+            xdom.getBlocks(new MacroBlockMatcher(currentMacroBlock.getId()), Block.Axes.DESCENDANT);
+        if (macroBlocks.size() < 2 || macroBlocks.get(0) != currentMacroBlock) {
+            return Collections.emptyList();
+        }
+        return macroBlocks;
+    }
+
+    /**
+     * Start generating the diagrams of a batch of PlantUML macros (see {@link #getBatch(MacroTransformationContext)}).
+     *
+     * @param macro the PlantUML macro, used to compute the diagrams to generate
+     * @param batch the PlantUML macro calls
+     */
+    public void prepare(PlantUMLMacro macro, List<MacroBlock> batch)
+    {
+        prepare(macro, batch, this.configuration.getBatchRenderingMaxParallelism());
+    }
+
+    /**
+     * Start generating the diagrams of the passed PlantUML macros.
+     *
+     * @param macro the PlantUML macro, used to compute the diagrams to generate
+     * @param macroBlocks the PlantUML macro calls
+     * @param maxParallelism the maximum number of diagrams being generated at the same time
+     * @return the future completed when all the diagrams are generated (or failed to be generated)
+     */
+    public CompletableFuture<Void> prepare(PlantUMLMacro macro, List<MacroBlock> macroBlocks, int maxParallelism)
+    {
+        // The same diagram can be displayed several times.
+        Set<DiagramKey> diagrams = new LinkedHashSet<>();
+        for (MacroBlock macroBlock : macroBlocks) {
+            if (macroBlock.getContent() == null) {
+                continue;
+            }
+            PlantUMLMacroParameters parameters = new PlantUMLMacroParameters();
+            try {
+                this.beanManager.populate(parameters, macroBlock.getParameters());
+            } catch (PropertyException e) {
+                // The execution of the macro reports the invalid parameters.
+                continue;
+            }
+            diagrams.add(macro.getDiagramKey(macroBlock.getContent(), parameters));
+        }
+
+        Queue<DiagramKey> queue = new ConcurrentLinkedQueue<>(diagrams);
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < maxParallelism && !queue.isEmpty(); i++) {
+            workers.add(prepareNext(queue));
+        }
+        return CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> prepareNext(Queue<DiagramKey> diagrams)
+    {
+        DiagramKey diagram;
+        while ((diagram = diagrams.poll()) != null) {
+            CompletableFuture<Void> future = prepare(diagram);
+            if (!future.isDone()) {
+                // Start the next generation when this one is over.
+                return future.handle((result, throwable) -> result).thenCompose(result -> prepareNext(diagrams));
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<Void> prepare(DiagramKey diagram)
+    {
+        CompletableFuture<Void> future;
+        try {
+            future = this.plantUMLRenderer.prepareDiagram(diagram.getContent(), diagram.getServerURL(),
+                diagram.getFormat());
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        return future.whenComplete((result, throwable) -> {
+            // The rendering of the macro generates the diagram again and reports the error.
+            if (throwable != null) {
+                this.logger.debug("Failed to prepare the PlantUML diagram [{}]. Root cause: [{}]", diagram.getContent(),
+                    ExceptionUtils.getRootCauseMessage(throwable));
+            }
+        });
+    }
+}
@@ -19,23 +19,35 @@
  */
 package org.xwiki.contrib.plantuml.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
 import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+import org.xwiki.contrib.plantuml.internal.server.ServerUnavailableException;
+import org.xwiki.localization.ContextualLocalizationManager;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.rendering.async.AsyncContext;
 import org.xwiki.rendering.async.internal.block.AbstractBlockAsyncRenderer;
 import org.xwiki.rendering.block.Block;
 import org.xwiki.rendering.block.CompositeBlock;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.GroupBlock;
 import org.xwiki.rendering.block.MacroBlock;
 import org.xwiki.rendering.block.MacroMarkerBlock;
 import org.xwiki.rendering.block.MetaDataBlock;
+import org.xwiki.rendering.block.WordBlock;
 import org.xwiki.rendering.block.match.MetadataBlockMatcher;
+import org.xwiki.rendering.listener.Format;
 import org.xwiki.rendering.listener.MetaData;
 import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.rendering.syntax.Syntax;
@@ -51,9 +63,9 @@ import org.xwiki.rendering.util.ErrorBlockGenerator;
 @Component(roles = PlantUMLBlockAsyncRenderer.class)
 public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
 {
-    private static final String ESCAPE_CHAR_SLASH = "_";
+    private static final String CLASS_PARAMETER = "class";
 
-    private static final String ESCAPE_CHAR_BACKSLASH = "-";
+    private static final String BUSY_TRANSLATION_KEY = "plantuml.macro.busy";
 
     @Inject
     private DocumentReferenceResolver<String> resolver;
@@ -61,9 +73,24 @@ public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
     @Inject
     private AsyncContext asyncContext;
 
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
     @Inject
     private ErrorBlockGenerator errorBlockGenerator;
 
+    @Inject
+    private PlantUMLMetrics metrics;
+
+    @Inject
+    private PlantUMLBatchRenderer batchRenderer;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private ContextualLocalizationManager localization;
+
     private List<String> id;
 
     private Syntax targetSyntax;
@@ -76,12 +103,17 @@ public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
 
     private PlantUMLMacro macro;
 
+    private List<MacroBlock> batch;
+
     private boolean isInline;
 
+    private boolean isCacheAllowed = true;
+
     void initialize(PlantUMLMacro macro, PlantUMLMacroParameters parameters, String content,
-        MacroTransformationContext context)
+        MacroTransformationContext context, List<MacroBlock> batch)
     {
         this.macro = macro;
+        this.batch = batch;
         this.parameters = parameters;
         this.content = content;
         this.targetSyntax = context.getTransformationContext().getTargetSyntax();
@@ -92,7 +124,7 @@ public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
             this.sourceReference = this.resolver.resolve(source);
         }
 
-        this.id = createId(source, context);
+        this.id = createId();
     }
 
     @Override
@@ -100,16 +132,41 @@ public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
     {
         List<Block> resultBlocks;
 
+        // Only called when the result is not found in the asynchronous rendering cache.
+        this.metrics.asyncRendered();
+
         if (this.sourceReference != null) {
             // Invalidate the cache when the document containing the macro call is modified
             this.asyncContext.useEntity(this.sourceReference);
         }
+        DocumentReference currentReference = this.documentAccessBridge.getCurrentDocumentReference();
+        if (currentReference != null && !currentReference.equals(this.sourceReference)) {
+            // The images are recorded as used by the displayed document (which can include the document containing
+            // the macro call) and removed when it's modified (see SharedImageCleaner), so the result must be
+            // rendered again, which records the images again, when it's modified.
+            this.asyncContext.useEntity(currentReference);
+        }
+        if (!this.batch.isEmpty()) {
+            // The other diagrams of the content are probably not cached either.
+            this.batchRenderer.prepare(this.macro, this.batch);
+        }
         try {
             resultBlocks = this.macro.executeSync(this.content, this.parameters, this.isInline);
         } catch (MacroExecutionException e) {
-            // Display the error in the result
-            resultBlocks = this.errorBlockGenerator.generateErrorBlocks("Failed to execute the PlantUML macro", e,
-                false);
+            if (ExceptionUtils.indexOfType(e, RenderingRejectedException.class) >= 0) {
+                // Too many diagrams are being generated: display a placeholder and make sure it's not cached so that
+                // the diagram is generated on the next display.
+                this.isCacheAllowed = false;
+                resultBlocks = Collections.singletonList(createPlaceholder());
+            } else {
+                // Don't cache the error when the PlantUML server is only temporarily not called.
+                if (ExceptionUtils.indexOfType(e, ServerUnavailableException.class) >= 0) {
+                    this.isCacheAllowed = false;
+                }
+                // Display the error in the result
+                resultBlocks = this.errorBlockGenerator.generateErrorBlocks("Failed to execute the PlantUML macro",
+                    e, false);
+            }
         }
 
         return new CompositeBlock(resultBlocks);
@@ -142,31 +199,50 @@ public class PlantUMLBlockAsyncRenderer extends AbstractBlockAsyncRenderer
     @Override
     public boolean isCacheAllowed()
     {
-        return true;
+        return this.isCacheAllowed;
+    }
+
+    private Block createPlaceholder()
+    {
+        // The diagram is not generated in the background since the rendering has been rejected.
+        String message = this.localization.getTranslationPlain(BUSY_TRANSLATION_KEY);
+        List<Block> messageBlocks =
+            Collections.singletonList(new WordBlock(message != null ? message : BUSY_TRANSLATION_KEY));
+        if (this.isInline) {
+            return new FormatBlock(messageBlocks, Format.NONE,
+                Collections.singletonMap(CLASS_PARAMETER, "plantuml-placeholder"));
+        } else {
+            return new GroupBlock(messageBlocks, Collections.singletonMap(CLASS_PARAMETER, "box infomessage "
+                + "plantuml-placeholder"));
+        }
+    }
+
+    private List<String> createId()
+    {
+        // Identify the result by the diagram it displays rather than by the document and the position of the macro,
+        // so that the same diagram displayed in several places of a document is rendered only once. The result is
+        // still cached per document (see the context entries set by the macro) and invalidated when the document
+        // containing the macro call is modified.
+        DiagramKey key = this.macro.getDiagramKey(this.content, this.parameters);
+
+        return createId("rendering", "macro", "plantuml", key.getHash(), getDisplayOptions(),
+            this.isInline ? "inline" : "block");
     }
 
-    private List<String> createId(String source, MacroTransformationContext context)
+    private String getDisplayOptions()
     {
-        // Find index of the macro in the XDOM to create a unique id.
-        long index = context.getXDOM().indexOf(context.getCurrentMacroBlock());
-
-        // Make sure we don't have a / or \ in the source so that it works on Tomcat by default even if Tomcat is not
-        // configured to support \ and / in URLs.
-        // Make "_" and "-" escape characters and thus:
-        // - replace "_" by "__"
-        // - replace "-" by "--"
-        // - replace "\" by "_"
-        // - replace "/" by "-"
-        // This keeps the unicity of the source reference.
-        // TODO: Remove when the parent pom is upgraded to the version of XWiki where
-        // https://jira.xwiki.org/browse/XWIKI-17515 has been fixed.
-        String escapedSource = StringUtils.replaceEach(source,
-            new String[] { ESCAPE_CHAR_SLASH, ESCAPE_CHAR_BACKSLASH },
-            new String[] { ESCAPE_CHAR_SLASH + ESCAPE_CHAR_SLASH, ESCAPE_CHAR_BACKSLASH + ESCAPE_CHAR_BACKSLASH });
-        escapedSource = StringUtils.replaceEach(escapedSource, new String[] { "\\", "/" },
-            new String[] { ESCAPE_CHAR_SLASH, ESCAPE_CHAR_BACKSLASH });
-
-        return createId("rendering", "macro", "plantuml", escapedSource, index);
+        // The way the diagram is displayed depends on the configuration, in addition to the diagram itself.
+        List<String> options = new ArrayList<>();
+        if (this.configuration.isPngHighResolutionEnabled()) {
+            options.add("highResolution");
+        }
+        if (this.configuration.isExternalSvgEnabled()) {
+            options.add("externalSvg");
+        }
+        if (this.configuration.isLazyLoadingEnabled()) {
+            options.add("lazyLoading");
+        }
+        return String.join(",", options);
     }
 
     private String getCurrentSource(MacroTransformationContext context)
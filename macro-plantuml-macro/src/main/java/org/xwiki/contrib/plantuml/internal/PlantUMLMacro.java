@@ -23,6 +23,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -37,6 +41,8 @@ import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
 import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
 import org.xwiki.contrib.plantuml.PlantUMLRenderer;
 import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
 import org.xwiki.rendering.async.internal.AsyncRendererConfiguration;
 import org.xwiki.rendering.async.internal.block.BlockAsyncRendererExecutor;
 import org.xwiki.rendering.block.Block;
@@ -75,6 +81,17 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
 
     private static final String NEW_LINE = "\n";
 
+    /**
+     * The type of diagram recorded in the metrics when it can't be resolved from the start tag of the diagram.
+     */
+    private static final String DEFAULT_DIAGRAM_TYPE = "uml";
+
+    /**
+     * The diagram types recorded in the metrics, so that an invalid start tag doesn't create a new metric.
+     */
+    private static final Set<String> DIAGRAM_TYPES = Stream.concat(Stream.of(DEFAULT_DIAGRAM_TYPE),
+        Arrays.stream(PlantUMLDiagramType.values()).map(PlantUMLDiagramType::name)).collect(Collectors.toSet());
+
     @Inject
     private BlockAsyncRendererExecutor executor;
 
@@ -87,6 +104,15 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
     @Inject
     private PlantUMLConfiguration configuration;
 
+    @Inject
+    private PlantUMLMetrics metrics;
+
+    @Inject
+    private PlantUMLBatchRenderer batchRenderer;
+
+    @Inject
+    private DiagramGenerator diagramGenerator;
+
     @Inject
     private Logger logger;
 
@@ -116,8 +142,11 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
     private List<Block> executeAsync(PlantUMLMacroParameters parameters, String content,
         MacroTransformationContext context) throws MacroExecutionException
     {
+        this.metrics.macroExecuted();
+
         PlantUMLBlockAsyncRenderer renderer = this.asyncRendererProvider.get();
-        renderer.initialize(this, parameters, content, context);
+        // Generate all the diagrams of the content concurrently, once it's known that they are not cached.
+        renderer.initialize(this, parameters, content, context, this.batchRenderer.getBatch(context));
 
         AsyncRendererConfiguration rendererConfiguration = new AsyncRendererConfiguration();
         rendererConfiguration.setContextEntries(Collections.singleton("doc.reference"));
@@ -137,14 +166,19 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
     List<Block> executeSync(String content, PlantUMLMacroParameters parameters, boolean isInline)
         throws MacroExecutionException
     {
-        String wrappedContent = maybeAddTitle(maybeAddContentMarkers(content, parameters), parameters);
+        String wrappedContent = getDiagramContent(content, parameters);
         logger.debug("Rendering PlantUML diagram with content [{}]", wrappedContent);
 
-        Block resultBlock = plantUMLRenderer.renderDiagram(
-                wrappedContent,
-                computeServer(parameters),
-                computeFormat(parameters)
-        );
+        String serverURL = computeServer(parameters);
+        PlantUMLDiagramFormat format = computeFormat(parameters);
+        long startTime = this.metrics.renderStarted();
+        Block resultBlock;
+        try {
+            resultBlock = plantUMLRenderer.renderDiagram(wrappedContent, serverURL, format);
+        } finally {
+            this.metrics.renderEnded(startTime, getDiagramType(wrappedContent), format.name(),
+                StringUtils.isEmpty(serverURL) ? PlantUMLMetrics.BACKEND_EMBEDDED : PlantUMLMetrics.BACKEND_SERVER);
+        }
 
         // Wrap in a DIV if not inline (we need that since an IMG is an inline element otherwise)
         if (!isInline) {
@@ -153,7 +187,37 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
         return Arrays.asList(resultBlock);
     }
 
-    private String computeServer(PlantUMLMacroParameters parameters)
+    String getDiagramContent(String content, PlantUMLMacroParameters parameters)
+    {
+        return maybeAddTitle(maybeAddContentMarkers(content, parameters), parameters);
+    }
+
+    /**
+     * @param content the diagram content, including its content markers
+     * @return the type of diagram specified by the start tag of the content (e.g. {@code mindmap} for
+     *         {@code @startmindmap}), which can differ from the type parameter when the content has its own markers
+     */
+    String getDiagramType(String content)
+    {
+        if (content.startsWith(AT_START)) {
+            String startTag = StringUtils.substringBefore(content, NEW_LINE).substring(AT_START.length());
+            // The start tag can be followed by the diagram id (e.g. "@startuml diagram1").
+            String type = startTag.trim().split("\\s", 2)[0].toLowerCase(Locale.ROOT);
+            if (DIAGRAM_TYPES.contains(type)) {
+                return type;
+            }
+        }
+        return DEFAULT_DIAGRAM_TYPE;
+    }
+
+    DiagramKey getDiagramKey(String content, PlantUMLMacroParameters parameters)
+    {
+        // The same key as the one used by the renderer, so that it identifies the post-processed diagram.
+        return this.diagramGenerator.createKey(getDiagramContent(content, parameters), computeServer(parameters),
+            computeFormat(parameters));
+    }
+
+    String computeServer(PlantUMLMacroParameters parameters)
     {
         String serverURL = parameters.getServer();
         if (serverURL == null) {
@@ -162,7 +226,7 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
         return serverURL;
     }
 
-    private PlantUMLDiagramFormat computeFormat(PlantUMLMacroParameters parameters)
+    PlantUMLDiagramFormat computeFormat(PlantUMLMacroParameters parameters)
     {
         PlantUMLDiagramFormat format = parameters.getFormat();
         if (format == null) {
@@ -175,7 +239,7 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
         return format;
     }
 
-    private String maybeAddContentMarkers(String content, PlantUMLMacroParameters parameters)
+    String maybeAddContentMarkers(String content, PlantUMLMacroParameters parameters)
     {
         String trimmedContent = content.trim();
 
@@ -206,7 +270,7 @@ public class PlantUMLMacro extends AbstractMacro<PlantUMLMacroParameters>
         }
     }
 
-    private String maybeAddTitle(String content, PlantUMLMacroParameters parameters)
+    String maybeAddTitle(String content, PlantUMLMacroParameters parameters)
     {
         if (StringUtils.isNotBlank(parameters.getTitle()) && !content.contains("\ntitle ")) {
             // Insert the title just under the @start tag, which is always the first line
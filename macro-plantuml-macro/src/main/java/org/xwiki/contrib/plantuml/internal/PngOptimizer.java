@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes again a generated PNG diagram, without loss, to make it smaller: the diagrams using few colors (which is
+ * common since they are mostly made of flat shapes) are encoded with a palette, and the metadata (such as the diagram
+ * source embedded by PlantUML) is dropped.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public final class PngOptimizer
+{
+    /**
+     * The best compression level.
+     */
+    public static final int MAX_COMPRESSION_LEVEL = 9;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private static final int OPAQUE = 0xFF;
+
+    private PngOptimizer()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param png the PNG image to optimize
+     * @param compressionLevel the compression level, from 0 (no compression) to {@link #MAX_COMPRESSION_LEVEL}
+     * @return the optimized PNG image, or the passed one when it can't be made smaller
+     * @throws IOException when the image is not a valid PNG image
+     */
+    public static byte[] optimize(byte[] png, int compressionLevel) throws IOException
+    {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException("Failed to read the PNG image");
+        }
+
+        BufferedImage palettedImage = toPalettedImage(image);
+        byte[] optimizedPNG = write(palettedImage != null ? palettedImage : image,
+            Math.max(0, Math.min(compressionLevel, MAX_COMPRESSION_LEVEL)));
+        return optimizedPNG.length < png.length ? optimizedPNG : png;
+    }
+
+    private static BufferedImage toPalettedImage(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+        // Index the colors, giving up as soon as there are too many of them.
+        Map<Integer, Integer> indexes = new HashMap<>();
+        int[] pixelIndexes = new int[pixels.length];
+        int previousPixel = 0;
+        int previousIndex = -1;
+        for (int i = 0; i < pixels.length; i++) {
+            // Most pixels have the same color as the previous one.
+            if (pixels[i] != previousPixel || previousIndex < 0) {
+                Integer index = indexes.get(pixels[i]);
+                if (index == null) {
+                    if (indexes.size() == MAX_PALETTE_SIZE) {
+                        return null;
+                    }
+                    index = indexes.size();
+                    indexes.put(pixels[i], index);
+                }
+                previousPixel = pixels[i];
+                previousIndex = index;
+            }
+            pixelIndexes[i] = previousIndex;
+        }
+
+        IndexColorModel colorModel = createColorModel(indexes);
+        BufferedImage palettedImage = new BufferedImage(width, height,
+            colorModel.getPixelSize() < 8 ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_BYTE_INDEXED,
+            colorModel);
+        WritableRaster raster = palettedImage.getRaster();
+        raster.setPixels(0, 0, width, height, pixelIndexes);
+        return palettedImage;
+    }
+
+    private static IndexColorModel createColorModel(Map<Integer, Integer> indexes)
+    {
+        int size = indexes.size();
+        byte[] reds = new byte[size];
+        byte[] greens = new byte[size];
+        byte[] blues = new byte[size];
+        byte[] alphas = new byte[size];
+        boolean opaque = true;
+        for (Map.Entry<Integer, Integer> entry : indexes.entrySet()) {
+            int color = entry.getKey();
+            int index = entry.getValue();
+            alphas[index] = (byte) (color >>> 24);
+            reds[index] = (byte) (color >> 16);
+            greens[index] = (byte) (color >> 8);
+            blues[index] = (byte) color;
+            opaque &= (color >>> 24) == OPAQUE;
+        }
+
+        // Use the smallest number of bits per pixel supported by PNG.
+        int bits = 8;
+        while (bits > 1 && size <= 1 << (bits / 2)) {
+            bits /= 2;
+        }
+        // Don't write the transparency of the colors when they are all opaque.
+        return opaque ? new IndexColorModel(bits, size, reds, greens, blues)
+            : new IndexColorModel(bits, size, reds, greens, blues, alphas);
+    }
+
+    private static byte[] write(BufferedImage image, int compressionLevel) throws IOException
+    {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            throw new IOException("No PNG image writer available");
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam parameters = writer.getDefaultWriteParam();
+            // The compression level can be set starting with Java 9.
+            if (parameters.canWriteCompressed()) {
+                parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                parameters.setCompressionQuality(1F - (float) compressionLevel / MAX_COMPRESSION_LEVEL);
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(outputStream)) {
+                writer.setOutput(imageOutputStream);
+                // Don't copy the metadata of the generated image.
+                writer.write(null, new IIOImage(image, null, null), parameters);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+}
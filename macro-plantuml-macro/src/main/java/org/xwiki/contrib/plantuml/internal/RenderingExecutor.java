@@ -0,0 +1,316 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+
+/**
+ * Executes the embedded diagram generations in a dedicated and bounded thread pool, so that a burst of diagrams to
+ * generate cannot start an unbounded number of PlantUML layouts (and thus GraphViz processes) at the same time.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = RenderingExecutor.class)
+@Singleton
+public class RenderingExecutor implements Initializable, Disposable
+{
+    /**
+     * The rejection policy failing immediately when the queue is full.
+     */
+    public static final String POLICY_PLACEHOLDER = "placeholder";
+
+    /**
+     * The rejection policy waiting for a free place in the queue.
+     */
+    public static final String POLICY_WAIT = "wait";
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    private ExecutorService executor;
+
+    /**
+     * Limits the number of generations either running or waiting in the queue.
+     */
+    private Semaphore permits;
+
+    private boolean waitWhenFull;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong executedCount = new AtomicLong();
+
+    private final AtomicLong totalQueueWaitTime = new AtomicLong();
+
+    private final AtomicLong maxQueueWaitTime = new AtomicLong();
+
+    private final AtomicLong totalExecutionTime = new AtomicLong();
+
+    private final AtomicLong maxExecutionTime = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int maxParallelism = this.configuration.getRenderingMaxParallelism();
+        if (maxParallelism <= 0) {
+            maxParallelism = Runtime.getRuntime().availableProcessors();
+        }
+        int queueSize = this.configuration.getRenderingQueueSize();
+        this.permits = new Semaphore(maxParallelism + queueSize);
+        this.waitWhenFull = POLICY_WAIT.equals(this.configuration.getRenderingRejectionPolicy());
+
+        // The permits already limit the number of queued generations, the queue capacity is only a safety net.
+        this.executor = new ThreadPoolExecutor(maxParallelism, maxParallelism, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(maxParallelism + queueSize),
+            new BasicThreadFactory.Builder().namingPattern("PlantUML rendering %d").daemon(true)
+                .wrappedFactory(this::newThread).build());
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Execute the passed generation in the rendering thread pool and wait for its result.
+     *
+     * @param <T> the type of the generation result
+     * @param generation the diagram generation to execute
+     * @return the result of the generation
+     * @throws RenderingRejectedException when the rendering queue is full and the rejection policy is
+     *         {@value #POLICY_PLACEHOLDER}
+     * @throws IOException when the generation fails
+     */
+    public <T> T execute(Callable<T> generation) throws IOException
+    {
+        acquire();
+        try {
+            long submitTime = System.nanoTime();
+            Future<T> future = this.executor.submit(() -> {
+                long startTime = System.nanoTime();
+                record(startTime - submitTime, this.totalQueueWaitTime, this.maxQueueWaitTime);
+                try {
+                    return generation.call();
+                } finally {
+                    record(System.nanoTime() - startTime, this.totalExecutionTime, this.maxExecutionTime);
+                    this.executedCount.incrementAndGet();
+                }
+            });
+            return get(future);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Execute the passed generation in the rendering thread pool without waiting for its result.
+     * <p>
+     * Waiting for a free place in the queue would block the caller so the generation is rejected when the queue is
+     * full, whatever the rejection policy. The diagram is then generated when it's displayed, which waits for a free
+     * place in the queue with the {@value #POLICY_WAIT} rejection policy.
+     *
+     * @param <T> the type of the generation result
+     * @param generation the diagram generation to execute
+     * @return the future result of the generation, failed with a {@link RenderingRejectedException} when the rendering
+     *         queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> generation)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!this.permits.tryAcquire()) {
+            this.rejectedCount.incrementAndGet();
+            result.completeExceptionally(
+                new RenderingRejectedException("Too many PlantUML diagrams are being generated"));
+            return result;
+        }
+
+        long submitTime = System.nanoTime();
+        try {
+            this.executor.execute(() -> {
+                long startTime = System.nanoTime();
+                record(startTime - submitTime, this.totalQueueWaitTime, this.maxQueueWaitTime);
+                T value = null;
+                Throwable failure = null;
+                try {
+                    value = generation.call();
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    record(System.nanoTime() - startTime, this.totalExecutionTime, this.maxExecutionTime);
+                    this.executedCount.incrementAndGet();
+                    this.permits.release();
+                }
+                // Complete the result once the place in the queue is released, so that the generations started
+                // when it's completed (e.g. the next diagram of a batch) are not rejected.
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(value);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down.
+            this.permits.release();
+            result.completeExceptionally(new IOException("Failed to generate the PlantUML diagram", e));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of generations rejected because the rendering queue was full
+     */
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return the number of generations executed so far
+     */
+    public long getExecutedCount()
+    {
+        return this.executedCount.get();
+    }
+
+    /**
+     * @return the number of generations currently running
+     */
+    public int getActiveCount()
+    {
+        return ((ThreadPoolExecutor) this.executor).getActiveCount();
+    }
+
+    /**
+     * @return the number of generations currently waiting for a free rendering thread
+     */
+    public int getQueueSize()
+    {
+        return ((ThreadPoolExecutor) this.executor).getQueue().size();
+    }
+
+    /**
+     * @return the total time (in milliseconds) spent by the generations waiting for a free rendering thread
+     */
+    public long getTotalQueueWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.totalQueueWaitTime.get());
+    }
+
+    /**
+     * @return the longest time (in milliseconds) spent by a generation waiting for a free rendering thread
+     */
+    public long getMaxQueueWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxQueueWaitTime.get());
+    }
+
+    /**
+     * @return the total time (in milliseconds) spent generating diagrams
+     */
+    public long getTotalExecutionTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.totalExecutionTime.get());
+    }
+
+    /**
+     * @return the longest time (in milliseconds) spent generating a diagram
+     */
+    public long getMaxExecutionTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxExecutionTime.get());
+    }
+
+    private Thread newThread(Runnable runnable)
+    {
+        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+        // PlantUML looks for its extensions (e.g. the GraphViz layout cache) in the context class loader, which would
+        // otherwise be inherited from the thread which happened to start the rendering thread.
+        thread.setContextClassLoader(RenderingExecutor.class.getClassLoader());
+        return thread;
+    }
+
+    private void acquire() throws IOException
+    {
+        if (this.waitWhenFull) {
+            try {
+                this.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to generate the PlantUML diagram");
+            }
+        } else if (!this.permits.tryAcquire()) {
+            this.rejectedCount.incrementAndGet();
+            throw new RenderingRejectedException("Too many PlantUML diagrams are being generated");
+        }
+    }
+
+    private <T> T get(Future<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating the PlantUML diagram");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to generate the PlantUML diagram", cause);
+        }
+    }
+
+    private void record(long duration, AtomicLong total, AtomicLong max)
+    {
+        total.addAndGet(duration);
+        max.accumulateAndGet(duration, Math::max);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure that a given computation is executed only once at a time: the threads asking for the same key while the
+ * computation is in progress wait for it and receive the same result (or failure) instead of computing it again.
+ *
+ * @param <V> the type of the computed values
+ * @version $Id$
+ * @since 2.5
+ */
+public class SingleFlight<V>
+{
+    private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * A computation which can fail with an {@link IOException}.
+     *
+     * @param <V> the type of the computed value
+     */
+    @FunctionalInterface
+    public interface Computation<V>
+    {
+        /**
+         * @return the computed value
+         * @throws IOException when the computation fails
+         */
+        V compute() throws IOException;
+    }
+
+    /**
+     * Execute the passed computation, unless another thread is already computing the same key, in which case we wait
+     * for its result.
+     *
+     * @param key the key identifying the computation
+     * @param computation the computation to execute
+     * @return the computed value
+     * @throws IOException when the computation fails
+     */
+    public V execute(String key, Computation<V> computation) throws IOException
+    {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existingFuture = this.inFlight.putIfAbsent(key, future);
+        if (existingFuture != null) {
+            return get(existingFuture);
+        }
+
+        try {
+            V value = computation.compute();
+            future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Start the passed asynchronous computation, unless another thread is already computing the same key, in which
+     * case its result is returned. The threads asking for the same key with {@link #execute(String, Computation)}
+     * before the end of the computation wait for it.
+     *
+     * @param key the key identifying the computation
+     * @param computation the asynchronous computation to start
+     * @return the future computed value
+     */
+    public CompletableFuture<V> executeAsync(String key, Supplier<CompletableFuture<V>> computation)
+    {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existingFuture = this.inFlight.putIfAbsent(key, future);
+        if (existingFuture != null) {
+            return existingFuture;
+        }
+
+        try {
+            computation.get().whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    future.completeExceptionally(
+                        throwable instanceof CompletionException ? throwable.getCause() : throwable);
+                } else {
+                    future.complete(value);
+                }
+                this.inFlight.remove(key, future);
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            this.inFlight.remove(key, future);
+        }
+
+        return future;
+    }
+
+    /**
+     * @return the number of computations currently in progress
+     */
+    public int size()
+    {
+        return this.inFlight.size();
+    }
+
+    private V get(CompletableFuture<V> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the PlantUML diagram generation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to generate the PlantUML diagram", cause);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+/**
+ * Minifies the SVG diagrams when enabled (see {@link PlantUMLConfiguration#isSvgMinificationEnabled()}).
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named(SvgMinificationPostProcessor.HINT)
+@Singleton
+public class SvgMinificationPostProcessor implements DiagramPostProcessor
+{
+    /**
+     * The component hint.
+     */
+    public static final String HINT = "svgMinification";
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Override
+    public byte[] process(byte[] diagram, PlantUMLDiagramFormat format) throws IOException
+    {
+        if (isEnabled(format)) {
+            return SvgMinifier.minify(diagram);
+        }
+        return diagram;
+    }
+
+    @Override
+    public String getId(PlantUMLDiagramFormat format)
+    {
+        return isEnabled(format) ? HINT : null;
+    }
+
+    private boolean isEnabled(PlantUMLDiagramFormat format)
+    {
+        return format == PlantUMLDiagramFormat.svg && this.configuration.isSvgMinificationEnabled();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Removes from a generated SVG diagram what is not needed to display it: comments (PlantUML includes the encoded
+ * source of the diagram in one of them), processing instructions, metadata, indentation and useless decimals. The
+ * diagram is streamed so that it's never loaded in memory as a DOM.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public final class SvgMinifier
+{
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /**
+     * The elements whose white spaces are displayed or meaningful.
+     */
+    private static final Set<String> PRESERVED_TEXT_ELEMENTS =
+        new HashSet<>(Arrays.asList("text", "tspan", "textPath", "title", "desc", "style", "script"));
+
+    /**
+     * The elements not needed to display the diagram.
+     */
+    private static final Set<String> REMOVED_ELEMENTS = new HashSet<>(Arrays.asList("metadata"));
+
+    /**
+     * The geometry and presentation attributes whose value is a number, a length or a list of them, and thus can be
+     * written without useless decimals. The other attributes (e.g. {@code style} or {@code data-*}) are kept as is
+     * since their value can contain text.
+     */
+    private static final Set<String> NUMERIC_ATTRIBUTES = new HashSet<>(Arrays.asList("x", "y", "x1", "y1", "x2", "y2",
+        "cx", "cy", "r", "rx", "ry", "dx", "dy", "width", "height", "d", "points", "transform", "viewBox",
+        "textLength", "font-size", "stroke-width", "stroke-dasharray", "stroke-dashoffset", "opacity", "fill-opacity",
+        "stroke-opacity", "offset"));
+
+    /**
+     * A decimal number ending with zeros (e.g. {@code 1.0} or {@code 12.50}).
+     */
+    private static final Pattern TRAILING_ZEROS =
+        Pattern.compile("(?<![\\d.])(-?\\d+)(?:\\.0+|(\\.\\d*?[1-9])0+)(?![\\d.])");
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private SvgMinifier()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param svg the SVG diagram to minify
+     * @return the minified SVG diagram, encoded in UTF-8
+     * @throws IOException when the SVG diagram is not valid XML
+     */
+    public static byte[] minify(byte[] svg) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(svg.length);
+        minify(new ByteArrayInputStream(svg), outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @param inputStream the SVG diagram to minify
+     * @param outputStream the stream into which the minified SVG diagram is written, encoded in UTF-8
+     * @throws IOException when the SVG diagram is not valid XML or fails to be written
+     */
+    public static void minify(InputStream inputStream, OutputStream outputStream) throws IOException
+    {
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(inputStream);
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                copy(reader, writer);
+                writer.flush();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to minify the SVG diagram", e);
+        }
+    }
+
+    private static void copy(XMLStreamReader reader, Writer writer) throws XMLStreamException, IOException
+    {
+        // The start tag is closed only when the next event is known, in order to write the empty elements as <a/>.
+        boolean startTagOpen = false;
+        int removedDepth = 0;
+        int preservedTextDepth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (removedDepth > 0) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    removedDepth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    removedDepth--;
+                }
+                continue;
+            }
+
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (REMOVED_ELEMENTS.contains(reader.getLocalName())) {
+                        removedDepth = 1;
+                        break;
+                    }
+                    if (preservedTextDepth > 0 || PRESERVED_TEXT_ELEMENTS.contains(reader.getLocalName())) {
+                        preservedTextDepth++;
+                    }
+                    closeStartTag(writer, startTagOpen);
+                    writeStartTag(reader, writer);
+                    startTagOpen = true;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (preservedTextDepth > 0) {
+                        preservedTextDepth--;
+                    }
+                    if (startTagOpen) {
+                        writer.write("/>");
+                    } else {
+                        writer.write("</");
+                        writer.write(getName(reader.getPrefix(), reader.getLocalName()));
+                        writer.write('>');
+                    }
+                    startTagOpen = false;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    // Drop the indentation.
+                    if (preservedTextDepth > 0 || !reader.isWhiteSpace()) {
+                        closeStartTag(writer, startTagOpen);
+                        startTagOpen = false;
+                        writeEscaped(writer, reader.getText(), false);
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    // Keep the CDATA sections since the style and script elements of an inlined SVG are not XML.
+                    closeStartTag(writer, startTagOpen);
+                    startTagOpen = false;
+                    writer.write("<![CDATA[");
+                    writer.write(reader.getText());
+                    writer.write("]]>");
+                    break;
+                default:
+                    // Drop the XML declaration, the comments and the processing instructions.
+                    break;
+            }
+        }
+    }
+
+    private static void writeStartTag(XMLStreamReader reader, Writer writer) throws IOException
+    {
+        writer.write('<');
+        writer.write(getName(reader.getPrefix(), reader.getLocalName()));
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            writer.write(' ');
+            writer.write(getName("xmlns", reader.getNamespacePrefix(i)));
+            writer.write("=\"");
+            writeEscaped(writer, reader.getNamespaceURI(i), true);
+            writer.write('"');
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String name = reader.getAttributeLocalName(i);
+            String value = reader.getAttributeValue(i);
+            if (StringUtils.isEmpty(reader.getAttributeNamespace(i)) && NUMERIC_ATTRIBUTES.contains(name)) {
+                value = removeTrailingZeros(value);
+            }
+            writer.write(' ');
+            writer.write(getName(reader.getAttributePrefix(i), name));
+            writer.write("=\"");
+            writeEscaped(writer, value, true);
+            writer.write('"');
+        }
+    }
+
+    private static void closeStartTag(Writer writer, boolean startTagOpen) throws IOException
+    {
+        if (startTagOpen) {
+            writer.write('>');
+        }
+    }
+
+    private static String getName(String prefix, String localName)
+    {
+        if (StringUtils.isEmpty(prefix)) {
+            return localName;
+        } else if (StringUtils.isEmpty(localName)) {
+            // Default namespace declaration.
+            return prefix;
+        }
+        return prefix + ':' + localName;
+    }
+
+    private static String removeTrailingZeros(String value)
+    {
+        Matcher matcher = TRAILING_ZEROS.matcher(value);
+        if (!matcher.find()) {
+            return value;
+        }
+        StringBuffer result = new StringBuffer(value.length());
+        do {
+            matcher.appendReplacement(result, "$1");
+            if (matcher.group(2) != null) {
+                result.append(matcher.group(2));
+            }
+        } while (matcher.find());
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private static void writeEscaped(Writer writer, String text, boolean attribute) throws IOException
+    {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write(attribute ? ">" : "&gt;");
+                    break;
+                case '"':
+                    writer.write(attribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    // The white spaces of the attribute values would be normalized when parsed again.
+                    writer.write(attribute ? "&#" + (int) c + ';' : String.valueOf(c));
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        if (factory.isPropertySupported(REPORT_CDATA)) {
+            factory.setProperty(REPORT_CDATA, true);
+        }
+        return factory;
+    }
+}
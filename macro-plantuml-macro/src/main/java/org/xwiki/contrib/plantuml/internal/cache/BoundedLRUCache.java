@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Map bounded by the total size of its values, evicting the least recently used entries when it gets too big. Unlike
+ * the caches provided by the {@code CacheManager}, which are bounded by their number of entries, the size of each
+ * value is taken into account, which matters for the cached diagrams since their size varies a lot. A weigher returning
+ * 1 bounds the number of entries instead.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ * @version $Id$
+ * @since 2.5
+ */
+public final class BoundedLRUCache<K, V>
+{
+    private final long maxSize;
+
+    private final ToLongFunction<V> weigher;
+
+    private final BiConsumer<K, V> evictionListener;
+
+    /**
+     * The cached values, in access order so that the first entry is the least recently used one.
+     */
+    private final Map<K, V> entries = new LinkedHashMap<>(16, 0.75F, true);
+
+    private long size;
+
+    /**
+     * @param maxSize the maximum total size of the cached values
+     * @param weigher computes the size of a cached value
+     * @param evictionListener called for each evicted entry, e.g. to release the resources associated with it
+     */
+    public BoundedLRUCache(long maxSize, ToLongFunction<V> weigher, BiConsumer<K, V> evictionListener)
+    {
+        this.maxSize = maxSize;
+        this.weigher = weigher;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @param maxSize the maximum total size of the cached values
+     * @param weigher computes the size of a cached value
+     */
+    public BoundedLRUCache(long maxSize, ToLongFunction<V> weigher)
+    {
+        this(maxSize, weigher, (key, value) -> { });
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value, or {@code null} if it's not in the cache
+     */
+    public synchronized V get(K key)
+    {
+        return this.entries.get(key);
+    }
+
+    /**
+     * Cache a value, evicting the least recently used values if the cache gets too big. The eviction listener is called
+     * once the cache is unlocked, so that a slow listener (e.g. deleting files) doesn't block the other threads.
+     *
+     * @param key the key
+     * @param value the value to cache
+     * @return {@code true} if the value has been cached, {@code false} if it's bigger than the cache
+     */
+    public boolean put(K key, V value)
+    {
+        List<Map.Entry<K, V>> evictedEntries = new ArrayList<>();
+        boolean cached;
+        synchronized (this) {
+            cached = put(key, value, evictedEntries);
+        }
+        notifyEviction(evictedEntries);
+        return cached;
+    }
+
+    /**
+     * @param key the key
+     * @param mappingFunction creates the value to cache when there's none
+     * @return the cached value, created and cached if it was not in the cache
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction)
+    {
+        List<Map.Entry<K, V>> evictedEntries = new ArrayList<>();
+        V value;
+        synchronized (this) {
+            value = this.entries.get(key);
+            if (value == null) {
+                value = mappingFunction.apply(key);
+                put(key, value, evictedEntries);
+            }
+        }
+        notifyEviction(evictedEntries);
+        return value;
+    }
+
+    /**
+     * @param key the key
+     * @return the removed value, or {@code null} if it was not in the cache
+     */
+    public synchronized V remove(K key)
+    {
+        V value = this.entries.remove(key);
+        if (value != null) {
+            this.size -= this.weigher.applyAsLong(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return a copy of the cached entries, from the least recently used one to the most recently used one
+     */
+    public synchronized Map<K, V> toMap()
+    {
+        return new LinkedHashMap<>(this.entries);
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public synchronized int getEntryCount()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the total size of the cached values
+     */
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+
+    private boolean put(K key, V value, List<Map.Entry<K, V>> evictedEntries)
+    {
+        // Don't flush the whole cache for a single huge value.
+        long valueSize = this.weigher.applyAsLong(value);
+        if (valueSize > this.maxSize) {
+            return false;
+        }
+
+        remove(key);
+        this.entries.put(key, value);
+        this.size += valueSize;
+
+        Iterator<Map.Entry<K, V>> iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            iterator.remove();
+            this.size -= this.weigher.applyAsLong(entry.getValue());
+            evictedEntries.add(entry);
+        }
+        return true;
+    }
+
+    private void notifyEviction(List<Map.Entry<K, V>> evictedEntries)
+    {
+        for (Map.Entry<K, V> entry : evictedEntries) {
+            this.evictionListener.accept(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.sourceforge.plantuml.dot.ExeState;
+import net.sourceforge.plantuml.dot.Graphviz;
+import net.sourceforge.plantuml.dot.ProcessState;
+
+/**
+ * GraphViz implementation returning the cached layout of the DOT graph when there is one, and caching the layout
+ * computed by the wrapped implementation otherwise.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+final class CachingGraphviz implements Graphviz
+{
+    private final Graphviz graphviz;
+
+    private final GraphvizLayoutCache layoutCache;
+
+    private final String dotString;
+
+    private final String[] types;
+
+    CachingGraphviz(Graphviz graphviz, GraphvizLayoutCache layoutCache, String dotString, String... types)
+    {
+        this.graphviz = graphviz;
+        this.layoutCache = layoutCache;
+        this.dotString = dotString;
+        this.types = types;
+    }
+
+    @Override
+    public ProcessState createFile3(OutputStream os)
+    {
+        String key = this.layoutCache.getKey(this.dotString, String.valueOf(this.graphviz.getDotExe()), this.types);
+        try {
+            byte[] layout = this.layoutCache.get(key);
+            if (layout != null) {
+                os.write(layout);
+                return ProcessState.TERMINATED_OK();
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ProcessState state = this.graphviz.createFile3(buffer);
+            layout = buffer.toByteArray();
+            // Don't cache the partial output of a failed or interrupted process.
+            if (!state.differs(ProcessState.TERMINATED_OK()) && layout.length > 0) {
+                this.layoutCache.put(key, layout);
+            }
+            os.write(layout);
+            return state;
+        } catch (IOException e) {
+            return ProcessState.EXCEPTION(e);
+        }
+    }
+
+    @Override
+    public File getDotExe()
+    {
+        return this.graphviz.getDotExe();
+    }
+
+    @Override
+    public String dotVersion()
+    {
+        return this.graphviz.dotVersion();
+    }
+
+    @Override
+    public ExeState getExeState()
+    {
+        return this.graphviz.getExeState();
+    }
+
+    @Override
+    public boolean graphviz244onWindows()
+    {
+        return this.graphviz.graphviz244onWindows();
+    }
+}
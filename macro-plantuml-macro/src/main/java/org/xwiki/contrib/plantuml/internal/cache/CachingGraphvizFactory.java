@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sourceforge.plantuml.dot.Graphviz;
+import net.sourceforge.plantuml.dot.GraphvizFactory;
+import net.sourceforge.plantuml.dot.GraphvizUtils;
+import net.sourceforge.plantuml.style.ISkinParam;
+
+/**
+ * Wraps the GraphViz implementation chosen by PlantUML so that the computed layouts are cached in the
+ * {@link GraphvizLayoutCache}. PlantUML looks for the GraphViz factories with the {@link java.util.ServiceLoader}, so
+ * this factory is not a component and only caches the layouts once the PlantUML generator has passed it the
+ * {@link GraphvizLayoutCache} component (see {@link #setLayoutCache(GraphvizLayoutCache)}).
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class CachingGraphvizFactory implements GraphvizFactory
+{
+    private static final AtomicReference<GraphvizLayoutCache> LAYOUT_CACHE = new AtomicReference<>();
+
+    /**
+     * Set while the wrapped GraphViz implementation is created, since PlantUML asks this factory again.
+     */
+    private static final ThreadLocal<Boolean> CREATING = new ThreadLocal<>();
+
+    /**
+     * Start caching the GraphViz layouts.
+     *
+     * @param layoutCache the cache in which the layouts are stored
+     */
+    public static void setLayoutCache(GraphvizLayoutCache layoutCache)
+    {
+        LAYOUT_CACHE.set(layoutCache);
+    }
+
+    /**
+     * Stop caching the GraphViz layouts in the passed cache.
+     *
+     * @param layoutCache the cache in which the layouts were stored
+     */
+    public static void removeLayoutCache(GraphvizLayoutCache layoutCache)
+    {
+        // Keep the cache of a newer instance of the extension (e.g. after an upgrade).
+        LAYOUT_CACHE.compareAndSet(layoutCache, null);
+    }
+
+    @Override
+    public Graphviz create(ISkinParam skinParam, String dotString, String... type)
+    {
+        GraphvizLayoutCache layoutCache = LAYOUT_CACHE.get();
+        if (layoutCache == null || CREATING.get() != null) {
+            // Let PlantUML use the next factory or its default implementation.
+            return null;
+        }
+
+        Graphviz graphviz;
+        CREATING.set(Boolean.TRUE);
+        try {
+            graphviz = GraphvizUtils.create(skinParam, dotString, type);
+        } finally {
+            CREATING.remove();
+        }
+
+        return new CachingGraphviz(graphviz, layoutCache, dotString, type);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.environment.Environment;
+
+/**
+ * Persistent cache of generated diagrams, stored on disk and addressed by the SHA-256 hash of everything that
+ * influences the generated diagram (see {@link DiagramKey}). This allows identical diagrams to be generated only once,
+ * whatever the page or wiki they're in, and even across restarts. The least recently used diagrams are removed when
+ * the cache exceeds its configured size.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = DiagramCache.class)
+@Singleton
+public class DiagramCache implements Initializable
+{
+    private static final String CACHE_DIRECTORY = "cache/plantuml";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private File cacheDirectory;
+
+    /**
+     * The size of each cached diagram.
+     */
+    private BoundedLRUCache<String, Long> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.cacheDirectory = new File(this.environment.getPermanentDirectory(), CACHE_DIRECTORY);
+        this.entries = new BoundedLRUCache<>(this.configuration.getCacheMaxSize() * MEGABYTE, Long::longValue,
+            (hash, size) -> delete(getFile(hash)));
+
+        // Load the diagrams stored before the last restart, from the least recently used one to the most recently used
+        // one.
+        if (this.cacheDirectory.isDirectory()) {
+            try (Stream<Path> files = Files.walk(this.cacheDirectory.toPath())) {
+                files.filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .filter(this::isNotTemporary)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .forEach(file -> {
+                        if (!this.entries.put(file.getName(), file.length())) {
+                            delete(file);
+                        }
+                    });
+            } catch (IOException e) {
+                throw new InitializationException(
+                    String.format("Failed to load the PlantUML diagram cache from [%s]", this.cacheDirectory), e);
+            }
+        }
+    }
+
+    /**
+     * @param key the diagram key
+     * @return the cached diagram or {@code null} if it's not in the cache
+     */
+    public byte[] get(DiagramKey key)
+    {
+        if (contains(key)) {
+            File file = getFile(key.getHash());
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                touch(file);
+                this.hitCount.incrementAndGet();
+                return data;
+            } catch (IOException e) {
+                this.logger.warn("Failed to read the cached PlantUML diagram [{}]. Root cause: [{}]", file,
+                    ExceptionUtils.getRootCauseMessage(e));
+                this.entries.remove(key.getHash());
+            }
+        }
+
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Copy a cached diagram to the passed output stream without loading it in memory. When the output stream is a
+     * file, the diagram is transferred directly from the cache file to the target file.
+     *
+     * @param key the diagram key
+     * @param outputStream the stream into which the cached diagram is written
+     * @return {@code true} if the diagram has been copied, {@code false} if it's not in the cache (in which case nothing
+     *         is written)
+     * @throws IOException when the copy fails after the diagram started to be written
+     */
+    public boolean copyTo(DiagramKey key, OutputStream outputStream) throws IOException
+    {
+        if (contains(key)) {
+            File file = getFile(key.getHash());
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                try {
+                    copy(source, outputStream);
+                } catch (IOException e) {
+                    this.entries.remove(key.getHash());
+                    throw e;
+                }
+                touch(file);
+                this.hitCount.incrementAndGet();
+                return true;
+            } catch (NoSuchFileException e) {
+                // The diagram has been evicted in the meantime.
+                this.entries.remove(key.getHash());
+            }
+        }
+
+        // The miss is counted when the caller falls back on get().
+        return false;
+    }
+
+    /**
+     * Store a generated diagram in the cache, evicting the least recently used diagrams if the cache gets too big.
+     *
+     * @param key the diagram key
+     * @param data the generated diagram
+     */
+    public void put(DiagramKey key, byte[] data)
+    {
+        File file = getFile(key.getHash());
+        try {
+            // Write in a temporary file first so that a partially written diagram is never read.
+            Files.createDirectories(file.getParentFile().toPath());
+            Path temporaryFile =
+                Files.createTempFile(file.getParentFile().toPath(), key.getHash(), TEMPORARY_SUFFIX);
+            try {
+                Files.write(temporaryFile, data);
+                Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to store the PlantUML diagram [{}] in the cache. Root cause: [{}]", file,
+                ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+
+        if (!this.entries.put(key.getHash(), (long) data.length)) {
+            delete(file);
+        }
+    }
+
+    /**
+     * @param key the diagram key
+     * @return {@code true} if the diagram is in the cache, {@code false} otherwise
+     */
+    public boolean contains(DiagramKey key)
+    {
+        return this.entries.get(key.getHash()) != null;
+    }
+
+    /**
+     * @return the number of times a diagram has been found in the cache
+     */
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return the number of times a diagram has not been found in the cache
+     */
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    /**
+     * @return the number of cached diagrams
+     */
+    public int getEntryCount()
+    {
+        return this.entries.getEntryCount();
+    }
+
+    /**
+     * @return the total size (in bytes) of the cached diagrams
+     */
+    public long getSize()
+    {
+        return this.entries.getSize();
+    }
+
+    private void copy(FileChannel source, OutputStream outputStream) throws IOException
+    {
+        // Transfer directly between the files when possible, without going through the heap.
+        WritableByteChannel target = outputStream instanceof FileOutputStream
+            ? ((FileOutputStream) outputStream).getChannel() : Channels.newChannel(outputStream);
+        long position = 0;
+        long size = source.size();
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+    }
+
+    private void touch(File file)
+    {
+        // Remember the access so that the least recently used order survives restarts.
+        try {
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            this.logger.debug("Failed to update the last access time of [{}]", file, e);
+        }
+    }
+
+    private void delete(File file)
+    {
+        if (!file.delete() && file.exists()) {
+            this.logger.warn("Failed to remove the PlantUML diagram [{}] from the cache", file);
+        }
+    }
+
+    private boolean isNotTemporary(File file)
+    {
+        // Remove the diagrams that were being written when the server stopped.
+        if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+            file.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private File getFile(String key)
+    {
+        // Spread the diagrams in sub directories to avoid having too many files in the same directory.
+        return new File(new File(this.cacheDirectory, key.substring(0, 2)), key);
+    }
+}
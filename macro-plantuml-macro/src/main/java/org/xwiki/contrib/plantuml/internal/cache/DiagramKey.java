@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+import net.sourceforge.plantuml.version.Version;
+
+/**
+ * Identifies a generated diagram by everything that influences it: the diagram source (including the markers and the
+ * title added by the macro), the output format, the PlantUML server, the PlantUML version and the post-processing
+ * applied to the generated diagram. The SHA-256 hash of all of them is computed once, when the key is created, and
+ * identifies the diagram in the caches and the image storage.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public final class DiagramKey
+{
+    private static final String SEPARATOR = "\n";
+
+    private final String content;
+
+    private final String serverURL;
+
+    private final PlantUMLDiagramFormat format;
+
+    private final String processing;
+
+    private final String hash;
+
+    /**
+     * @param content the textual definition of the diagram
+     * @param serverURL the (optional) PlantUML server URL used to generate the diagram
+     * @param format the diagram output format
+     */
+    public DiagramKey(String content, String serverURL, PlantUMLDiagramFormat format)
+    {
+        this(content, serverURL, format, null);
+    }
+
+    /**
+     * @param content the textual definition of the diagram
+     * @param serverURL the (optional) PlantUML server URL used to generate the diagram
+     * @param format the diagram output format
+     * @param processing identifies the (optional) post-processing applied to the generated diagram, including its
+     *            settings
+     */
+    public DiagramKey(String content, String serverURL, PlantUMLDiagramFormat format, String processing)
+    {
+        this.content = content;
+        this.serverURL = serverURL;
+        this.format = format;
+        this.processing = processing;
+        this.hash = computeHash();
+    }
+
+    /**
+     * @return the textual definition of the diagram
+     */
+    public String getContent()
+    {
+        return this.content;
+    }
+
+    /**
+     * @return the (optional) PlantUML server URL used to generate the diagram
+     */
+    public String getServerURL()
+    {
+        return this.serverURL;
+    }
+
+    /**
+     * @return the diagram output format
+     */
+    public PlantUMLDiagramFormat getFormat()
+    {
+        return this.format;
+    }
+
+    /**
+     * @return identifies the (optional) post-processing applied to the generated diagram, including its settings
+     */
+    public String getProcessing()
+    {
+        return this.processing;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 hash of everything influencing the generated diagram
+     */
+    public String getHash()
+    {
+        return this.hash;
+    }
+
+    private String computeHash()
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(StringUtils.defaultString(this.content).getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(this.format.name().getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(StringUtils.defaultString(this.serverURL).getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(Version.versionString().getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(StringUtils.defaultString(this.processing).getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        // The hash covers all the other fields.
+        return object == this || (object instanceof DiagramKey && this.hash.equals(((DiagramKey) object).hash));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.hash.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.hash;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+
+/**
+ * In-memory cache of the layouts computed by GraphViz, to avoid starting a {@code dot} process for the diagrams whose
+ * layout has already been computed. PlantUML describes the layout of the diagram elements in a DOT graph which doesn't
+ * contain their text, only their size, so diagrams with the same structure (e.g. the same diagram with a different
+ * title or output format) share the same layout. The cache is bounded by the total size of the cached layouts.
+ * <p>
+ * The layouts are cached by {@link CachingGraphvizFactory}, which is instantiated by PlantUML and uses this cache once
+ * the PlantUML generator has passed it, when the layout cache is enabled.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = GraphvizLayoutCache.class)
+@Singleton
+public class GraphvizLayoutCache implements Initializable
+{
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    private static final String SEPARATOR = "\n";
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    private BoundedLRUCache<String, byte[]> entries;
+
+    private long hitCount;
+
+    private long missCount;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.entries =
+            new BoundedLRUCache<>(this.configuration.getLayoutCacheMaxSize() * MEGABYTE, layout -> layout.length);
+    }
+
+    /**
+     * @param dotString the DOT graph passed to GraphViz
+     * @param dotExe the path of the {@code dot} executable, which can change while the wiki is running
+     * @param types the output types requested to GraphViz
+     * @return the hex encoded SHA-256 hash identifying the layout in the cache
+     */
+    public String getKey(String dotString, String dotExe, String... types)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(dotString.getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(String.join(",", types).getBytes(StandardCharsets.UTF_8));
+            digest.update(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+            digest.update(dotExe.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key the layout key
+     * @return the cached layout or {@code null} if it's not in the cache
+     */
+    public synchronized byte[] get(String key)
+    {
+        byte[] layout = this.entries.get(key);
+        if (layout != null) {
+            this.hitCount++;
+        } else {
+            this.missCount++;
+        }
+        return layout;
+    }
+
+    /**
+     * Cache a computed layout, evicting the least recently used layouts if the cache gets too big.
+     *
+     * @param key the layout key
+     * @param layout the output of GraphViz
+     */
+    public void put(String key, byte[] layout)
+    {
+        this.entries.put(key, layout);
+    }
+
+    /**
+     * @return the number of times a layout has been found in the cache
+     */
+    public synchronized long getHitCount()
+    {
+        return this.hitCount;
+    }
+
+    /**
+     * @return the number of times a layout has not been found in the cache and was computed by GraphViz
+     */
+    public synchronized long getMissCount()
+    {
+        return this.missCount;
+    }
+
+    /**
+     * @return the number of cached layouts
+     */
+    public int getEntryCount()
+    {
+        return this.entries.getEntryCount();
+    }
+}
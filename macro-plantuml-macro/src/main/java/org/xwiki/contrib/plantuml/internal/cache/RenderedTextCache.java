@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+
+/**
+ * In-memory cache of the diagrams generated as text (SVG, ASCII art), to avoid reading them from disk or generating
+ * them again each time the macro is executed. The cache is bounded by the total size of the cached texts and each
+ * entry expires after a configured time.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = RenderedTextCache.class)
+@Singleton
+public class RenderedTextCache implements Initializable
+{
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    private long timeToLive;
+
+    private BoundedLRUCache<String, Entry> entries;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private static final class Entry
+    {
+        private final String text;
+
+        private final long size;
+
+        private final long expirationTime;
+
+        Entry(String text, long size, long expirationTime)
+        {
+            this.text = text;
+            this.size = size;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.entries =
+            new BoundedLRUCache<>(this.configuration.getMemoryCacheMaxSize() * MEGABYTE, entry -> entry.size);
+        this.timeToLive = TimeUnit.SECONDS.toNanos(this.configuration.getMemoryCacheTimeToLive());
+    }
+
+    /**
+     * @param key the diagram key
+     * @return the cached text or {@code null} if it's not in the cache or has expired
+     */
+    public synchronized String get(DiagramKey key)
+    {
+        Entry entry = this.entries.get(key.getHash());
+        if (entry != null) {
+            if (entry.expirationTime - System.nanoTime() > 0) {
+                this.hitCount++;
+                return entry.text;
+            }
+            this.entries.remove(key.getHash());
+        }
+        this.missCount++;
+        return null;
+    }
+
+    /**
+     * Cache a generated text, evicting the least recently used texts if the cache gets too big.
+     *
+     * @param key the diagram key
+     * @param text the generated text
+     * @param size the size (in bytes) of the generated text
+     */
+    public void put(DiagramKey key, String text, long size)
+    {
+        this.entries.put(key.getHash(), new Entry(text, size, System.nanoTime() + this.timeToLive));
+    }
+
+    /**
+     * @return the number of times a text has been found in the cache
+     */
+    public synchronized long getHitCount()
+    {
+        return this.hitCount;
+    }
+
+    /**
+     * @return the number of times a text has not been found in the cache
+     */
+    public synchronized long getMissCount()
+    {
+        return this.missCount;
+    }
+
+    /**
+     * @return the number of cached texts
+     */
+    public int getEntryCount()
+    {
+        return this.entries.getEntryCount();
+    }
+
+    /**
+     * @return the total size (in bytes) of the cached texts
+     */
+    public long getSize()
+    {
+        return this.entries.getSize();
+    }
+}
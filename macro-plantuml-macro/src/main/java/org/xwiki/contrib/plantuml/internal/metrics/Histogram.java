@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of recorded values (e.g. durations or sizes) in fixed buckets, cheap enough to be updated for each
+ * rendered diagram.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class Histogram
+{
+    private final long[] bounds;
+
+    /**
+     * The number of values in each bucket, the last one holding the values greater than the last bound.
+     */
+    private final AtomicLongArray counts;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param bounds the inclusive upper bounds of the buckets, in increasing order
+     */
+    public Histogram(long... bounds)
+    {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * @param value the value to record
+     */
+    public void record(long value)
+    {
+        int bucket = 0;
+        while (bucket < this.bounds.length && value > this.bounds[bucket]) {
+            bucket++;
+        }
+        this.counts.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return the current state of the histogram
+     */
+    public HistogramSnapshot snapshot()
+    {
+        // Cumulative counts, as usually exposed by monitoring systems.
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        long cumulativeCount = 0;
+        for (int i = 0; i < this.bounds.length; i++) {
+            cumulativeCount += this.counts.get(i);
+            buckets.put(String.valueOf(this.bounds[i]), cumulativeCount);
+        }
+        buckets.put("+Inf", cumulativeCount + this.counts.get(this.bounds.length));
+        return new HistogramSnapshot(this.count.get(), this.sum.get(), this.max.get(), buckets);
+    }
+}
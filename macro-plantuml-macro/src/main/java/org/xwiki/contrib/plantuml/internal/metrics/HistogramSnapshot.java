@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * The state of a {@link Histogram} at a given time, exposed through JMX.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class HistogramSnapshot
+{
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    private final Map<String, Long> buckets;
+
+    /**
+     * @param count the number of recorded values
+     * @param sum the sum of the recorded values
+     * @param max the greatest recorded value
+     * @param buckets the number of recorded values lower or equal to each bucket bound
+     */
+    @ConstructorProperties({ "count", "sum", "max", "buckets" })
+    public HistogramSnapshot(long count, long sum, long max, Map<String, Long> buckets)
+    {
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return the sum of the recorded values
+     */
+    public long getSum()
+    {
+        return this.sum;
+    }
+
+    /**
+     * @return the greatest recorded value
+     */
+    public long getMax()
+    {
+        return this.max;
+    }
+
+    /**
+     * @return the mean of the recorded values
+     */
+    public double getMean()
+    {
+        return this.count > 0 ? (double) this.sum / this.count : 0;
+    }
+
+    /**
+     * @return the number of recorded values lower or equal to each bucket bound (the keys), the last bucket being
+     *         {@code +Inf}
+     */
+    public Map<String, Long> getBuckets()
+    {
+        return this.buckets;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.manager.NamespacedComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.internal.RenderingExecutor;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramCache;
+import org.xwiki.contrib.plantuml.internal.cache.GraphvizLayoutCache;
+import org.xwiki.contrib.plantuml.internal.cache.RenderedTextCache;
+import org.xwiki.contrib.plantuml.internal.server.PlantUMLServerClient;
+
+/**
+ * Collects the PlantUML rendering metrics and exposes them as a JMX MXBean (see {@link PlantUMLMetricsMXBean}), so
+ * that they can be monitored with any JMX client or exporter.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = PlantUMLMetrics.class)
+@Singleton
+public class PlantUMLMetrics implements PlantUMLMetricsMXBean, Initializable, Disposable
+{
+    /**
+     * The name under which the metrics are registered in the platform MBean server. The namespace in which the
+     * extension is installed is added when it's not installed on the farm (e.g. {@code ,namespace="wiki:dev"}).
+     */
+    public static final String OBJECT_NAME = "org.xwiki.contrib.plantuml:type=Metrics";
+
+    /**
+     * The backend used when the diagrams are generated by PlantUML in the wiki.
+     */
+    public static final String BACKEND_EMBEDDED = "embedded";
+
+    /**
+     * The backend used when the diagrams are generated by a PlantUML server.
+     */
+    public static final String BACKEND_SERVER = "server";
+
+    /**
+     * Duration buckets, in milliseconds.
+     */
+    private static final long[] TIME_BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    /**
+     * Size buckets, in bytes.
+     */
+    private static final long[] SIZE_BOUNDS = { 1024, 4096, 16384, 65536, 262144, 1048576, 4194304 };
+
+    private static final String SEPARATOR = "/";
+
+    @Inject
+    private Provider<DiagramCache> diagramCacheProvider;
+
+    @Inject
+    private Provider<RenderedTextCache> textCacheProvider;
+
+    @Inject
+    private Provider<GraphvizLayoutCache> layoutCacheProvider;
+
+    @Inject
+    private Provider<RenderingExecutor> renderingExecutorProvider;
+
+    @Inject
+    private Provider<PlantUMLServerClient> serverClientProvider;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private Logger logger;
+
+    private ObjectName objectName;
+
+    private final ConcurrentMap<String, Histogram> renderTimes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Histogram> generationTimes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Histogram> outputSizes = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> serverResponseCounts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger inFlightRenders = new AtomicInteger();
+
+    private final AtomicLong macroExecutionCount = new AtomicLong();
+
+    private final AtomicLong asyncRenderCount = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            // Each namespace has its own instance of the extension.
+            String namespace = this.componentManager instanceof NamespacedComponentManager
+                ? ((NamespacedComponentManager) this.componentManager).getNamespace() : null;
+            this.objectName = new ObjectName(
+                namespace != null ? OBJECT_NAME + ",namespace=" + ObjectName.quote(namespace) : OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+        } catch (JMException e) {
+            // The metrics are not worth preventing the macro from working.
+            this.objectName = null;
+            this.logger.warn("Failed to register the PlantUML metrics in JMX. Root cause: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (JMException e) {
+                this.logger.debug("Failed to unregister the PlantUML metrics from JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Record the start of a diagram rendering.
+     *
+     * @return the start time, to pass to {@link #renderEnded(long, String, String, String)}
+     */
+    public long renderStarted()
+    {
+        this.inFlightRenders.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the end of a diagram rendering.
+     *
+     * @param startTime the value returned by {@link #renderStarted()}
+     * @param type the diagram type
+     * @param format the diagram format
+     * @param backend the backend used to generate the diagram, {@value #BACKEND_EMBEDDED} or {@value #BACKEND_SERVER}
+     */
+    public void renderEnded(long startTime, String type, String format, String backend)
+    {
+        this.inFlightRenders.decrementAndGet();
+        record(this.renderTimes, type + SEPARATOR + format + SEPARATOR + backend, TIME_BOUNDS,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Record an actual diagram generation.
+     *
+     * @param startTime the {@link System#nanoTime()} when the generation started
+     * @param format the diagram format
+     * @param backend the backend used to generate the diagram, {@value #BACKEND_EMBEDDED} or {@value #BACKEND_SERVER}
+     */
+    public void generated(long startTime, String format, String backend)
+    {
+        record(this.generationTimes, format + SEPARATOR + backend, TIME_BOUNDS,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Record the size of a generated diagram.
+     *
+     * @param format the diagram format
+     * @param size the size of the generated diagram
+     */
+    public void output(String format, long size)
+    {
+        record(this.outputSizes, format, SIZE_BOUNDS, size);
+    }
+
+    /**
+     * Record an execution of the macro.
+     */
+    public void macroExecuted()
+    {
+        this.macroExecutionCount.incrementAndGet();
+    }
+
+    /**
+     * Record an execution of the macro which hasn't been served by the asynchronous rendering cache.
+     */
+    public void asyncRendered()
+    {
+        this.asyncRenderCount.incrementAndGet();
+    }
+
+    /**
+     * Record the outcome of a call to a PlantUML server.
+     *
+     * @param outcome the HTTP status of the response, or {@code timeout}, {@code error} or {@code unavailable}
+     */
+    public void serverResponded(String outcome)
+    {
+        this.serverResponseCounts.computeIfAbsent(outcome, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getRenderTimes()
+    {
+        return snapshot(this.renderTimes, Histogram::snapshot);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getGenerationTimes()
+    {
+        return snapshot(this.generationTimes, Histogram::snapshot);
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getOutputSizes()
+    {
+        return snapshot(this.outputSizes, Histogram::snapshot);
+    }
+
+    @Override
+    public int getInFlightRenders()
+    {
+        return this.inFlightRenders.get();
+    }
+
+    @Override
+    public long getMacroExecutionCount()
+    {
+        return this.macroExecutionCount.get();
+    }
+
+    @Override
+    public long getAsyncRenderCount()
+    {
+        return this.asyncRenderCount.get();
+    }
+
+    @Override
+    public double getAsyncCacheHitRatio()
+    {
+        long executions = this.macroExecutionCount.get();
+        return executions > 0 ? Math.max(0, executions - this.asyncRenderCount.get()) / (double) executions : 0;
+    }
+
+    @Override
+    public double getDiagramCacheHitRatio()
+    {
+        DiagramCache diagramCache = this.diagramCacheProvider.get();
+        return ratio(diagramCache.getHitCount(), diagramCache.getMissCount());
+    }
+
+    @Override
+    public int getDiagramCacheEntryCount()
+    {
+        return this.diagramCacheProvider.get().getEntryCount();
+    }
+
+    @Override
+    public long getDiagramCacheSize()
+    {
+        return this.diagramCacheProvider.get().getSize();
+    }
+
+    @Override
+    public double getTextCacheHitRatio()
+    {
+        RenderedTextCache textCache = this.textCacheProvider.get();
+        return ratio(textCache.getHitCount(), textCache.getMissCount());
+    }
+
+    @Override
+    public double getLayoutCacheHitRatio()
+    {
+        GraphvizLayoutCache layoutCache = this.layoutCacheProvider.get();
+        return ratio(layoutCache.getHitCount(), layoutCache.getMissCount());
+    }
+
+    @Override
+    public int getLayoutCacheEntryCount()
+    {
+        return this.layoutCacheProvider.get().getEntryCount();
+    }
+
+    @Override
+    public Map<String, Long> getServerResponseCounts()
+    {
+        return snapshot(this.serverResponseCounts, AtomicLong::get);
+    }
+
+    @Override
+    public Map<String, String> getServerStates()
+    {
+        SortedMap<String, String> states = new TreeMap<>();
+        this.serverClientProvider.get().getCircuitBreakerStates()
+            .forEach((serverURL, state) -> states.put(serverURL, state.name()));
+        return states;
+    }
+
+    @Override
+    public int getActiveRenderingCount()
+    {
+        return this.renderingExecutorProvider.get().getActiveCount();
+    }
+
+    @Override
+    public int getRenderingQueueSize()
+    {
+        return this.renderingExecutorProvider.get().getQueueSize();
+    }
+
+    @Override
+    public long getRejectedRenderingCount()
+    {
+        return this.renderingExecutorProvider.get().getRejectedCount();
+    }
+
+    private void record(ConcurrentMap<String, Histogram> histograms, String key, long[] bounds, long value)
+    {
+        histograms.computeIfAbsent(key, k -> new Histogram(bounds)).record(value);
+    }
+
+    private <T, V> Map<String, V> snapshot(Map<String, T> values, Function<T, V> snapshot)
+    {
+        SortedMap<String, V> snapshots = new TreeMap<>();
+        values.forEach((key, value) -> snapshots.put(key, snapshot.apply(value)));
+        return snapshots;
+    }
+
+    private double ratio(long hitCount, long missCount)
+    {
+        long total = hitCount + missCount;
+        return total > 0 ? (double) hitCount / total : 0;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.util.Map;
+
+/**
+ * Exposes the PlantUML rendering metrics through JMX, under {@value PlantUMLMetrics#OBJECT_NAME}. All durations are
+ * in milliseconds and all sizes in bytes.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public interface PlantUMLMetricsMXBean
+{
+    /**
+     * @return the duration of the diagram renderings done by the macro (including the cache lookups), for each
+     *         {@code <type>/<format>/<backend>} combination, the backend being either {@code embedded} or
+     *         {@code server}
+     */
+    Map<String, HistogramSnapshot> getRenderTimes();
+
+    /**
+     * @return the duration of the actual diagram generations (by PlantUML or by the PlantUML server), for each
+     *         {@code <format>/<backend>} combination
+     */
+    Map<String, HistogramSnapshot> getGenerationTimes();
+
+    /**
+     * @return the size of the generated diagrams, for each format
+     */
+    Map<String, HistogramSnapshot> getOutputSizes();
+
+    /**
+     * @return the number of diagrams currently being rendered
+     */
+    int getInFlightRenders();
+
+    /**
+     * @return the number of executions of the macro
+     */
+    long getMacroExecutionCount();
+
+    /**
+     * @return the number of macro executions which weren't served by the asynchronous rendering cache
+     */
+    long getAsyncRenderCount();
+
+    /**
+     * @return the ratio of macro executions served by the asynchronous rendering cache
+     */
+    double getAsyncCacheHitRatio();
+
+    /**
+     * @return the ratio of generations served by the persistent diagram cache
+     */
+    double getDiagramCacheHitRatio();
+
+    /**
+     * @return the number of diagrams in the persistent diagram cache
+     */
+    int getDiagramCacheEntryCount();
+
+    /**
+     * @return the size of the persistent diagram cache
+     */
+    long getDiagramCacheSize();
+
+    /**
+     * @return the ratio of text renderings served by the in-memory text cache
+     */
+    double getTextCacheHitRatio();
+
+    /**
+     * @return the ratio of GraphViz layouts served by the in-memory layout cache
+     */
+    double getLayoutCacheHitRatio();
+
+    /**
+     * @return the number of GraphViz layouts in the in-memory layout cache
+     */
+    int getLayoutCacheEntryCount();
+
+    /**
+     * @return the number of responses of the PlantUML servers for each HTTP status, and the number of calls which
+     *         failed without response ({@code timeout}, {@code error}) or which were not made because the server
+     *         failed too many times recently ({@code unavailable})
+     */
+    Map<String, Long> getServerResponseCounts();
+
+    /**
+     * @return the state of the circuit breaker of each PlantUML server
+     */
+    Map<String, String> getServerStates();
+
+    /**
+     * @return the number of embedded generations currently running
+     */
+    int getActiveRenderingCount();
+
+    /**
+     * @return the number of embedded generations waiting for a free rendering thread
+     */
+    int getRenderingQueueSize();
+
+    /**
+     * @return the number of embedded generations rejected because the rendering queue was full
+     */
+    long getRejectedRenderingCount();
+}
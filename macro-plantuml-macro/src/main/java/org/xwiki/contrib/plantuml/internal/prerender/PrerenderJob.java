@@ -0,0 +1,218 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.prerender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.PlantUMLBatchRenderer;
+import org.xwiki.contrib.plantuml.internal.PlantUMLMacro;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.model.ModelContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.MacroBlockMatcher;
+import org.xwiki.rendering.macro.Macro;
+
+/**
+ * Generates in the background the diagrams of the PlantUML macros of some documents, so that the first display of
+ * these documents doesn't have to wait for them.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named(PrerenderJob.JOBTYPE)
+public class PrerenderJob extends AbstractJob<PrerenderRequest, DefaultJobStatus<PrerenderRequest>>
+    implements GroupedJob
+{
+    /**
+     * The id of the job type.
+     */
+    public static final String JOBTYPE = "plantuml.prerender";
+
+    /**
+     * The id of the PlantUML macro.
+     */
+    static final String MACRO_ID = "plantuml";
+
+    /**
+     * The beginning of a PlantUML macro call, used to find the documents which may contain one without parsing them.
+     */
+    static final String MACRO_CALL = "{{" + MACRO_ID;
+
+    /**
+     * The background generations are executed one after the other.
+     */
+    private static final JobGroupPath GROUP_PATH = new JobGroupPath(Arrays.asList(MACRO_ID, "prerender"));
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
+    @Inject
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private ModelContext modelContext;
+
+    @Inject
+    private PlantUMLBatchRenderer batchRenderer;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        return GROUP_PATH;
+    }
+
+    /**
+     * @param xdom the content of a document
+     * @return the PlantUML macro calls of the content
+     */
+    private static List<MacroBlock> getMacroBlocks(XDOM xdom)
+    {
+        return xdom.getBlocks(new MacroBlockMatcher(MACRO_ID), Block.Axes.DESCENDANT);
+    }
+
+    @Override
+    protected DefaultJobStatus<PrerenderRequest> createNewStatus(PrerenderRequest request)
+    {
+        DefaultJobStatus<PrerenderRequest> newStatus = super.createNewStatus(request);
+        newStatus.setCancelable(true);
+        return newStatus;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        List<DocumentReference> documents = new ArrayList<>(this.request.getDocuments());
+        for (String wiki : this.request.getWikis()) {
+            documents.addAll(getDocuments(wiki));
+        }
+
+        PlantUMLMacro macro = this.componentManager.getInstance(Macro.class, MACRO_ID);
+        int maxParallelism = this.configuration.getPrerenderMaxParallelism();
+        long delay = this.configuration.getPrerenderDelay();
+
+        this.progressManager.pushLevelProgress(documents.size(), this);
+        try {
+            for (DocumentReference document : documents) {
+                if (this.status.isCanceled()) {
+                    break;
+                }
+                this.progressManager.startStep(this);
+                prerender(macro, document, maxParallelism);
+                this.progressManager.endStep(this);
+
+                // Leave the resources needed to generate the diagrams to the documents being displayed.
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+        }
+    }
+
+    private List<DocumentReference> getDocuments(String wiki)
+    {
+        try {
+            List<String> documentNames = this.queryManager
+                .createQuery("select distinct doc.fullName from Document doc where doc.content like :macro",
+                    Query.XWQL)
+                .setWiki(wiki)
+                .bindValue("macro", "%" + MACRO_CALL + "%")
+                .execute();
+            WikiReference wikiReference = new WikiReference(wiki);
+            return documentNames.stream()
+                .map(documentName -> this.resolver.resolve(documentName, wikiReference))
+                .collect(Collectors.toList());
+        } catch (QueryException e) {
+            this.logger.warn("Failed to find the documents using the PlantUML macro in wiki [{}]. Root cause: [{}]",
+                wiki, ExceptionUtils.getRootCauseMessage(e));
+            return Collections.emptyList();
+        }
+    }
+
+    private void prerender(PlantUMLMacro macro, DocumentReference documentReference, int maxParallelism)
+        throws InterruptedException
+    {
+        EntityReference currentEntityReference = this.modelContext.getCurrentEntityReference();
+        try {
+            DocumentModelBridge document = this.documentAccessBridge.getDocumentInstance(documentReference);
+            List<MacroBlock> macroBlocks = getMacroBlocks(document.getXDOM());
+            if (!macroBlocks.isEmpty()) {
+                // Use the PlantUML configuration of the wiki of the document.
+                this.modelContext.setCurrentEntityReference(documentReference);
+                // The diagrams are stored for the current document, which is read from the XWiki context.
+                Map<String, Object> backupObjects = new HashMap<>();
+                this.documentAccessBridge.pushDocumentInContext(backupObjects, document);
+                try {
+                    // Wait for the diagrams so that a single document is handled at a time.
+                    this.batchRenderer.prepare(macro, macroBlocks, maxParallelism).get();
+                } finally {
+                    this.documentAccessBridge.popDocumentFromContext(backupObjects);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            this.logger.warn("Failed to generate the PlantUML diagrams of [{}]. Root cause: [{}]", documentReference,
+                ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            this.modelContext.setCurrentEntityReference(currentEntityReference);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.prerender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+/**
+ * Starts the background generation of the PlantUML diagrams when a document is saved and, optionally, when the wiki
+ * is started.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named(PrerenderListener.NAME)
+@Singleton
+public class PrerenderListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.plantuml.internal.prerender.PrerenderListener";
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private Provider<JobExecutor> jobExecutorProvider;
+
+    @Inject
+    private Provider<WikiDescriptorManager> wikiDescriptorManagerProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Default constructor.
+     */
+    public PrerenderListener()
+    {
+        super(NAME, new ApplicationReadyEvent(), new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        PrerenderRequest request = new PrerenderRequest();
+        if (event instanceof ApplicationReadyEvent) {
+            if (!this.configuration.isPrerenderOnStartupEnabled()) {
+                return;
+            }
+            try {
+                request.setWikis(new ArrayList<>(this.wikiDescriptorManagerProvider.get().getAllIds()));
+                request.setId(PrerenderJob.JOBTYPE, "startup");
+            } catch (Exception e) {
+                this.logger.warn("Failed to list the wikis in which to generate the PlantUML diagrams. "
+                    + "Root cause: [{}]", ExceptionUtils.getRootCauseMessage(e));
+                return;
+            }
+        } else {
+            DocumentModelBridge document = (DocumentModelBridge) source;
+            // Don't parse the document on the thread saving it: the job finds the macro calls, if any.
+            if (!this.configuration.isPrerenderOnSaveEnabled()
+                || !StringUtils.contains(document.getContent(), PrerenderJob.MACRO_CALL)) {
+                return;
+            }
+            request.setDocuments(Collections.singletonList(document.getDocumentReference()));
+            request.setId(PrerenderJob.JOBTYPE, document.getDocumentReference().toString());
+        }
+
+        try {
+            this.jobExecutorProvider.get().execute(PrerenderJob.JOBTYPE, request);
+        } catch (Exception e) {
+            this.logger.warn("Failed to start the generation of the PlantUML diagrams. Root cause: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.prerender;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The request of the {@link PrerenderJob}.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class PrerenderRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_DOCUMENTS = "documents";
+
+    private static final String PROPERTY_WIKIS = "wikis";
+
+    /**
+     * Default constructor.
+     */
+    public PrerenderRequest()
+    {
+        // Nobody needs the status of a past background generation.
+        setStatusSerialized(false);
+        setVerbose(false);
+    }
+
+    /**
+     * @return the documents for which to generate the diagrams
+     */
+    public Collection<DocumentReference> getDocuments()
+    {
+        return getProperty(PROPERTY_DOCUMENTS, Collections.emptyList());
+    }
+
+    /**
+     * @param documents the documents for which to generate the diagrams
+     */
+    public void setDocuments(Collection<DocumentReference> documents)
+    {
+        setProperty(PROPERTY_DOCUMENTS, documents);
+    }
+
+    /**
+     * @return the wikis in which to generate the diagrams of all the documents using the PlantUML macro
+     */
+    public Collection<String> getWikis()
+    {
+        return getProperty(PROPERTY_WIKIS, Collections.emptyList());
+    }
+
+    /**
+     * @param wikis the wikis in which to generate the diagrams of all the documents using the PlantUML macro
+     */
+    public void setWikis(Collection<String> wikis)
+    {
+        setProperty(PROPERTY_WIKIS, wikis);
+    }
+}
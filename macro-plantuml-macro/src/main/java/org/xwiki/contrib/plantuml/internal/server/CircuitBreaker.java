@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+/**
+ * Stops calling a PlantUML server for some time after several consecutive failures, so that a slow or unavailable
+ * server doesn't keep the rendering threads busy.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+public class CircuitBreaker
+{
+    /**
+     * The state of the circuit breaker.
+     */
+    public enum State
+    {
+        /**
+         * The server is called normally.
+         */
+        CLOSED,
+
+        /**
+         * The server is not called anymore until the end of the cooldown period.
+         */
+        OPEN,
+
+        /**
+         * The cooldown period is over and a single trial call is allowed to check if the server is back.
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long cooldown;
+
+    private State state = State.CLOSED;
+
+    private int failureCount;
+
+    private long openedTime;
+
+    private boolean trialInProgress;
+
+    /**
+     * @param failureThreshold the number of consecutive failures after which the server is not called anymore
+     * @param cooldown the time (in milliseconds) during which the server is not called after too many failures
+     */
+    public CircuitBreaker(int failureThreshold, long cooldown)
+    {
+        this.failureThreshold = failureThreshold;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * @return {@code true} if the server can be called, {@code false} otherwise
+     */
+    public synchronized boolean allowRequest()
+    {
+        if (this.state == State.OPEN && System.currentTimeMillis() - this.openedTime >= this.cooldown) {
+            this.state = State.HALF_OPEN;
+        }
+        if (this.state == State.HALF_OPEN) {
+            // Only let a single call check if the server is back.
+            if (this.trialInProgress) {
+                return false;
+            }
+            this.trialInProgress = true;
+            return true;
+        }
+        return this.state == State.CLOSED;
+    }
+
+    /**
+     * Record a successful call to the server.
+     */
+    public synchronized void recordSuccess()
+    {
+        this.state = State.CLOSED;
+        this.failureCount = 0;
+        this.trialInProgress = false;
+    }
+
+    /**
+     * Record a failed call to the server.
+     */
+    public synchronized void recordFailure()
+    {
+        this.failureCount++;
+        if (this.state == State.HALF_OPEN || this.failureCount >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedTime = System.currentTimeMillis();
+        }
+        this.trialInProgress = false;
+    }
+
+    /**
+     * @return the current state of the circuit breaker
+     */
+    public synchronized State getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    public synchronized int getFailureCount()
+    {
+        return this.failureCount;
+    }
+}
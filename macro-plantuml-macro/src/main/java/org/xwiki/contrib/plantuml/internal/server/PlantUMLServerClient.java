@@ -0,0 +1,512 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.cache.BoundedLRUCache;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+
+/**
+ * Shared HTTP client used to call remote PlantUML servers. The underlying connections are pooled and kept alive so
+ * that rendering several diagrams doesn't pay a new TCP (and TLS) handshake for each of them. The calls can also be
+ * made asynchronously, in which case no thread is blocked while waiting for the servers.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = PlantUMLServerClient.class)
+@Singleton
+public class PlantUMLServerClient implements Initializable, Disposable
+{
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of servers whose health is tracked. The server URL can be passed as a macro parameter so we
+     * don't keep the state of all the servers ever called.
+     */
+    private static final int MAX_TRACKED_SERVERS = 100;
+
+    private static final String UNAVAILABLE = "unavailable";
+
+    private static final String ERROR = "error";
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private ServerLoadBalancer loadBalancer;
+
+    @Inject
+    private PlantUMLMetrics metrics;
+
+    private CloseableHttpClient httpClient;
+
+    /**
+     * Created on first use since it starts its own I/O threads.
+     */
+    private CloseableHttpAsyncClient asyncHttpClient;
+
+    /**
+     * Used to abort the requests taking more time than the configured request timeout.
+     */
+    private ScheduledExecutorService timeoutScheduler;
+
+    private final BoundedLRUCache<String, CircuitBreaker> circuitBreakers =
+        new BoundedLRUCache<>(MAX_TRACKED_SERVERS, circuitBreaker -> 1);
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+            .setMaxConnTotal(this.configuration.getServerMaxConnections())
+            .setMaxConnPerRoute(this.configuration.getServerMaxConnectionsPerRoute())
+            .build();
+
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(createKeepAliveStrategy())
+            .evictExpiredConnections()
+            .evictIdleConnections(TimeValue.ofSeconds(this.configuration.getServerIdleTimeout()))
+            .build();
+
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PlantUML server timeout").daemon(true).build());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.timeoutScheduler.shutdownNow();
+        try {
+            this.httpClient.close();
+            synchronized (this) {
+                if (this.asyncHttpClient != null) {
+                    this.asyncHttpClient.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new ComponentLifecycleException("Failed to close the PlantUML server HTTP client", e);
+        }
+    }
+
+    /**
+     * Call the PlantUML server and copy the returned content into the passed output stream. When several replicas of
+     * the server are passed, the calls are distributed between them and a failed call is retried on another replica.
+     *
+     * @param serverURLs one or several replicas of the PlantUML server URL, separated by commas (e.g.
+     *        {@code https://www.plantuml.com/plantuml})
+     * @param path the path to call on the server (e.g. {@code png/<encoded diagram>})
+     * @param outputStream the stream into which the response content is written to
+     * @throws ServerUnavailableException when no server is called because they all failed too many times recently
+     * @throws IOException when the servers cannot be reached, are too slow or return an unexpected status
+     */
+    public void get(String serverURLs, String path, OutputStream outputStream) throws IOException
+    {
+        List<String> orderedServerURLs = this.loadBalancer.order(this.loadBalancer.split(serverURLs));
+        if (orderedServerURLs.isEmpty()) {
+            throw new IOException(String.format("Invalid PlantUML server URL [%s]", serverURLs));
+        } else if (orderedServerURLs.size() == 1) {
+            call(orderedServerURLs.get(0), path, outputStream);
+            return;
+        }
+
+        IOException failure = null;
+        for (String serverURL : orderedServerURLs) {
+            // Buffer the response so that nothing is written if the call fails and is retried on another server.
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try {
+                call(serverURL, path, buffer);
+                buffer.writeTo(outputStream);
+                return;
+            } catch (IOException e) {
+                // The other servers would answer the same to a client error (e.g. an invalid diagram).
+                if (isClientError(e)) {
+                    throw e;
+                }
+                failure = getFailure(failure, e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Asynchronous version of {@link #get(String, String, OutputStream)}: the calls are made without blocking the
+     * current thread, which allows calling the servers for many diagrams at the same time. Note that the returned
+     * future is completed by the HTTP client I/O threads so the dependent actions that can take time should be executed
+     * asynchronously.
+     *
+     * @param serverURLs one or several replicas of the PlantUML server URL, separated by commas (e.g.
+     *        {@code https://www.plantuml.com/plantuml})
+     * @param path the path to call on the server (e.g. {@code png/<encoded diagram>})
+     * @return the future response content, failed with a {@link ServerUnavailableException} when no server is called
+     *         because they all failed too many times recently, or with an {@link IOException} when the servers cannot
+     *         be reached, are too slow or return an unexpected status
+     */
+    public CompletableFuture<byte[]> getAsync(String serverURLs, String path)
+    {
+        List<String> orderedServerURLs = this.loadBalancer.order(this.loadBalancer.split(serverURLs));
+        if (orderedServerURLs.isEmpty()) {
+            return failed(new IOException(String.format("Invalid PlantUML server URL [%s]", serverURLs)));
+        }
+
+        return callAsync(orderedServerURLs, 0, path, null);
+    }
+
+    private CompletableFuture<byte[]> callAsync(List<String> serverURLs, int index, String path,
+        IOException previousFailure)
+    {
+        // Nothing is written before the call succeeds so there's no need to buffer the response to retry on another
+        // server.
+        return callAsync(serverURLs.get(index), path).handle((data, throwable) -> {
+            if (throwable == null) {
+                return CompletableFuture.completedFuture(data);
+            }
+            IOException e = toIOException(throwable);
+            // The other servers would answer the same to a client error (e.g. an invalid diagram).
+            if (isClientError(e)) {
+                return failed(e);
+            }
+            IOException failure = getFailure(previousFailure, e);
+            if (index + 1 < serverURLs.size()) {
+                return callAsync(serverURLs, index + 1, path, failure);
+            }
+            return failed(failure);
+        }).thenCompose(future -> future);
+    }
+
+    private void call(String serverURL, String path, OutputStream outputStream) throws IOException
+    {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(serverURL);
+        if (!circuitBreaker.allowRequest()) {
+            this.metrics.serverResponded(UNAVAILABLE);
+            throw new ServerUnavailableException(String.format(
+                "The PlantUML server [%s] is not called because it failed too many times recently", serverURL));
+        }
+
+        this.loadBalancer.begin(serverURL);
+        try {
+            execute(String.format("%s/%s", serverURL, path), outputStream);
+            circuitBreaker.recordSuccess();
+        } catch (IOException e) {
+            recordFailure(circuitBreaker, e);
+            throw e;
+        } catch (RuntimeException e) {
+            this.metrics.serverResponded(ERROR);
+            circuitBreaker.recordFailure();
+            throw e;
+        } finally {
+            this.loadBalancer.end(serverURL);
+        }
+    }
+
+    private CompletableFuture<byte[]> callAsync(String serverURL, String path)
+    {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(serverURL);
+        if (!circuitBreaker.allowRequest()) {
+            this.metrics.serverResponded(UNAVAILABLE);
+            return failed(new ServerUnavailableException(String.format(
+                "The PlantUML server [%s] is not called because it failed too many times recently", serverURL)));
+        }
+
+        String url = String.format("%s/%s", serverURL, path);
+        SimpleHttpRequest request = SimpleRequestBuilder.get(url).setRequestConfig(createRequestConfig()).build();
+        int requestTimeout = this.configuration.getServerRequestTimeout();
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        this.loadBalancer.begin(serverURL);
+        Future<SimpleHttpResponse> future;
+        try {
+            future = getAsyncHttpClient().execute(request, new FutureCallback<SimpleHttpResponse>()
+            {
+                @Override
+                public void completed(SimpleHttpResponse response)
+                {
+                    int status = response.getCode();
+                    if (status >= HttpStatus.SC_SUCCESS && status < HttpStatus.SC_REDIRECTION) {
+                        PlantUMLServerClient.this.metrics.serverResponded(String.valueOf(status));
+                        circuitBreaker.recordSuccess();
+                        byte[] content = response.getBodyBytes();
+                        result.complete(content != null ? content : new byte[0]);
+                    } else {
+                        fail(new HttpResponseException(status,
+                            String.format("Unexpected response status for [%s] : [%s]", url, status)));
+                    }
+                }
+
+                @Override
+                public void failed(Exception e)
+                {
+                    fail(e instanceof IOException ? (IOException) e
+                        : new IOException(String.format("Failed to call [%s]", url), e));
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    fail(new SocketTimeoutException(
+                        String.format("The call to [%s] took more than [%s] seconds", url, requestTimeout)));
+                }
+
+                private void fail(IOException e)
+                {
+                    recordFailure(circuitBreaker, e);
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // The client has been closed.
+            this.loadBalancer.end(serverURL);
+            this.metrics.serverResponded(ERROR);
+            circuitBreaker.recordFailure();
+            return failed(new IOException(String.format("Failed to call [%s]", url), e));
+        }
+
+        // The connect and response timeouts don't limit the total duration of the request (e.g. a server sending the
+        // response very slowly) so we abort the request ourselves.
+        ScheduledFuture<?> abort =
+            this.timeoutScheduler.schedule(() -> future.cancel(true), requestTimeout, TimeUnit.SECONDS);
+        result.whenComplete((content, throwable) -> {
+            abort.cancel(false);
+            this.loadBalancer.end(serverURL);
+        });
+
+        return result;
+    }
+
+    private synchronized CloseableHttpAsyncClient getAsyncHttpClient()
+    {
+        if (this.asyncHttpClient == null) {
+            PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder
+                .create()
+                .setMaxConnTotal(this.configuration.getServerMaxConnections())
+                .setMaxConnPerRoute(this.configuration.getServerMaxConnectionsPerRoute())
+                .build();
+
+            this.asyncHttpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                // Multiplex the calls on a single HTTP/2 connection when the server supports it.
+                .setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+                .setKeepAliveStrategy(createKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(this.configuration.getServerIdleTimeout()))
+                .build();
+            this.asyncHttpClient.start();
+        }
+
+        return this.asyncHttpClient;
+    }
+
+    private DefaultConnectionKeepAliveStrategy createKeepAliveStrategy()
+    {
+        TimeValue keepAlive = TimeValue.ofSeconds(this.configuration.getServerKeepAlive());
+        // Use the keep alive sent by the server when there's one and fallback to the configured one otherwise.
+        return new DefaultConnectionKeepAliveStrategy()
+        {
+            @Override
+            public TimeValue getKeepAliveDuration(HttpResponse response, HttpContext context)
+            {
+                TimeValue duration = super.getKeepAliveDuration(response, context);
+                return TimeValue.isPositive(duration) ? duration.min(keepAlive) : keepAlive;
+            }
+        };
+    }
+
+    private RequestConfig createRequestConfig()
+    {
+        return RequestConfig.custom()
+            .setConnectionRequestTimeout(Timeout.ofSeconds(this.configuration.getServerConnectTimeout()))
+            .setConnectTimeout(Timeout.ofSeconds(this.configuration.getServerConnectTimeout()))
+            .setResponseTimeout(Timeout.ofSeconds(this.configuration.getServerResponseTimeout()))
+            .build();
+    }
+
+    private void recordFailure(CircuitBreaker circuitBreaker, IOException e)
+    {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            this.metrics.serverResponded(String.valueOf(status));
+            // Client errors (e.g. an invalid diagram) don't mean that the server is unhealthy.
+            if (status >= HttpStatus.SC_SERVER_ERROR) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+        } else {
+            this.metrics.serverResponded(e instanceof SocketTimeoutException ? "timeout" : ERROR);
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    private boolean isClientError(IOException e)
+    {
+        return e instanceof HttpResponseException
+            && ((HttpResponseException) e).getStatusCode() < HttpStatus.SC_SERVER_ERROR;
+    }
+
+    private IOException getFailure(IOException previousFailure, IOException failure)
+    {
+        // Prefer reporting a real failure.
+        return failure instanceof ServerUnavailableException && previousFailure != null ? previousFailure : failure;
+    }
+
+    private IOException toIOException(Throwable throwable)
+    {
+        Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private static CompletableFuture<byte[]> failed(IOException e)
+    {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * @return the state of the circuit breaker of each PlantUML server called recently
+     */
+    public Map<String, CircuitBreaker.State> getCircuitBreakerStates()
+    {
+        return this.circuitBreakers.toMap().entrySet().stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().getState()));
+    }
+
+    private CircuitBreaker getCircuitBreaker(String serverURL)
+    {
+        return this.circuitBreakers.computeIfAbsent(serverURL,
+            key -> new CircuitBreaker(this.configuration.getServerFailureThreshold(),
+                TimeUnit.SECONDS.toMillis(this.configuration.getServerCooldown())));
+    }
+
+    private void execute(String url, OutputStream outputStream) throws IOException
+    {
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.setConfig(createRequestConfig());
+
+        // The connect and response timeouts don't limit the total duration of the request (e.g. a server sending the
+        // response very slowly) so we abort the request ourselves.
+        int requestTimeout = this.configuration.getServerRequestTimeout();
+        ScheduledFuture<?> abort = this.timeoutScheduler.schedule(() -> {
+            httpGet.cancel();
+        }, requestTimeout, TimeUnit.SECONDS);
+        try (CloseableHttpResponse response = this.httpClient.execute(httpGet)) {
+            handleResponse(response, outputStream, url);
+        } catch (IOException e) {
+            if (httpGet.isCancelled()) {
+                SocketTimeoutException timeoutException = new SocketTimeoutException(
+                    String.format("The call to [%s] took more than [%s] seconds", url, requestTimeout));
+                timeoutException.initCause(e);
+                throw timeoutException;
+            }
+            throw e;
+        } finally {
+            abort.cancel(false);
+        }
+    }
+
+    private void handleResponse(CloseableHttpResponse response, OutputStream outputStream, String url)
+        throws IOException
+    {
+        int status = response.getCode();
+        HttpEntity entity = response.getEntity();
+        if (status >= HttpStatus.SC_SUCCESS && status < HttpStatus.SC_REDIRECTION) {
+            this.metrics.serverResponded(String.valueOf(status));
+            if (entity != null) {
+                // Reading the content fully and closing the stream gives the connection back to the pool.
+                try (InputStream inputStream = entity.getContent()) {
+                    copy(inputStream, outputStream);
+                }
+            }
+        } else {
+            // Consume the content so that the connection can be reused.
+            EntityUtils.consume(entity);
+            throw new HttpResponseException(status,
+                String.format("Unexpected response status for [%s] : [%s]", url, status));
+        }
+    }
+
+    private void copy(InputStream inputStream, OutputStream outputStream) throws IOException
+    {
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
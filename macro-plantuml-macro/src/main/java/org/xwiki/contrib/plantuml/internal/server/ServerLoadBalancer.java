@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.cache.BoundedLRUCache;
+
+/**
+ * Distributes the calls between several replicas of a PlantUML server.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = ServerLoadBalancer.class)
+@Singleton
+public class ServerLoadBalancer
+{
+    /**
+     * The strategy calling each server in turn.
+     */
+    public static final String ROUND_ROBIN = "roundRobin";
+
+    /**
+     * The strategy calling first the server with the least calls in progress.
+     */
+    public static final String LEAST_REQUESTS = "leastRequests";
+
+    /**
+     * The maximum number of servers (or groups of replicas) whose state is tracked. The server URL can be passed as a
+     * macro parameter so we don't keep the state of all the servers ever called.
+     */
+    private static final int MAX_TRACKED_SERVERS = 100;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    private final BoundedLRUCache<List<String>, AtomicInteger> nextIndexes =
+        new BoundedLRUCache<>(MAX_TRACKED_SERVERS, index -> 1);
+
+    private final BoundedLRUCache<String, AtomicInteger> outstandingRequests =
+        new BoundedLRUCache<>(MAX_TRACKED_SERVERS, count -> 1);
+
+    /**
+     * @param serverURLs one or several PlantUML server URLs, separated by commas or white spaces
+     * @return the list of server URLs
+     */
+    public List<String> split(String serverURLs)
+    {
+        return Arrays.stream(StringUtils.split(serverURLs, ", \t\r\n"))
+            .map(serverURL -> StringUtils.removeEnd(serverURL, "/"))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @param serverURLs the replicas of the PlantUML server
+     * @return the replicas in the order in which they should be tried
+     */
+    public List<String> order(List<String> serverURLs)
+    {
+        if (serverURLs.size() < 2) {
+            return serverURLs;
+        }
+
+        // Rotate the servers so that each of them comes first in turn.
+        int index = Math.floorMod(
+            this.nextIndexes.computeIfAbsent(serverURLs, key -> new AtomicInteger()).getAndIncrement(),
+            serverURLs.size());
+        List<String> orderedServerURLs = new ArrayList<>(serverURLs);
+        Collections.rotate(orderedServerURLs, -index);
+
+        if (LEAST_REQUESTS.equals(this.configuration.getServerLoadBalancing())) {
+            // The sort is stable so the servers with the same number of calls in progress stay in round robin order.
+            orderedServerURLs.sort(Comparator.comparingInt(this::getOutstandingRequests));
+        }
+
+        return orderedServerURLs;
+    }
+
+    /**
+     * Record the start of a call to a server.
+     *
+     * @param serverURL the called server URL
+     */
+    public void begin(String serverURL)
+    {
+        this.outstandingRequests.computeIfAbsent(serverURL, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * Record the end of a call to a server.
+     *
+     * @param serverURL the called server URL
+     */
+    public void end(String serverURL)
+    {
+        // The server is not tracked anymore if it was forgotten while being called.
+        AtomicInteger count = this.outstandingRequests.get(serverURL);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of calls in progress for each server called recently
+     */
+    public Map<String, Integer> getOutstandingRequests()
+    {
+        return this.outstandingRequests.toMap().entrySet().stream()
+            .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().get()));
+    }
+
+    private int getOutstandingRequests(String serverURL)
+    {
+        AtomicInteger count = this.outstandingRequests.get(serverURL);
+        return count != null ? count.get() : 0;
+    }
+}
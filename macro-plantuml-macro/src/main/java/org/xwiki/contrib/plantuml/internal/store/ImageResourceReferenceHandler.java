@@ -0,0 +1,275 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.container.Container;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.DiagramGenerator;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.resource.AbstractResourceReferenceHandler;
+import org.xwiki.resource.ResourceReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+import org.xwiki.resource.ResourceType;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+/**
+ * Serves the generated images before the default temporary resource handler, in order to let the browsers cache them
+ * (and revalidate them with conditional requests) and to send the compressed copy of the SVG images to the browsers
+ * supporting it. The images which the current user is not allowed to view are left to the default handler, which
+ * denies the access.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named("plantuml/tmp")
+@Singleton
+public class ImageResourceReferenceHandler extends AbstractResourceReferenceHandler<ResourceType>
+{
+    /**
+     * Executed before the default temporary resource handler.
+     */
+    private static final int PRIORITY = 500;
+
+    private static final String GZIP = "gzip";
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String SVG_SUFFIX = ".svg";
+
+    private static final String WEAK_PREFIX = "W/";
+
+    /**
+     * The minimum time between two updates of the modification time of a served image, to avoid writing to the disk on
+     * each request.
+     */
+    private static final long ACCESS_RECORD_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    @Inject
+    private Container container;
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private DiagramGenerator diagramGenerator;
+
+    @Inject
+    private Logger logger;
+
+    @Override
+    public int getPriority()
+    {
+        return PRIORITY;
+    }
+
+    @Override
+    public List<ResourceType> getSupportedResourceReferences()
+    {
+        return Collections.singletonList(TemporaryResourceReference.TYPE);
+    }
+
+    @Override
+    public void handle(ResourceReference reference, ResourceReferenceHandlerChain chain)
+        throws ResourceReferenceHandlerException
+    {
+        TemporaryResourceReference temporaryResourceReference = (TemporaryResourceReference) reference;
+        if (TemporaryImageWriter.MODULE_ID.equals(temporaryResourceReference.getModuleId())
+            && this.container.getRequest() instanceof ServletRequest
+            && this.container.getResponse() instanceof ServletResponse) {
+            HttpServletRequest request = ((ServletRequest) this.container.getRequest()).getHttpServletRequest();
+            HttpServletResponse response = ((ServletResponse) this.container.getResponse()).getHttpServletResponse();
+            try {
+                if (handle(temporaryResourceReference, request, response)) {
+                    return;
+                }
+            } catch (IOException e) {
+                throw new ResourceReferenceHandlerException(
+                    String.format("Failed to send the PlantUML image [%s]", temporaryResourceReference), e);
+            }
+        }
+
+        // Let the default temporary resource handler deny the access or report the missing image.
+        chain.handleNext(reference);
+    }
+
+    private boolean handle(TemporaryResourceReference reference, HttpServletRequest request,
+        HttpServletResponse response) throws IOException
+    {
+        if (reference.getResourceName().endsWith(ImageSources.SOURCE_SUFFIX)) {
+            // The sources of the images are only used internally.
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return true;
+        }
+
+        String contentType = getContentType(reference.getResourceName());
+        File file = this.temporaryResourceStore.getTemporaryFile(reference);
+        EntityReference owner = reference.getOwningEntityReference();
+        if (contentType == null || owner == null || !this.authorization.hasAccess(Right.VIEW, owner)
+            || !(file.isFile() || restore(file))) {
+            // The default temporary resource handler checks the access rights itself and sends the error. Nothing is
+            // sent before, so that the browsers don't cache a missing image which can be generated again with the same
+            // URL.
+            return false;
+        }
+        recordAccess(file);
+
+        // The image id is computed from everything influencing the image so a given URL always returns the same image,
+        // whatever its encoding.
+        long maxAge = this.configuration.getImageStorageCacheMaxAge();
+        if (maxAge > 0) {
+            // Only let the shared caches (proxies, CDNs) keep the images which anyone is allowed to view.
+            String visibility = this.authorizationManager.hasAccess(Right.VIEW, null, owner) ? "public" : "private";
+            response.setHeader("Cache-Control", String.format("%s, max-age=%d, immutable", visibility, maxAge));
+        }
+        String entityTag = String.format("W/\"%s\"", reference.getResourceName());
+        response.setHeader("ETag", entityTag);
+        response.setDateHeader("Last-Modified", file.lastModified());
+        boolean svg = reference.getResourceName().endsWith(SVG_SUFFIX);
+        if (svg) {
+            response.addHeader("Vary", ACCEPT_ENCODING);
+        }
+
+        if (isNotModified(request, entityTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        File sentFile = file;
+        if (svg && StringUtils.contains(request.getHeader(ACCEPT_ENCODING), GZIP)) {
+            File compressedFile = this.temporaryResourceStore.getTemporaryFile(new TemporaryResourceReference(
+                TemporaryImageWriter.MODULE_ID, reference.getResourceName() + TemporaryImageWriter.COMPRESSED_SUFFIX,
+                owner));
+            if (compressedFile.isFile()) {
+                recordAccess(compressedFile);
+                response.setHeader("Content-Encoding", GZIP);
+                sentFile = compressedFile;
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setContentLengthLong(sentFile.length());
+        Files.copy(sentFile.toPath(), response.getOutputStream());
+        return true;
+    }
+
+    private String getContentType(String imageId)
+    {
+        if (imageId.endsWith(SVG_SUFFIX)) {
+            return "image/svg+xml";
+        } else if (imageId.endsWith(".png")) {
+            return "image/png";
+        }
+        return null;
+    }
+
+    private boolean isNotModified(HttpServletRequest request, String entityTag)
+    {
+        // The entity tags take precedence over the modification date.
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String opaqueTag = StringUtils.removeStart(entityTag, WEAK_PREFIX);
+            for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+                // Weak comparison.
+                String trimmedTag = tag.trim();
+                if ("*".equals(trimmedTag) || StringUtils.removeStart(trimmedTag, WEAK_PREFIX).equals(opaqueTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        try {
+            // The image sent for a given URL never changes, so the copy of the browser is up to date whatever its date
+            // (the modification time of the image is only updated when it's used, see recordAccess).
+            return request.getDateHeader("If-Modified-Since") >= 0;
+        } catch (IllegalArgumentException e) {
+            // Invalid date.
+            return false;
+        }
+    }
+
+    /**
+     * Generate again an image which has been removed from the storage (see {@link ImageStorageJanitor}) while it's
+     * still displayed by pages whose rendering is cached.
+     */
+    private boolean restore(File file)
+    {
+        try {
+            DiagramKey source = ImageSources.read(file);
+            if (source == null) {
+                return false;
+            }
+            TemporaryImageWriter.write(file, outputStream -> this.diagramGenerator.writeTo(source, outputStream));
+            return true;
+        } catch (IOException e) {
+            this.logger.warn("Failed to generate again the PlantUML image [{}]. Root cause: [{}]", file.getName(),
+                ExceptionUtils.getRootCauseMessage(e));
+            return false;
+        }
+    }
+
+    /**
+     * Remember that the image is still used, so that it's not removed by the image storage cleanup while it's displayed
+     * by pages whose rendering is cached (see {@link ImageStorageJanitor}).
+     */
+    private void recordAccess(File file)
+    {
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > ACCESS_RECORD_INTERVAL) {
+            file.setLastModified(now);
+            ImageSources.getFile(file).setLastModified(now);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Properties;
+
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+
+/**
+ * Reads and writes the source of the stored images, i.e. the key of the diagram displayed by each image, which is
+ * stored next to the image. It allows to generate an image again when it has been removed from the storage while it's
+ * still displayed, e.g. by a page whose rendering is cached.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+final class ImageSources
+{
+    /**
+     * The suffix of the file holding the source of an image.
+     */
+    static final String SOURCE_SUFFIX = ".source";
+
+    private static final String CONTENT = "content";
+
+    private static final String SERVER_URL = "serverURL";
+
+    private static final String FORMAT = "format";
+
+    private static final String PROCESSING = "processing";
+
+    private ImageSources()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param imageFile the image file
+     * @return the file holding the source of the passed image
+     */
+    static File getFile(File imageFile)
+    {
+        return new File(imageFile.getParentFile(), imageFile.getName() + SOURCE_SUFFIX);
+    }
+
+    /**
+     * @param key the key of the diagram displayed by an image
+     * @param outputStream the stream into which to write the source of the image
+     * @throws IOException when the source fails to be written
+     */
+    static void write(DiagramKey key, OutputStream outputStream) throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty(CONTENT, key.getContent());
+        properties.setProperty(FORMAT, key.getFormat().name());
+        if (key.getServerURL() != null) {
+            properties.setProperty(SERVER_URL, key.getServerURL());
+        }
+        if (key.getProcessing() != null) {
+            properties.setProperty(PROCESSING, key.getProcessing());
+        }
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        properties.store(writer, null);
+        writer.flush();
+    }
+
+    /**
+     * @param imageFile the image file
+     * @return the key of the diagram displayed by the passed image, or {@code null} if its source is not known
+     * @throws IOException when the source fails to be read
+     */
+    static DiagramKey read(File imageFile) throws IOException
+    {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(Files.newInputStream(getFile(imageFile).toPath()),
+            StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String content = properties.getProperty(CONTENT);
+        String format = properties.getProperty(FORMAT);
+        if (content == null || format == null) {
+            return null;
+        }
+        try {
+            return new DiagramKey(content, properties.getProperty(SERVER_URL), PlantUMLDiagramFormat.valueOf(format),
+                properties.getProperty(PROCESSING));
+        } catch (IllegalArgumentException e) {
+            // The format is not supported anymore.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.ApplicationStartedEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+
+/**
+ * Periodically removes the generated images from the temporary directory, so that the images which are not used
+ * anymore (e.g. because the diagram has been modified) don't accumulate. The images which haven't been used for too
+ * long are removed, and then the least recently used ones until the total size is below the configured maximum.
+ * <p>
+ * This is an event listener so that it's started with the application (or when the extension is installed), and it
+ * cleans the images left by the previous execution as soon as the application is started.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named(ImageStorageJanitor.NAME)
+@Singleton
+public class ImageStorageJanitor extends AbstractEventListener implements Initializable, Disposable
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.plantuml.internal.store.ImageStorageJanitor";
+
+    /**
+     * The name of a resource without owner, used to find the directory of the module in the temporary resource store.
+     */
+    private static final String PROBE_RESOURCE_NAME = "probe";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The time after which a temporary file is considered to be left by an interrupted write.
+     */
+    private static final long TEMPORARY_FILE_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong removedFileCount = new AtomicLong();
+
+    private final AtomicLong reclaimedSize = new AtomicLong();
+
+    private long storageSize;
+
+    /**
+     * Default constructor.
+     */
+    public ImageStorageJanitor()
+    {
+        super(NAME, new ApplicationStartedEvent());
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        long interval = this.configuration.getImageStorageCleanupInterval();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("PlantUML image storage cleanup").daemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::clean, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.scheduler.shutdownNow();
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Don't slow down the startup.
+        this.scheduler.execute(this::clean);
+    }
+
+    /**
+     * Remove the generated images which haven't been used for too long, and then the least recently used ones until
+     * the total size of the images is below the configured maximum.
+     */
+    public synchronized void clean()
+    {
+        File storageDirectory;
+        try {
+            // The images of all the owners are stored under the directory of the module.
+            storageDirectory = this.temporaryResourceStore.getTemporaryFile(
+                new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, PROBE_RESOURCE_NAME, null))
+                .getParentFile();
+        } catch (IOException e) {
+            this.logger.warn("Failed to locate the generated PlantUML images. Root cause: [{}]",
+                ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+        if (storageDirectory == null || !storageDirectory.isDirectory()) {
+            return;
+        }
+
+        List<StoredImage> images = new ArrayList<>();
+        List<StoredImage> sources = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(storageDirectory.toPath())) {
+            files.forEach(file -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        boolean source = file.getFileName().toString().endsWith(ImageSources.SOURCE_SUFFIX);
+                        (source ? sources : images).add(new StoredImage(file, attributes));
+                    }
+                } catch (IOException e) {
+                    // The file has been removed in the meantime.
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            this.logger.warn("Failed to list the generated PlantUML images in [{}]. Root cause: [{}]",
+                storageDirectory, ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+
+        long size = images.stream().mapToLong(image -> image.size).sum();
+        long maxSize = this.configuration.getImageStorageMaxSize() * MEGABYTE;
+        long now = System.currentTimeMillis();
+        long maxAge = this.configuration.getImageStorageMaxAge();
+        long expirationTime = now - TimeUnit.SECONDS.toMillis(maxAge);
+
+        long removedFiles = 0;
+        long reclaimed = 0;
+        images.sort(Comparator.comparingLong(image -> image.lastUsedTime));
+        for (StoredImage image : images) {
+            boolean temporary = image.path.getFileName().toString().endsWith(TEMPORARY_SUFFIX);
+            boolean expired = temporary ? image.lastUsedTime < now - TEMPORARY_FILE_MAX_AGE
+                : image.lastUsedTime < expirationTime;
+            if (!expired && size <= maxSize) {
+                continue;
+            }
+            try {
+                if (Files.deleteIfExists(image.path)) {
+                    removedFiles++;
+                    reclaimed += image.size;
+                }
+                size -= image.size;
+            } catch (IOException e) {
+                logDeleteFailure(image, e);
+            }
+        }
+
+        // The removed images are generated again from their source when they're requested by a page whose rendering
+        // is cached (see ImageResourceReferenceHandler), so the sources are kept as long as the browsers may keep the
+        // pages displaying them. They are small so they don't count in the storage size.
+        long sourceExpirationTime =
+            now - TimeUnit.SECONDS.toMillis(Math.max(maxAge, this.configuration.getImageStorageCacheMaxAge()));
+        for (StoredImage source : sources) {
+            try {
+                if (source.lastUsedTime < sourceExpirationTime && Files.deleteIfExists(source.path)) {
+                    removedFiles++;
+                    reclaimed += source.size;
+                }
+            } catch (IOException e) {
+                logDeleteFailure(source, e);
+            }
+        }
+
+        this.storageSize = size;
+        this.removedFileCount.addAndGet(removedFiles);
+        this.reclaimedSize.addAndGet(reclaimed);
+        if (removedFiles > 0) {
+            this.logger.info("Removed [{}] generated PlantUML images, reclaiming [{}] bytes", removedFiles, reclaimed);
+        }
+    }
+
+    private void logDeleteFailure(StoredImage image, IOException e)
+    {
+        this.logger.warn("Failed to remove the generated PlantUML image [{}]. Root cause: [{}]", image.path,
+            ExceptionUtils.getRootCauseMessage(e));
+    }
+
+    /**
+     * @return the number of generated images removed so far
+     */
+    public long getRemovedFileCount()
+    {
+        return this.removedFileCount.get();
+    }
+
+    /**
+     * @return the total size (in bytes) of the generated images removed so far
+     */
+    public long getReclaimedSize()
+    {
+        return this.reclaimedSize.get();
+    }
+
+    /**
+     * @return the total size (in bytes) of the generated images found during the last cleanup, once cleaned
+     */
+    public synchronized long getStorageSize()
+    {
+        return this.storageSize;
+    }
+
+    private static final class StoredImage
+    {
+        private final Path path;
+
+        private final long size;
+
+        /**
+         * The last time the image has been written, displayed or served to a browser, which is recorded in its
+         * modification time (see {@link ImageResourceReferenceHandler}). The access time is not used since it's not
+         * updated by most file systems.
+         */
+        private final long lastUsedTime;
+
+        StoredImage(Path path, BasicFileAttributes attributes)
+        {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastUsedTime = attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
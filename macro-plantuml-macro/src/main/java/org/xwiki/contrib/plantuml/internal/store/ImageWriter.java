@@ -19,9 +19,12 @@
  */
 package org.xwiki.contrib.plantuml.internal.store;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.xwiki.component.annotation.Role;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
 import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.url.ExtendedURL;
 
@@ -42,6 +45,78 @@ public interface ImageWriter
      */
     OutputStream getOutputStream(String imageId) throws MacroExecutionException;
 
+    /**
+     * Writes the content of an image.
+     *
+     * @version $Id$
+     * @since 2.5
+     */
+    @FunctionalInterface
+    interface ImageContent
+    {
+        /**
+         * @param outputStream the stream into which to write the image data
+         * @throws IOException if the image data cannot be produced or written
+         */
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Save an image. The default implementation writes directly to {@link #getOutputStream(String)}, implementations
+     * should make sure that a partially written image is never visible.
+     *
+     * @param imageId the image id that we use to generate a unique storage location
+     * @param content the content of the image
+     * @throws MacroExecutionException if the target file cannot be created
+     * @throws IOException if the image content cannot be written
+     * @since 2.5
+     */
+    default void write(String imageId, ImageContent content) throws MacroExecutionException, IOException
+    {
+        try (OutputStream outputStream = getOutputStream(imageId)) {
+            content.writeTo(outputStream);
+        }
+    }
+
+    /**
+     * Save an image along with its source, so that the image can be generated again if it's removed from the storage.
+     * The default implementation ignores the source.
+     *
+     * @param imageId the image id that we use to generate a unique storage location
+     * @param source the key of the diagram displayed by the image
+     * @param content the content of the image
+     * @throws MacroExecutionException if the target file cannot be created
+     * @throws IOException if the image content cannot be written
+     * @since 2.5
+     */
+    default void write(String imageId, DiagramKey source, ImageContent content)
+        throws MacroExecutionException, IOException
+    {
+        write(imageId, content);
+    }
+
+    /**
+     * @param imageId the image id that we use to generate a unique storage location
+     * @return {@code true} if a complete image has already been saved with the passed id, {@code false} otherwise
+     * @throws MacroExecutionException if the storage location cannot be computed
+     * @since 2.5
+     */
+    default boolean exists(String imageId) throws MacroExecutionException
+    {
+        return false;
+    }
+
+    /**
+     * @param imageId the image id that we use to generate a unique storage location
+     * @return the stream to read the saved image, or {@code null} if no image has been saved with the passed id
+     * @throws MacroExecutionException if the storage location cannot be computed
+     * @since 2.5
+     */
+    default InputStream getInputStream(String imageId) throws MacroExecutionException
+    {
+        return null;
+    }
+
     /**
      * Compute the URL to use to access the stored generate chart image.
      *
@@ -0,0 +1,100 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+
+/**
+ * Removes the shared images which are not used anymore when a document is modified or deleted. A modified document
+ * which still uses an image registers it again the next time it's rendered (and the image is generated again if it
+ * has been removed in the meantime).
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named(SharedImageCleaner.NAME)
+@Singleton
+public class SharedImageCleaner extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "org.xwiki.contrib.plantuml.internal.store.SharedImageCleaner";
+
+    @Inject
+    private SharedImageReferences references;
+
+    @Inject
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Default constructor.
+     */
+    public SharedImageCleaner()
+    {
+        super(NAME, new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DocumentReference documentReference = ((DocumentModelBridge) source).getDocumentReference();
+        // The images are removed while the references are locked so that a document rendered in the meantime can't
+        // start using an image which is about to be removed.
+        this.references.release(documentReference, imageId -> {
+            delete(imageId, documentReference);
+            delete(imageId + TemporaryImageWriter.COMPRESSED_SUFFIX, documentReference);
+            delete(imageId + ImageSources.SOURCE_SUFFIX, documentReference);
+        });
+    }
+
+    private void delete(String imageId, DocumentReference documentReference)
+    {
+        TemporaryResourceReference resourceReference = new TemporaryResourceReference(
+            TemporaryImageWriter.MODULE_ID, imageId, documentReference.getWikiReference());
+        try {
+            Files.deleteIfExists(this.temporaryResourceStore.getTemporaryFile(resourceReference).toPath());
+        } catch (IOException e) {
+            this.logger.warn("Failed to remove the unused PlantUML image [{}]. Root cause: [{}]", imageId,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Keeps track of the documents using each shared image, so that an image can be removed when no document uses it
+ * anymore. The images used by each document are stored on disk so that the images rendered before a restart are still
+ * removed when the documents using them are modified or deleted.
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component(roles = SharedImageReferences.class)
+@Singleton
+public class SharedImageReferences implements Initializable
+{
+    private static final String REFERENCES_DIRECTORY = "cache/plantuml-references";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    private Logger logger;
+
+    private File referencesDirectory;
+
+    /**
+     * The images used by each document.
+     */
+    private final Map<DocumentReference, Set<String>> imagesByDocument = new HashMap<>();
+
+    /**
+     * The documents using each image, for each wiki.
+     */
+    private final Map<WikiReference, Map<String, Set<DocumentReference>>> documentsByImage = new HashMap<>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.referencesDirectory = new File(this.environment.getPermanentDirectory(), REFERENCES_DIRECTORY);
+
+        // Load the references stored before the last restart.
+        if (this.referencesDirectory.isDirectory()) {
+            try (Stream<Path> files = Files.list(this.referencesDirectory.toPath())) {
+                files.filter(Files::isRegularFile).forEach(this::load);
+            } catch (IOException e) {
+                throw new InitializationException(
+                    String.format("Failed to load the PlantUML image references from [%s]", this.referencesDirectory),
+                    e);
+            }
+        }
+    }
+
+    /**
+     * Record that an image is used by a document.
+     *
+     * @param imageId the image id
+     * @param documentReference the document using the image
+     */
+    public synchronized void add(String imageId, DocumentReference documentReference)
+    {
+        if (register(imageId, documentReference)) {
+            // The images of a document are only stored when they change, not each time the document is displayed.
+            save(documentReference, this.imagesByDocument.get(documentReference));
+        }
+    }
+
+    /**
+     * Forget the images used by a document (e.g. because it has been modified or deleted).
+     *
+     * @param documentReference the document which doesn't use its images anymore
+     * @return the ids of the images of the document wiki which are not used by any document anymore
+     */
+    public synchronized Set<String> release(DocumentReference documentReference)
+    {
+        Set<String> imageIds = this.imagesByDocument.remove(documentReference);
+        if (imageIds == null) {
+            return Collections.emptySet();
+        }
+        delete(getFile(documentReference).toPath());
+
+        Set<String> unusedImageIds = new HashSet<>();
+        Map<String, Set<DocumentReference>> wikiImages =
+            this.documentsByImage.getOrDefault(documentReference.getWikiReference(), Collections.emptyMap());
+        for (String imageId : imageIds) {
+            Set<DocumentReference> documents = wikiImages.get(imageId);
+            if (documents != null) {
+                documents.remove(documentReference);
+                if (documents.isEmpty()) {
+                    wikiImages.remove(imageId);
+                    unusedImageIds.add(imageId);
+                }
+            }
+        }
+        return unusedImageIds;
+    }
+
+    /**
+     * Forget the images used by a document and remove the images which are not used by any document anymore. The
+     * images are removed while holding the lock used to {@link #add(String, DocumentReference) add} the references, so
+     * that an image can't be removed right after another document started using it.
+     *
+     * @param documentReference the document which doesn't use its images anymore
+     * @param remover called with the id of each image of the document wiki which is not used by any document anymore
+     */
+    public synchronized void release(DocumentReference documentReference, Consumer<String> remover)
+    {
+        release(documentReference).forEach(remover);
+    }
+
+    /**
+     * @param wikiReference the wiki holding the image
+     * @param imageId the image id
+     * @return the number of documents known to use the image
+     */
+    public synchronized int getReferenceCount(WikiReference wikiReference, String imageId)
+    {
+        Set<DocumentReference> documents =
+            this.documentsByImage.getOrDefault(wikiReference, Collections.emptyMap()).get(imageId);
+        return documents != null ? documents.size() : 0;
+    }
+
+    private boolean register(String imageId, DocumentReference documentReference)
+    {
+        if (!this.imagesByDocument.computeIfAbsent(documentReference, key -> new HashSet<>()).add(imageId)) {
+            return false;
+        }
+        this.documentsByImage.computeIfAbsent(documentReference.getWikiReference(), key -> new HashMap<>())
+            .computeIfAbsent(imageId, key -> new HashSet<>()).add(documentReference);
+        return true;
+    }
+
+    private void load(Path file)
+    {
+        if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+            // The references were being written when the server stopped.
+            delete(file);
+            return;
+        }
+
+        try {
+            // The first line is the document reference, followed by the ids of the images it uses.
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (!lines.isEmpty()) {
+                DocumentReference documentReference = this.resolver.resolve(lines.get(0));
+                lines.subList(1, lines.size()).forEach(imageId -> register(imageId, documentReference));
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the PlantUML image references from [{}]. Root cause: [{}]", file,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private void save(DocumentReference documentReference, Set<String> imageIds)
+    {
+        List<String> lines = new ArrayList<>(imageIds.size() + 1);
+        lines.add(this.serializer.serialize(documentReference));
+        lines.addAll(imageIds);
+
+        File file = getFile(documentReference);
+        try {
+            // Write in a temporary file first so that partially written references are never loaded.
+            Files.createDirectories(file.getParentFile().toPath());
+            Path temporaryFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), TEMPORARY_SUFFIX);
+            try {
+                Files.write(temporaryFile, lines, StandardCharsets.UTF_8);
+                Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            this.logger.warn("Failed to store the PlantUML image references of [{}]. Root cause: [{}]",
+                documentReference, ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private void delete(Path file)
+    {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            this.logger.warn("Failed to remove the PlantUML image references [{}]. Root cause: [{}]", file,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    private File getFile(DocumentReference documentReference)
+    {
+        // The document references can contain characters which are not allowed in file names.
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(this.serializer.serialize(documentReference).getBytes(StandardCharsets.UTF_8));
+            return new File(this.referencesDirectory, String.format("%064x", new BigInteger(1, hash)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.url.ExtendedURL;
+
+/**
+ * Save generated images to a temporary storage location shared by all the documents of the current wiki. Since image
+ * ids are computed from the diagram content, a diagram used in several documents is stored only once. The documents
+ * using each image are tracked so that the image can be removed when none of them uses it anymore (see
+ * {@link SharedImageCleaner}).
+ *
+ * @version $Id$
+ * @since 2.5
+ */
+@Component
+@Named("shared")
+@Singleton
+public class SharedImageWriter extends TemporaryImageWriter
+{
+    @Inject
+    private DocumentAccessBridge documentAccessBridge;
+
+    @Inject
+    private SharedImageReferences references;
+
+    @Override
+    public ExtendedURL getURL(String imageId) throws MacroExecutionException
+    {
+        // The URL is computed each time the image is displayed in a document so it's the right place to track which
+        // documents use the image.
+        DocumentReference currentDocumentReference = this.documentAccessBridge.getCurrentDocumentReference();
+        if (currentDocumentReference != null) {
+            this.references.add(imageId, currentDocumentReference);
+        }
+        return super.getURL(imageId);
+    }
+
+    @Override
+    protected TemporaryResourceReference getTemporaryResourceReference(String imageId)
+    {
+        DocumentReference currentDocumentReference = this.documentAccessBridge.getCurrentDocumentReference();
+        if (currentDocumentReference == null) {
+            return super.getTemporaryResourceReference(imageId);
+        }
+        // The image is owned by the wiki so that it's accessible to anyone allowed to view the wiki.
+        return new TemporaryResourceReference(MODULE_ID, imageId, currentDocumentReference.getWikiReference());
+    }
+}
@@ -20,16 +20,27 @@
 package org.xwiki.contrib.plantuml.internal.store;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
 import org.xwiki.rendering.macro.MacroExecutionException;
 import org.xwiki.resource.ResourceReferenceSerializer;
 import org.xwiki.resource.SerializeResourceReferenceException;
@@ -53,7 +64,19 @@ public class TemporaryImageWriter implements ImageWriter
      * The module id used when creating temporary files. This is the module used by the temporary resource handler to
      * retrieve the temporary image file.
      */
-    private static final String MODULE_ID = "plantuml";
+    static final String MODULE_ID = "plantuml";
+
+    /**
+     * The suffix of the compressed copy of an image.
+     */
+    static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The suffix of the images which are worth compressing (PNG images are already compressed).
+     */
+    private static final String SVG_SUFFIX = ".svg";
 
     /**
      * Used to compute the URL to the temporary stored image generated by the macro.
@@ -64,6 +87,12 @@ public class TemporaryImageWriter implements ImageWriter
     @Inject
     private TemporaryResourceStore temporaryResourceStore;
 
+    @Inject
+    private PlantUMLConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
     // TODO: Once this extension starts depending on XWiki 14.7+, change this to:
     //   @Inject
     //   private ResourceReferenceSerializer<ResourceReference, ExtendedURL> resourceReferenceSerializer;
@@ -89,6 +118,93 @@ public class TemporaryImageWriter implements ImageWriter
         return result;
     }
 
+    @Override
+    public void write(String imageId, ImageContent content) throws MacroExecutionException, IOException
+    {
+        File imageFile = getStorageLocation(imageId);
+        write(imageFile, content);
+
+        // Prepare the compressed version of the image once so that it's not compressed again on each request.
+        if (imageId.endsWith(SVG_SUFFIX) && this.configuration.isImageStorageCompressionEnabled()) {
+            try {
+                write(getStorageLocation(imageId + COMPRESSED_SUFFIX), outputStream -> {
+                    try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+                        Files.copy(imageFile.toPath(), gzipOutputStream);
+                    }
+                });
+            } catch (IOException e) {
+                // The image is sent uncompressed.
+                this.logger.warn("Failed to compress the PlantUML image [{}]. Root cause: [{}]", imageId,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    @Override
+    public void write(String imageId, DiagramKey source, ImageContent content)
+        throws MacroExecutionException, IOException
+    {
+        write(imageId, content);
+
+        File sourceFile = ImageSources.getFile(getStorageLocation(imageId));
+        try {
+            write(sourceFile, outputStream -> ImageSources.write(source, outputStream));
+        } catch (IOException e) {
+            // The image is generated again when it's displayed after being removed from the storage.
+            this.logger.warn("Failed to save the source of the PlantUML image [{}]. Root cause: [{}]", imageId,
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+    }
+
+    /**
+     * Write a file atomically.
+     *
+     * @param file the file to write
+     * @param content the content of the file
+     * @throws IOException if the content cannot be written
+     */
+    static void write(File file, ImageContent content) throws IOException
+    {
+        Path directory = file.getParentFile().toPath();
+        Files.createDirectories(directory);
+        // Write in a temporary file first and move it atomically so that a partially written image is never served.
+        Path temporaryFile = Files.createTempFile(directory, file.getName(), TEMPORARY_SUFFIX);
+        try {
+            try (OutputStream outputStream = new FileOutputStream(temporaryFile.toFile())) {
+                content.writeTo(outputStream);
+            }
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    @Override
+    public boolean exists(String imageId) throws MacroExecutionException
+    {
+        // Images are only moved in place once completely written so an existing non-empty file is valid.
+        File imageFile = getStorageLocation(imageId);
+        if (imageFile.isFile() && imageFile.length() > 0) {
+            // Remember that the image is still used so that it's not removed by the image storage cleanup.
+            long now = System.currentTimeMillis();
+            imageFile.setLastModified(now);
+            ImageSources.getFile(imageFile).setLastModified(now);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public InputStream getInputStream(String imageId) throws MacroExecutionException
+    {
+        try {
+            return new FileInputStream(getStorageLocation(imageId));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Compute the location where to store the generated image.
      *
@@ -119,7 +235,11 @@ public class TemporaryImageWriter implements ImageWriter
         }
     }
 
-    private TemporaryResourceReference getTemporaryResourceReference(String imageId)
+    /**
+     * @param imageId the image id
+     * @return the reference of the temporary resource holding the image
+     */
+    protected TemporaryResourceReference getTemporaryResourceReference(String imageId)
     {
         return new TemporaryResourceReference(MODULE_ID, imageId,
             this.documentAccessBridge.getCurrentDocumentReference());
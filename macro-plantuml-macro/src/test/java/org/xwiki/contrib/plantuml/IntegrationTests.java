@@ -40,6 +40,8 @@ import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 
 import net.sourceforge.plantuml.picoweb.PicoWebServer;
 
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 /**
@@ -108,6 +110,8 @@ public class IntegrationTests
         componentManager.unregisterComponent(EventListener.class, "refactoring.automaticRedirectCreator");
         componentManager.unregisterComponent(EventListener.class, "refactoring.relativeLinksUpdater");
         componentManager.unregisterComponent(EventListener.class, "refactoring.backLinksUpdater");
-        componentManager.registerMockComponent(PlantUMLConfiguration.class);
+        // Use the default configuration.
+        componentManager.registerComponent(PlantUMLConfiguration.class,
+            mock(PlantUMLConfiguration.class, CALLS_REAL_METHODS));
     }
 }
\ No newline at end of file
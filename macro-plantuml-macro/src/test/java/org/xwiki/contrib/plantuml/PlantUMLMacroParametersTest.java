@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Unit tests for {@link PlantUMLMacroParameters}.
+ *
+ * @version $Id$
+ */
+class PlantUMLMacroParametersTest
+{
+    @Test
+    void equalsAndHashCode()
+    {
+        PlantUMLMacroParameters parameters = parameters("https://www.plantuml.com/plantuml", PlantUMLDiagramFormat.svg,
+            PlantUMLDiagramType.mindmap, "Title");
+        PlantUMLMacroParameters sameParameters = parameters("https://www.plantuml.com/plantuml",
+            PlantUMLDiagramFormat.svg, PlantUMLDiagramType.mindmap, "Title");
+
+        assertEquals(parameters, parameters);
+        assertEquals(parameters, sameParameters);
+        assertEquals(parameters.hashCode(), sameParameters.hashCode());
+        assertNotEquals(parameters, null);
+        assertNotEquals(parameters, "parameters");
+    }
+
+    @Test
+    void everyParameterInfluencesTheEquality()
+    {
+        PlantUMLMacroParameters parameters = parameters(null, PlantUMLDiagramFormat.png, PlantUMLDiagramType.ditaa,
+            "Title");
+
+        assertNotEquals(parameters,
+            parameters("https://www.plantuml.com/plantuml", PlantUMLDiagramFormat.png, PlantUMLDiagramType.ditaa,
+                "Title"));
+        assertNotEquals(parameters, parameters(null, PlantUMLDiagramFormat.svg, PlantUMLDiagramType.ditaa, "Title"));
+        assertNotEquals(parameters, parameters(null, PlantUMLDiagramFormat.png, PlantUMLDiagramType.salt, "Title"));
+        assertNotEquals(parameters, parameters(null, PlantUMLDiagramFormat.png, PlantUMLDiagramType.ditaa, "Other"));
+    }
+
+    @Test
+    void defaultValuesAreEqualToTheMissingOnes()
+    {
+        // The type and the title have default values.
+        assertEquals(new PlantUMLMacroParameters(), parameters(null, null, PlantUMLDiagramType.plantuml, ""));
+        assertEquals(new PlantUMLMacroParameters().hashCode(),
+            parameters(null, null, PlantUMLDiagramType.plantuml, "").hashCode());
+    }
+
+    private static PlantUMLMacroParameters parameters(String server, PlantUMLDiagramFormat format,
+        PlantUMLDiagramType type, String title)
+    {
+        PlantUMLMacroParameters parameters = new PlantUMLMacroParameters();
+        parameters.setServer(server);
+        parameters.setFormat(format);
+        parameters.setType(type);
+        parameters.setTitle(title);
+        return parameters;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultPlantUMLConfiguration}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultPlantUMLConfigurationTest
+{
+    @MockComponent
+    @Named("plantuml")
+    private ConfigurationSource plantUMLConfigurationSource;
+
+    @MockComponent
+    @Named("xwikiproperties")
+    private ConfigurationSource xwikiPropertiesConfigurationSource;
+
+    @InjectMockComponents
+    private DefaultPlantUMLConfiguration configuration;
+
+    private final Logger logger = mock(Logger.class);
+
+    @BeforeEach
+    void beforeEach()
+    {
+        ReflectionUtils.setFieldValue(this.configuration, "logger", this.logger);
+        // Return the default value of the properties which are not set.
+        when(this.xwikiPropertiesConfigurationSource.getProperty(anyString(), any(Object.class)))
+            .then(invocation -> invocation.getArgument(1));
+    }
+
+    @Test
+    void getDefaultValues()
+    {
+        assertEquals(20, this.configuration.getServerMaxConnections());
+        assertEquals(100, this.configuration.getCacheMaxSize());
+        assertEquals(0, this.configuration.getRenderingMaxParallelism());
+        assertEquals(RenderingExecutor.POLICY_PLACEHOLDER, this.configuration.getRenderingRejectionPolicy());
+        assertEquals(604800, this.configuration.getImageStorageMaxAge());
+        assertEquals(60, this.configuration.getServerRequestTimeout());
+    }
+
+    @Test
+    void getValues()
+    {
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.server.maxConnections", 20)).thenReturn(5);
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.rendering.rejectionPolicy", "placeholder"))
+            .thenReturn("wait");
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.imageStorage.cacheMaxAge", 31536000L))
+            .thenReturn(0L);
+        when(this.plantUMLConfigurationSource.getProperty("requestTimeout", Integer.class)).thenReturn(10);
+
+        assertEquals(5, this.configuration.getServerMaxConnections());
+        assertEquals(RenderingExecutor.POLICY_WAIT, this.configuration.getRenderingRejectionPolicy());
+        assertEquals(0, this.configuration.getImageStorageCacheMaxAge());
+        assertEquals(10, this.configuration.getServerRequestTimeout());
+    }
+
+    @Test
+    void getInvalidValues()
+    {
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.cache.maxSize", 100L)).thenReturn(-1L);
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.png.compressionLevel", 9)).thenReturn(10);
+        when(this.xwikiPropertiesConfigurationSource.getProperty("plantuml.server.loadBalancing", "roundRobin"))
+            .thenReturn("random");
+        when(this.plantUMLConfigurationSource.getProperty("requestTimeout", Integer.class)).thenReturn(0);
+
+        assertEquals(100, this.configuration.getCacheMaxSize());
+        assertEquals(9, this.configuration.getPngCompressionLevel());
+        assertEquals("roundRobin", this.configuration.getServerLoadBalancing());
+        assertEquals(60, this.configuration.getServerRequestTimeout());
+
+        // The invalid values are reported only once.
+        assertEquals(100, this.configuration.getCacheMaxSize());
+        verify(this.logger, times(1)).warn(
+            "Invalid value [{}] for the PlantUML configuration property [{}]. Using [{}] instead.", -1L,
+            "plantuml.cache.maxSize", 100L);
+        verify(this.logger).warn(
+            "Invalid value [{}] for the PlantUML configuration property [{}]. Using [{}] instead.", 10,
+            "plantuml.png.compressionLevel", 9);
+        verify(this.logger).warn(
+            "Invalid value [{}] for the PlantUML configuration property [{}]. Using [{}] instead.", "random",
+            "plantuml.server.loadBalancing", "roundRobin");
+        verify(this.logger).warn(
+            "Invalid value [{}] for the PlantUML configuration property [{}]. Using [{}] instead.", 0,
+            "requestTimeout", 60);
+    }
+}
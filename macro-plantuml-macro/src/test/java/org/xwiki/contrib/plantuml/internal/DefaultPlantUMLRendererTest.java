@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.cache.RenderedTextCache;
+import org.xwiki.contrib.plantuml.internal.store.ImageWriter;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.url.ExtendedURL;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DefaultPlantUMLRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultPlantUMLRendererTest
+{
+    private static final int WIDTH = 100;
+
+    @MockComponent
+    private DiagramGenerator diagramGenerator;
+
+    @MockComponent
+    @Named("shared")
+    private ImageWriter imageWriter;
+
+    @MockComponent
+    private RenderedTextCache textCache;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private DefaultPlantUMLRenderer renderer;
+
+    private final Map<String, byte[]> images = new HashMap<>();
+
+    /**
+     * The content of the generated diagrams.
+     */
+    private final List<String> generatedDiagrams = new ArrayList<>();
+
+    /**
+     * Whether the generated diagrams take the scale into account.
+     */
+    private boolean scaleSupported = true;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.configuration.isPngHighResolutionEnabled()).thenReturn(true);
+        when(this.diagramGenerator.createKey(anyString(), any(), any())).then(invocation -> new DiagramKey(
+            invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2)));
+        doAnswer(invocation -> {
+            DiagramKey key = invocation.getArgument(0);
+            this.generatedDiagrams.add(key.getContent());
+            boolean scaled = key.getContent().contains("scale");
+            writePng(scaled && this.scaleSupported ? 2 * WIDTH : WIDTH, invocation.getArgument(1));
+            return null;
+        }).when(this.diagramGenerator).writeTo(any(), any());
+
+        // Store the images in memory.
+        when(this.imageWriter.getURL(anyString())).then(invocation -> {
+            ExtendedURL url = mock(ExtendedURL.class);
+            when(url.serialize()).thenReturn("/tmp/" + invocation.getArgument(0));
+            return url;
+        });
+        when(this.imageWriter.exists(anyString()))
+            .then(invocation -> this.images.containsKey(invocation.getArgument(0)));
+        doAnswer(invocation -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            invocation.<ImageWriter.ImageContent>getArgument(2).writeTo(outputStream);
+            this.images.put(invocation.getArgument(0), outputStream.toByteArray());
+            return null;
+        }).when(this.imageWriter).write(anyString(), any(), any());
+        when(this.imageWriter.getInputStream(anyString())).then(invocation -> {
+            byte[] image = this.images.get(invocation.getArgument(0));
+            return image != null ? new ByteArrayInputStream(image) : null;
+        });
+    }
+
+    @Test
+    void renderHighResolutionImage() throws Exception
+    {
+        ImageBlock imageBlock = renderPng("@startuml\nA -> B\n@enduml");
+
+        assertEquals(Arrays.asList("@startuml\nA -> B\n@enduml", "@startuml\nscale 2\nA -> B\n@enduml"),
+            this.generatedDiagrams);
+        String imageURL = imageBlock.getReference().getReference();
+        assertEquals(String.format("%s 1x, %s 2x", imageURL, imageURL.replace(".png", "-2x.png")),
+            imageBlock.getParameter("srcset"));
+    }
+
+    @Test
+    void renderHighResolutionDitaaImage() throws Exception
+    {
+        ImageBlock imageBlock = renderPng("@startditaa\n+--+\n@endditaa");
+
+        // Ditaa ignores the scale command but supports a scale option.
+        assertEquals(Arrays.asList("@startditaa\n+--+\n@endditaa", "@startditaa scale=2\n+--+\n@endditaa"),
+            this.generatedDiagrams);
+        assertEquals(2, imageBlock.getParameter("srcset").split(",").length);
+    }
+
+    @Test
+    void renderHighResolutionImageIgnoredByTheDiagramType() throws Exception
+    {
+        this.scaleSupported = false;
+
+        ImageBlock imageBlock = renderPng("@startuml\nA -> B\n@enduml");
+
+        // The high resolution image is not used since it's not bigger.
+        assertEquals(2, this.generatedDiagrams.size());
+        assertNull(imageBlock.getParameter("srcset"));
+    }
+
+    @Test
+    void renderHighResolutionImageWithoutStartTag() throws Exception
+    {
+        ImageBlock imageBlock = renderPng("A -> B");
+
+        assertEquals(Arrays.asList("A -> B"), this.generatedDiagrams);
+        assertNull(imageBlock.getParameter("srcset"));
+    }
+
+    @Test
+    void renderWithHighResolutionDisabled() throws Exception
+    {
+        when(this.configuration.isPngHighResolutionEnabled()).thenReturn(false);
+
+        ImageBlock imageBlock = renderPng("@startuml\nA -> B\n@enduml");
+
+        assertEquals(1, this.generatedDiagrams.size());
+        assertNull(imageBlock.getParameter("srcset"));
+    }
+
+    private ImageBlock renderPng(String content) throws Exception
+    {
+        return (ImageBlock) this.renderer.renderDiagram(content, null, PlantUMLDiagramFormat.png);
+    }
+
+    private static void writePng(int width, OutputStream outputStream) throws Exception
+    {
+        ImageIO.write(new BufferedImage(width, WIDTH / 2, BufferedImage.TYPE_INT_RGB), "png", outputStream);
+    }
+}
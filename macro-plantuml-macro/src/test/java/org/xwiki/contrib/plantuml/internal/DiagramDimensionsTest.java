@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for {@link DiagramDimensions}.
+ *
+ * @version $Id$
+ */
+class DiagramDimensionsTest
+{
+    @Test
+    void readPNG() throws Exception
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(123, 45, BufferedImage.TYPE_INT_RGB), "png", outputStream);
+
+        DiagramDimensions dimensions = DiagramDimensions
+            .read(new ByteArrayInputStream(outputStream.toByteArray()), PlantUMLDiagramFormat.png);
+
+        assertEquals(123, dimensions.getWidth());
+        assertEquals(45, dimensions.getHeight());
+    }
+
+    @Test
+    void readTruncatedPNG() throws Exception
+    {
+        assertNull(DiagramDimensions.read(new ByteArrayInputStream(new byte[] {1, 2, 3}), PlantUMLDiagramFormat.png));
+    }
+
+    @Test
+    void readSVG() throws Exception
+    {
+        DiagramDimensions dimensions = DiagramDimensions.read(stream("<?xml version=\"1.0\"?>"
+            + "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"120.5px\" height=\"80px\" viewBox=\"0 0 10 10\">"),
+            PlantUMLDiagramFormat.svg);
+
+        // The size is rounded up.
+        assertEquals(121, dimensions.getWidth());
+        assertEquals(80, dimensions.getHeight());
+    }
+
+    @Test
+    void readSVGViewBox() throws Exception
+    {
+        DiagramDimensions dimensions = DiagramDimensions.read(
+            stream("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 200 100.2\"><g/></svg>"),
+            PlantUMLDiagramFormat.svg);
+
+        assertEquals(200, dimensions.getWidth());
+        assertEquals(101, dimensions.getHeight());
+    }
+
+    @Test
+    void readSVGWithoutSize() throws Exception
+    {
+        assertNull(DiagramDimensions.read(stream("<svg xmlns=\"http://www.w3.org/2000/svg\"><g/></svg>"),
+            PlantUMLDiagramFormat.svg));
+        assertNull(DiagramDimensions.read(stream("<svg width=\"0\" height=\"10\"/>"), PlantUMLDiagramFormat.svg));
+    }
+
+    @Test
+    void readText() throws Exception
+    {
+        assertNull(DiagramDimensions.read(stream("Bob -> Alice"), PlantUMLDiagramFormat.txt));
+    }
+
+    private static InputStream stream(String content)
+    {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLGenerator;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramCache;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramGenerator}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DiagramGeneratorTest
+{
+    private static final byte[] DIAGRAM = "<svg/>".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] PROCESSED_DIAGRAM = "<svg></svg>".getBytes(StandardCharsets.UTF_8);
+
+    @MockComponent
+    private PlantUMLGenerator plantUMLGenerator;
+
+    @MockComponent
+    private DiagramCache diagramCache;
+
+    @MockComponent
+    private PlantUMLMetrics metrics;
+
+    @MockComponent
+    private DiagramPostProcessor postProcessor;
+
+    @InjectMockComponents
+    private DiagramGenerator diagramGenerator;
+
+    private final DiagramKey key =
+        new DiagramKey("A -> B", "http://localhost:8080/plantuml", PlantUMLDiagramFormat.svg, "test");
+
+    @Test
+    void generateAsyncPostProcessesOutsideOfTheCompletingThread() throws Exception
+    {
+        CompletableFuture<byte[]> output = new CompletableFuture<>();
+        when(this.plantUMLGenerator.outputImageAsync("A -> B", "http://localhost:8080/plantuml",
+            PlantUMLDiagramFormat.svg)).thenReturn(output);
+        StringBuilder postProcessingThread = new StringBuilder();
+        when(this.postProcessor.process(DIAGRAM, PlantUMLDiagramFormat.svg)).then(invocation -> {
+            postProcessingThread.append(Thread.currentThread().getName());
+            return PROCESSED_DIAGRAM;
+        });
+
+        CompletableFuture<Void> generation = this.diagramGenerator.generateAsync(this.key);
+        // Completed by the HTTP client I/O thread.
+        output.complete(DIAGRAM);
+        generation.get(10, TimeUnit.SECONDS);
+
+        assertTrue(postProcessingThread.toString().startsWith("PlantUML post-processing"),
+            "Unexpected post-processing thread: " + postProcessingThread);
+        verify(this.diagramCache).put(this.key, PROCESSED_DIAGRAM);
+        verify(this.metrics).output("svg", PROCESSED_DIAGRAM.length);
+    }
+
+    @Test
+    void generateAsyncFailure()
+    {
+        CompletableFuture<byte[]> output = new CompletableFuture<>();
+        output.completeExceptionally(new IOException("Server error"));
+        when(this.plantUMLGenerator.outputImageAsync(any(), any(), any())).thenReturn(output);
+
+        CompletableFuture<Void> generation = this.diagramGenerator.generateAsync(this.key);
+
+        assertTrue(generation.isCompletedExceptionally());
+        verify(this.diagramCache, never()).put(any(), any());
+    }
+
+    @Test
+    void generateReadsTheCache() throws Exception
+    {
+        when(this.diagramCache.get(this.key)).thenReturn(PROCESSED_DIAGRAM);
+
+        assertArrayEquals(PROCESSED_DIAGRAM, this.diagramGenerator.generate(this.key));
+        verify(this.plantUMLGenerator, never()).outputImage(any(), any(), any(), any());
+    }
+
+    @Test
+    void createKey()
+    {
+        when(this.postProcessor.getId(PlantUMLDiagramFormat.png)).thenReturn("png:9");
+
+        assertEquals("png:9", this.diagramGenerator.createKey("A -> B", null, PlantUMLDiagramFormat.png)
+            .getProcessing());
+        assertEquals("", this.diagramGenerator.createKey("A -> B", null, PlantUMLDiagramFormat.svg).getProcessing());
+    }
+}
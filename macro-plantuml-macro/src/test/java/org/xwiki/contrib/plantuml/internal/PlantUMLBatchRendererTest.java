@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLRenderer;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.ParagraphBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PlantUMLBatchRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PlantUMLBatchRendererTest
+{
+    private static final String MACRO_ID = "plantuml";
+
+    @MockComponent
+    private PlantUMLRenderer plantUMLRenderer;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @MockComponent
+    private BeanManager beanManager;
+
+    @InjectMockComponents
+    private PlantUMLBatchRenderer batchRenderer;
+
+    private final PlantUMLMacro macro = mock(PlantUMLMacro.class);
+
+    private final MacroBlock first = macroBlock("A -> B");
+
+    private final MacroBlock second = macroBlock("B -> C");
+
+    private final MacroBlock third = macroBlock("C -> D");
+
+    private final CompletableFuture<Void> firstGeneration = new CompletableFuture<>();
+
+    private final CompletableFuture<Void> secondGeneration = new CompletableFuture<>();
+
+    private final CompletableFuture<Void> thirdGeneration = new CompletableFuture<>();
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.macro.getDiagramKey(anyString(), any()))
+            .then(invocation -> new DiagramKey(invocation.getArgument(0), null, PlantUMLDiagramFormat.png));
+        when(this.plantUMLRenderer.prepareDiagram("A -> B", null, PlantUMLDiagramFormat.png))
+            .thenReturn(this.firstGeneration);
+        when(this.plantUMLRenderer.prepareDiagram("B -> C", null, PlantUMLDiagramFormat.png))
+            .thenReturn(this.secondGeneration);
+        when(this.plantUMLRenderer.prepareDiagram("C -> D", null, PlantUMLDiagramFormat.png))
+            .thenReturn(this.thirdGeneration);
+        when(this.configuration.isBatchRenderingEnabled()).thenReturn(true);
+    }
+
+    @Test
+    void getBatchFromTheFirstMacro()
+    {
+        XDOM xdom = new XDOM(Arrays.asList(this.first, new ParagraphBlock(Collections.singletonList(this.second)),
+            new MacroBlock("info", Collections.emptyMap(), "text", false), this.third));
+
+        assertEquals(Arrays.asList(this.first, this.second, this.third),
+            this.batchRenderer.getBatch(context(xdom, this.first)));
+        // The diagrams are prepared only once, by the first macro.
+        assertTrue(this.batchRenderer.getBatch(context(xdom, this.second)).isEmpty());
+    }
+
+    @Test
+    void getBatchWithASingleMacro()
+    {
+        XDOM xdom = new XDOM(Collections.singletonList(this.first));
+
+        assertTrue(this.batchRenderer.getBatch(context(xdom, this.first)).isEmpty());
+    }
+
+    @Test
+    void getBatchWhenDisabled()
+    {
+        when(this.configuration.isBatchRenderingEnabled()).thenReturn(false);
+        XDOM xdom = new XDOM(Arrays.asList(this.first, this.second));
+
+        assertTrue(this.batchRenderer.getBatch(context(xdom, this.first)).isEmpty());
+    }
+
+    @Test
+    void prepareLimitsTheParallelism()
+    {
+        CompletableFuture<Void> future =
+            this.batchRenderer.prepare(this.macro, Arrays.asList(this.first, this.second, this.third), 2);
+
+        verify(this.plantUMLRenderer).prepareDiagram("A -> B", null, PlantUMLDiagramFormat.png);
+        verify(this.plantUMLRenderer).prepareDiagram("B -> C", null, PlantUMLDiagramFormat.png);
+        verify(this.plantUMLRenderer, never()).prepareDiagram("C -> D", null, PlantUMLDiagramFormat.png);
+
+        // A failed generation doesn't stop the batch.
+        this.secondGeneration.completeExceptionally(new IllegalStateException("Generation failed"));
+        verify(this.plantUMLRenderer).prepareDiagram("C -> D", null, PlantUMLDiagramFormat.png);
+
+        this.firstGeneration.complete(null);
+        assertFalse(future.isDone());
+        this.thirdGeneration.complete(null);
+        assertTrue(future.isDone());
+        assertFalse(future.isCompletedExceptionally());
+    }
+
+    @Test
+    void prepareGeneratesTheSameDiagramOnce()
+    {
+        this.firstGeneration.complete(null);
+
+        this.batchRenderer.prepare(this.macro, Arrays.asList(this.first, macroBlock("A -> B")), 10);
+
+        verify(this.plantUMLRenderer, times(1)).prepareDiagram("A -> B", null, PlantUMLDiagramFormat.png);
+    }
+
+    private static MacroBlock macroBlock(String content)
+    {
+        return new MacroBlock(MACRO_ID, Collections.emptyMap(), content, false);
+    }
+
+    private static MacroTransformationContext context(XDOM xdom, MacroBlock currentMacroBlock)
+    {
+        MacroTransformationContext context = new MacroTransformationContext();
+        context.setXDOM(xdom);
+        context.setCurrentMacroBlock(currentMacroBlock);
+        return context;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+import org.xwiki.contrib.plantuml.PlantUMLRenderer;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.localization.ContextualLocalizationManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.GroupBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.macro.MacroExecutionException;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.rendering.transformation.MacroTransformationContext;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PlantUMLBlockAsyncRenderer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PlantUMLBlockAsyncRendererTest
+{
+    private static final String CONTENT = "A -> B";
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @MockComponent
+    private DiagramPostProcessor postProcessor;
+
+    @MockComponent
+    private PlantUMLRenderer plantUMLRenderer;
+
+    @MockComponent
+    private ContextualLocalizationManager localization;
+
+    /**
+     * Computes the diagram keys of the macro, taking into account the post-processing.
+     */
+    @InjectMockComponents
+    private DiagramGenerator diagramGenerator;
+
+    @InjectMockComponents
+    private PlantUMLMacro macro;
+
+    @InjectMockComponents
+    private PlantUMLBlockAsyncRenderer renderer;
+
+    private final PlantUMLMacroParameters parameters = new PlantUMLMacroParameters();
+
+    private final MacroTransformationContext context = new MacroTransformationContext();
+
+    @BeforeEach
+    void configure()
+    {
+        when(this.configuration.getPlantUMLOutputFormat()).thenReturn(PlantUMLDiagramFormat.png);
+        this.context.getTransformationContext().setTargetSyntax(Syntax.XHTML_1_0);
+    }
+
+    @Test
+    void getIdOfTheSameDiagram()
+    {
+        assertEquals(getId(CONTENT), getId(CONTENT));
+        assertNotEquals(getId(CONTENT), getId("B -> C"));
+    }
+
+    @Test
+    void getIdDependsOnPostProcessing()
+    {
+        List<String> id = getId(CONTENT);
+
+        // The diagram displayed once the post-processing configuration changes is different.
+        when(this.postProcessor.getId(PlantUMLDiagramFormat.png)).thenReturn("pngOptimization:9");
+        List<String> optimizedId = getId(CONTENT);
+        assertNotEquals(id, optimizedId);
+        // The result is identified by the same key as the one used by the renderer.
+        DiagramKey key = this.macro.getDiagramKey(CONTENT, this.parameters);
+        assertEquals("pngOptimization:9", key.getProcessing());
+        assertEquals(key.getHash(), optimizedId.get(3));
+    }
+
+    @Test
+    void getIdDependsOnHighResolution()
+    {
+        List<String> id = getId(CONTENT);
+
+        // The diagram is displayed with an additional high resolution image.
+        when(this.configuration.isPngHighResolutionEnabled()).thenReturn(true);
+        assertNotEquals(id, getId(CONTENT));
+    }
+
+    @Test
+    void executeWhenRenderingRejected() throws Exception
+    {
+        when(this.plantUMLRenderer.renderDiagram(anyString(), any(), eq(PlantUMLDiagramFormat.png))).thenThrow(
+            new MacroExecutionException("Failed", new RenderingRejectedException("Too many diagrams")));
+        when(this.localization.getTranslationPlain("plantuml.macro.busy")).thenReturn("Server busy");
+
+        this.renderer.initialize(this.macro, this.parameters, CONTENT, this.context, Collections.emptyList());
+        Block result = this.renderer.execute(true, false);
+
+        // The diagram is generated on the next display.
+        assertFalse(this.renderer.isCacheAllowed());
+        GroupBlock placeholder = (GroupBlock) result.getChildren().get(0);
+        assertEquals("box infomessage plantuml-placeholder", placeholder.getParameter("class"));
+        assertEquals(new WordBlock("Server busy"), placeholder.getChildren().get(0));
+    }
+
+    private List<String> getId(String content)
+    {
+        this.renderer.initialize(this.macro, this.parameters, content, this.context, Collections.emptyList());
+        return this.renderer.getId();
+    }
+}
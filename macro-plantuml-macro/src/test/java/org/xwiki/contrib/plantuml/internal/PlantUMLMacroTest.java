@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramType;
+import org.xwiki.contrib.plantuml.PlantUMLMacroParameters;
+import org.xwiki.contrib.plantuml.PlantUMLRenderer;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+import org.xwiki.properties.BeanDescriptor;
+import org.xwiki.properties.BeanManager;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PlantUMLMacro}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PlantUMLMacroTest
+{
+    @MockComponent
+    private BeanManager beanManager;
+
+    @MockComponent
+    private PlantUMLRenderer plantUMLRenderer;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @MockComponent
+    private PlantUMLMetrics metrics;
+
+    @InjectMockComponents
+    private PlantUMLMacro macro;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.beanManager.getBeanDescriptor(PlantUMLMacroParameters.class))
+            .thenReturn(mock(BeanDescriptor.class));
+    }
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.plantUMLRenderer.renderDiagram(anyString(), any(), any())).thenReturn(new WordBlock("diagram"));
+    }
+
+    @Test
+    void getDiagramType()
+    {
+        assertEquals("uml", this.macro.getDiagramType("@startuml\nA -> B\n@enduml"));
+        assertEquals("mindmap", this.macro.getDiagramType("@startmindmap diagram1\n* root\n@endmindmap"));
+        assertEquals("ditaa", this.macro.getDiagramType("@startDitaa scale=2\n+--+\n@endditaa"));
+        // The unknown types are not recorded.
+        assertEquals("uml", this.macro.getDiagramType("@startunknown\nA\n@endunknown"));
+        assertEquals("uml", this.macro.getDiagramType("@start\nA\n@end"));
+        assertEquals("uml", this.macro.getDiagramType("A -> B"));
+    }
+
+    @Test
+    void executeSyncRecordsTheDiagramType() throws Exception
+    {
+        PlantUMLMacroParameters parameters = new PlantUMLMacroParameters();
+        parameters.setFormat(PlantUMLDiagramFormat.svg);
+
+        this.macro.executeSync("A -> B", parameters, false);
+        verify(this.metrics).renderEnded(anyLong(), eq("uml"), eq("svg"), eq(PlantUMLMetrics.BACKEND_EMBEDDED));
+
+        parameters.setType(PlantUMLDiagramType.ditaa);
+        this.macro.executeSync("+--+", parameters, false);
+        verify(this.metrics).renderEnded(anyLong(), eq("ditaa"), eq("svg"), eq(PlantUMLMetrics.BACKEND_EMBEDDED));
+
+        // The start tag of the content takes precedence over the type parameter.
+        parameters.setType(PlantUMLDiagramType.plantuml);
+        this.macro.executeSync("@startmindmap\n* root\n@endmindmap", parameters, false);
+        verify(this.metrics).renderEnded(anyLong(), eq("mindmap"), eq("svg"), eq(PlantUMLMetrics.BACKEND_EMBEDDED));
+    }
+}
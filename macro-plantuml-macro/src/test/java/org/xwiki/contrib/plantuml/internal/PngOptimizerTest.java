@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link PngOptimizer}.
+ *
+ * @version $Id$
+ */
+class PngOptimizerTest
+{
+    @Test
+    void optimizeGeneratedDiagram() throws Exception
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SourceStringReader("@startuml\nAlice -> Bob : hello\nBob --> Alice : world\n@enduml\n")
+            .outputImage(outputStream, new FileFormatOption(FileFormat.PNG));
+        byte[] png = outputStream.toByteArray();
+
+        byte[] optimizedPNG = PngOptimizer.optimize(png, PngOptimizer.MAX_COMPRESSION_LEVEL);
+
+        assertTrue(optimizedPNG.length < png.length);
+        assertSamePixels(png, optimizedPNG);
+    }
+
+    @Test
+    void optimizeTransparentImageWithFewColors() throws Exception
+    {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                // Transparent background, opaque and semi-transparent shapes.
+                int color = x < 16 ? 0x00000000 : (x < 32 ? 0xFFFF0000 : (y < 16 ? 0x8000FF00 : 0xFF0000FF));
+                image.setRGB(x, y, color);
+            }
+        }
+        byte[] png = write(image);
+
+        byte[] optimizedPNG = PngOptimizer.optimize(png, PngOptimizer.MAX_COMPRESSION_LEVEL);
+
+        assertSamePixels(png, optimizedPNG);
+    }
+
+    @Test
+    void optimizeImageWithTwoColors() throws Exception
+    {
+        BufferedImage image = new BufferedImage(50, 50, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFFFFFF : 0x000000);
+            }
+        }
+        byte[] png = write(image);
+
+        assertSamePixels(png, PngOptimizer.optimize(png, PngOptimizer.MAX_COMPRESSION_LEVEL));
+    }
+
+    @Test
+    void optimizeImageWithTooManyColorsForAPalette() throws Exception
+    {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8);
+            }
+        }
+        byte[] png = write(image);
+
+        assertSamePixels(png, PngOptimizer.optimize(png, 0));
+    }
+
+    @Test
+    void optimizeInvalidImage()
+    {
+        assertThrows(IOException.class, () -> PngOptimizer.optimize(new byte[] {1, 2, 3}, 9));
+    }
+
+    private static byte[] write(BufferedImage image) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static void assertSamePixels(byte[] expectedPNG, byte[] actualPNG) throws IOException
+    {
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(expectedPNG));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(actualPNG));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+            actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link RenderingExecutor}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RenderingExecutorTest
+{
+    private static final long TIMEOUT = 10;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private RenderingExecutor renderingExecutor;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown()
+    {
+        this.release.countDown();
+        this.renderingExecutor.dispose();
+    }
+
+    @Test
+    void executeWithPlaceholderPolicyWhenQueueIsFull() throws Exception
+    {
+        configure(RenderingExecutor.POLICY_PLACEHOLDER);
+        CompletableFuture<String> running = this.renderingExecutor.submit(this::block);
+        CompletableFuture<String> queued = this.renderingExecutor.submit(this::block);
+
+        assertThrows(RenderingRejectedException.class, () -> this.renderingExecutor.execute(() -> "rejected"));
+        assertEquals(1, this.renderingExecutor.getRejectedCount());
+
+        this.release.countDown();
+        assertEquals("done", running.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("done", queued.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("executed", this.renderingExecutor.execute(() -> "executed"));
+    }
+
+    @Test
+    void executeWithWaitPolicyWhenQueueIsFull() throws Exception
+    {
+        configure(RenderingExecutor.POLICY_WAIT);
+        this.renderingExecutor.submit(this::block);
+        this.renderingExecutor.submit(this::block);
+
+        // The rendering waits for a free place in the queue.
+        CompletableFuture<String> waiting =
+            CompletableFuture.supplyAsync(() -> execute(this.renderingExecutor, "executed"));
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+
+        this.release.countDown();
+        assertEquals("executed", waiting.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, this.renderingExecutor.getRejectedCount());
+    }
+
+    @Test
+    void submitWithPlaceholderPolicyWhenQueueIsFull() throws Exception
+    {
+        configure(RenderingExecutor.POLICY_PLACEHOLDER);
+        assertSubmitRejectedWhenQueueIsFull();
+    }
+
+    @Test
+    void submitWithWaitPolicyWhenQueueIsFull() throws Exception
+    {
+        // The background generations can't wait so they don't exceed the queue size either.
+        configure(RenderingExecutor.POLICY_WAIT);
+        assertSubmitRejectedWhenQueueIsFull();
+    }
+
+    private void assertSubmitRejectedWhenQueueIsFull() throws Exception
+    {
+        CompletableFuture<String> running = this.renderingExecutor.submit(this::block);
+        CompletableFuture<String> queued = this.renderingExecutor.submit(this::block);
+
+        CompletableFuture<String> rejected = this.renderingExecutor.submit(() -> "rejected");
+        ExecutionException exception = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(exception.getCause() instanceof RenderingRejectedException);
+        assertEquals(1, this.renderingExecutor.getRejectedCount());
+        assertFalse(running.isDone());
+
+        this.release.countDown();
+        assertEquals("done", running.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("done", queued.get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("executed", this.renderingExecutor.submit(() -> "executed").get(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(3, this.renderingExecutor.getExecutedCount());
+    }
+
+    private void configure(String rejectionPolicy) throws Exception
+    {
+        // One running generation and one waiting in the queue.
+        when(this.configuration.getRenderingMaxParallelism()).thenReturn(1);
+        when(this.configuration.getRenderingQueueSize()).thenReturn(1);
+        when(this.configuration.getRenderingRejectionPolicy()).thenReturn(rejectionPolicy);
+        this.renderingExecutor.dispose();
+        this.renderingExecutor.initialize();
+    }
+
+    private String block() throws InterruptedException
+    {
+        this.release.await(TIMEOUT, TimeUnit.SECONDS);
+        return "done";
+    }
+
+    private static String execute(RenderingExecutor renderingExecutor, String result)
+    {
+        try {
+            return renderingExecutor.execute(() -> result);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Unit tests for {@link SingleFlight}.
+ *
+ * @version $Id$
+ */
+class SingleFlightTest
+{
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+
+    /**
+     * The result of the thread started by {@link #startWaitingThread(SingleFlight.Computation)}.
+     */
+    private final CompletableFuture<String> waitingResult = new CompletableFuture<>();
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp()
+    {
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void executeSharesTheComputationInProgress() throws Exception
+    {
+        AtomicInteger computationCount = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = this.executor.submit(() -> this.singleFlight.execute("key", () -> {
+            computationCount.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "diagram";
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Thread waitingThread = startWaitingThread(() -> {
+            computationCount.incrementAndGet();
+            return "other";
+        });
+        release.countDown();
+
+        assertEquals("diagram", first.get(10, TimeUnit.SECONDS));
+        waitingThread.join(10000);
+        assertEquals("diagram", this.waitingResult.get(10, TimeUnit.SECONDS));
+        assertEquals(1, computationCount.get());
+        assertEquals(0, this.singleFlight.size());
+    }
+
+    @Test
+    void executePropagatesTheFailureToTheWaitingThreads() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("Server unavailable");
+        Future<String> first = this.executor.submit(() -> this.singleFlight.execute("key", () -> {
+            started.countDown();
+            await(release);
+            throw failure;
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Thread waitingThread = startWaitingThread(() -> fail("The computation in progress should be shared"));
+        release.countDown();
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> first.get(10, TimeUnit.SECONDS));
+        assertSame(failure, exception.getCause());
+        waitingThread.join(10000);
+        exception = assertThrows(ExecutionException.class, () -> this.waitingResult.get(10, TimeUnit.SECONDS));
+        assertSame(failure, exception.getCause());
+
+        // The failure is not remembered.
+        assertEquals(0, this.singleFlight.size());
+        assertEquals("diagram", this.singleFlight.execute("key", () -> "diagram"));
+    }
+
+    @Test
+    void executeDoesNotShareTheComputationsOfDifferentKeys() throws Exception
+    {
+        assertEquals("first", this.singleFlight.execute("first", () -> "first"));
+        assertEquals("second", this.singleFlight.execute("second", () -> "second"));
+    }
+
+    @Test
+    void executeAsyncSharesTheComputationInProgress() throws Exception
+    {
+        CompletableFuture<String> computation = new CompletableFuture<>();
+        CompletableFuture<String> first = this.singleFlight.executeAsync("key", () -> computation);
+        CompletableFuture<String> second =
+            this.singleFlight.executeAsync("key", () -> fail("The computation in progress should be shared"));
+
+        assertSame(first, second);
+        assertEquals(1, this.singleFlight.size());
+
+        computation.complete("diagram");
+
+        assertEquals("diagram", first.get(10, TimeUnit.SECONDS));
+        assertEquals(0, this.singleFlight.size());
+    }
+
+    @Test
+    void executeAsyncPropagatesTheFailure()
+    {
+        IOException failure = new IOException("Server unavailable");
+        CompletableFuture<String> computation = new CompletableFuture<>();
+        CompletableFuture<String> future = this.singleFlight.executeAsync("key",
+            () -> computation.thenApply(value -> value));
+
+        computation.completeExceptionally(failure);
+
+        // The failure is unwrapped from the CompletionException of the dependent stage.
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertSame(failure, exception.getCause());
+        assertEquals(0, this.singleFlight.size());
+    }
+
+    @Test
+    void executeAsyncPropagatesTheFailureToStartTheComputation()
+    {
+        IllegalStateException failure = new IllegalStateException("Rejected");
+        CompletableFuture<String> future = this.singleFlight.executeAsync("key", () -> {
+            throw failure;
+        });
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertSame(failure, exception.getCause());
+        assertEquals(0, this.singleFlight.size());
+    }
+
+    private Thread startWaitingThread(SingleFlight.Computation<String> computation) throws InterruptedException
+    {
+        Thread thread = new Thread(() -> {
+            try {
+                this.waitingResult.complete(this.singleFlight.execute("key", computation));
+            } catch (IOException | RuntimeException | Error e) {
+                this.waitingResult.completeExceptionally(e);
+            }
+        });
+        thread.start();
+
+        // Wait for the thread to block on the computation in progress.
+        while (thread.getState() != Thread.State.WAITING && thread.isAlive()) {
+            Thread.sleep(10);
+        }
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) throws IOException
+    {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
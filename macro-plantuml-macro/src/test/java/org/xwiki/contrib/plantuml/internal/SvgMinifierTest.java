@@ -0,0 +1,188 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link SvgMinifier}.
+ *
+ * @version $Id$
+ */
+class SvgMinifierTest
+{
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(?:\\.\\d+)?");
+
+    @Test
+    void minifyKeepsTheGeneratedDiagram() throws Exception
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SourceStringReader("@startuml\nAlice -> Bob : version 1.50\nnote left: 2.0 x 3.10\n@enduml\n")
+            .outputImage(outputStream, new FileFormatOption(FileFormat.SVG));
+        byte[] svg = outputStream.toByteArray();
+
+        byte[] minifiedSvg = SvgMinifier.minify(svg);
+
+        assertTrue(minifiedSvg.length < svg.length);
+        // The minified diagram is still valid XML with the same elements, attributes and texts.
+        assertEquivalent(parse(svg).getDocumentElement(), parse(minifiedSvg).getDocumentElement());
+    }
+
+    @Test
+    void minifyRemovesWhatIsNotDisplayed() throws Exception
+    {
+        String svg = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- the diagram source -->\n"
+            + "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100.0px\">\n  <metadata><source/></metadata>\n"
+            + "  <?plantuml 1.2025.2?>\n  <rect x=\"1.50\" y=\"-2.0\" width=\"10\"/>\n</svg>\n";
+
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100px\"><rect x=\"1.5\" y=\"-2\" width=\"10\"/>"
+            + "</svg>", minify(svg));
+    }
+
+    @Test
+    void minifyKeepsTheNonNumericAttributes() throws Exception
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\"><g data-entity=\"v1.0\" id=\"elem_1.0\">"
+            + "<text x=\"2.50\" style=\"font-size: 14.0px\" font-family=\"Font 2.0\">Release  1.0</text>"
+            + "<a href=\"http://example.org/page?version=2.0\">link</a></g></svg>";
+
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\"><g data-entity=\"v1.0\" id=\"elem_1.0\">"
+            + "<text x=\"2.5\" style=\"font-size: 14.0px\" font-family=\"Font 2.0\">Release  1.0</text>"
+            + "<a href=\"http://example.org/page?version=2.0\">link</a></g></svg>", minify(svg));
+    }
+
+    @Test
+    void minifyKeepsTheNumbersWithoutTrailingZeros() throws Exception
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\"><path d=\"M10,20.5 L100.05,0.0 L1.10e5,3\" "
+            + "transform=\"translate(0.500,1.0)\" points=\"10 20\"/></svg>";
+
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\"><path d=\"M10,20.5 L100.05,0 L1.1e5,3\" "
+            + "transform=\"translate(0.5,1)\" points=\"10 20\"/></svg>", minify(svg));
+    }
+
+    @Test
+    void minifyEscapesTheTextsAndAttributes() throws Exception
+    {
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\"><text title=\"a &quot;b&quot; &amp; c\">"
+            + "a &lt; b &amp;&amp; c &gt; d</text></svg>";
+
+        assertEquals(svg, minify(svg));
+    }
+
+    @Test
+    void minifyFailsOnInvalidXML()
+    {
+        assertThrows(IOException.class,
+            () -> SvgMinifier.minify("<svg><g></svg>".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String minify(String svg) throws Exception
+    {
+        return new String(SvgMinifier.minify(svg.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    private static Document parse(byte[] svg) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(svg));
+    }
+
+    private static void assertEquivalent(Element expected, Element actual)
+    {
+        assertEquals(expected.getTagName(), actual.getTagName());
+        NamedNodeMap expectedAttributes = expected.getAttributes();
+        assertEquals(expectedAttributes.getLength(), actual.getAttributes().getLength());
+        for (int i = 0; i < expectedAttributes.getLength(); i++) {
+            Attr attribute = (Attr) expectedAttributes.item(i);
+            String actualValue = actual.getAttributeNS(attribute.getNamespaceURI(), attribute.getLocalName());
+            assertEquivalent(attribute.getValue(), actualValue);
+        }
+
+        List<Node> expectedChildren = getDisplayedChildren(expected);
+        List<Node> actualChildren = getDisplayedChildren(actual);
+        assertEquals(expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            Node expectedChild = expectedChildren.get(i);
+            Node actualChild = actualChildren.get(i);
+            assertEquals(expectedChild.getNodeType(), actualChild.getNodeType());
+            if (expectedChild instanceof Element) {
+                assertEquivalent((Element) expectedChild, (Element) actualChild);
+            } else {
+                assertEquals(expectedChild.getNodeValue(), actualChild.getNodeValue());
+            }
+        }
+    }
+
+    /**
+     * The numbers can be written differently but must keep their value, and the rest of the value must be the same.
+     */
+    private static void assertEquivalent(String expected, String actual)
+    {
+        Matcher expectedNumbers = NUMBER.matcher(expected);
+        Matcher actualNumbers = NUMBER.matcher(actual);
+        while (expectedNumbers.find()) {
+            assertTrue(actualNumbers.find(), actual);
+            assertEquals(Double.parseDouble(expectedNumbers.group()), Double.parseDouble(actualNumbers.group()));
+        }
+        assertFalse(actualNumbers.find(), actual);
+        assertEquals(NUMBER.matcher(expected).replaceAll("0"), NUMBER.matcher(actual).replaceAll("0"));
+    }
+
+    private static List<Node> getDisplayedChildren(Element element)
+    {
+        List<Node> children = new ArrayList<>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            boolean displayed = child instanceof Element ? !"metadata".equals(child.getLocalName())
+                : (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE)
+                    && !child.getNodeValue().trim().isEmpty();
+            if (displayed) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+}
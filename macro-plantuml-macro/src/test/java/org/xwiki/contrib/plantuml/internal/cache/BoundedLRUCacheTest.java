@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link BoundedLRUCache}.
+ *
+ * @version $Id$
+ */
+class BoundedLRUCacheTest
+{
+    private final List<String> evictedKeys = new ArrayList<>();
+
+    private final BoundedLRUCache<String, String> cache =
+        new BoundedLRUCache<>(10, String::length, (key, value) -> this.evictedKeys.add(key));
+
+    @Test
+    void putEvictsTheLeastRecentlyUsedValues()
+    {
+        this.cache.put("a", "1234");
+        this.cache.put("b", "1234");
+        // Use the first value so that the second one becomes the least recently used.
+        assertEquals("1234", this.cache.get("a"));
+
+        this.cache.put("c", "1234");
+
+        assertNull(this.cache.get("b"));
+        assertEquals("1234", this.cache.get("a"));
+        assertEquals("1234", this.cache.get("c"));
+        assertEquals(Collections.singletonList("b"), this.evictedKeys);
+        assertEquals(2, this.cache.getEntryCount());
+        assertEquals(8, this.cache.getSize());
+    }
+
+    @Test
+    void putEvictsAsManyValuesAsNeeded()
+    {
+        this.cache.put("a", "123");
+        this.cache.put("b", "123");
+        this.cache.put("c", "123");
+
+        this.cache.put("d", "12345678");
+
+        assertEquals(Arrays.asList("a", "b", "c"), this.evictedKeys);
+        assertEquals(1, this.cache.getEntryCount());
+        assertEquals(8, this.cache.getSize());
+    }
+
+    @Test
+    void putReplacesTheValue()
+    {
+        this.cache.put("a", "1234");
+        this.cache.put("a", "12");
+
+        assertEquals("12", this.cache.get("a"));
+        assertEquals(1, this.cache.getEntryCount());
+        assertEquals(2, this.cache.getSize());
+        assertTrue(this.evictedKeys.isEmpty());
+    }
+
+    @Test
+    void putRejectsValuesBiggerThanTheCache()
+    {
+        this.cache.put("a", "1234");
+
+        assertFalse(this.cache.put("b", "12345678901"));
+
+        // The cache is not flushed.
+        assertNull(this.cache.get("b"));
+        assertEquals("1234", this.cache.get("a"));
+        assertTrue(this.evictedKeys.isEmpty());
+    }
+
+    @Test
+    void remove()
+    {
+        this.cache.put("a", "1234");
+
+        assertEquals("1234", this.cache.remove("a"));
+        assertNull(this.cache.remove("a"));
+
+        assertEquals(0, this.cache.getEntryCount());
+        assertEquals(0, this.cache.getSize());
+        // A removed value is not evicted.
+        assertTrue(this.evictedKeys.isEmpty());
+    }
+
+    @Test
+    void computeIfAbsent()
+    {
+        assertEquals("1234", this.cache.computeIfAbsent("a", key -> "1234"));
+        assertEquals("1234", this.cache.computeIfAbsent("a", key -> "12"));
+        this.cache.computeIfAbsent("b", key -> "1234");
+        // Use the first value so that the second one becomes the least recently used.
+        this.cache.computeIfAbsent("a", key -> "12");
+
+        this.cache.computeIfAbsent("c", key -> "1234");
+
+        assertEquals(Collections.singletonList("b"), this.evictedKeys);
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<>(this.cache.toMap().keySet()));
+    }
+
+    @Test
+    void evictionListenerIsCalledOutsideOfTheLock()
+    {
+        List<Boolean> locked = new ArrayList<>();
+        AtomicReference<BoundedLRUCache<String, String>> cacheReference = new AtomicReference<>();
+        BoundedLRUCache<String, String> lockedCache = new BoundedLRUCache<>(4, String::length,
+            (key, value) -> locked.add(Thread.holdsLock(cacheReference.get())));
+        cacheReference.set(lockedCache);
+
+        lockedCache.put("a", "1234");
+        lockedCache.put("b", "1234");
+        lockedCache.computeIfAbsent("c", key -> "1234");
+
+        assertEquals(Arrays.asList(false, false), locked);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import net.sourceforge.plantuml.dot.Graphviz;
+import net.sourceforge.plantuml.style.ISkinParam;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests for {@link CachingGraphvizFactory}.
+ *
+ * @version $Id$
+ */
+class CachingGraphvizFactoryTest
+{
+    private static final String DOT = "digraph unix { A -> B; }";
+
+    private final GraphvizLayoutCache layoutCache = mock(GraphvizLayoutCache.class);
+
+    private final ISkinParam skinParam = mock(ISkinParam.class);
+
+    @AfterEach
+    void afterEach()
+    {
+        CachingGraphvizFactory.removeLayoutCache(this.layoutCache);
+    }
+
+    @Test
+    void createWithoutLayoutCache()
+    {
+        assertNull(new CachingGraphvizFactory().create(this.skinParam, DOT, "svg"));
+    }
+
+    @Test
+    void createWrapsTheGraphvizChosenByPlantUML() throws Exception
+    {
+        CachingGraphvizFactory.setLayoutCache(this.layoutCache);
+
+        // PlantUML finds this factory again while the wrapped implementation is created.
+        Graphviz graphviz = new CachingGraphvizFactory().create(this.skinParam, DOT, "svg");
+
+        assertTrue(graphviz instanceof CachingGraphviz);
+        Graphviz wrappedGraphviz = (Graphviz) FieldUtils.readField(graphviz, "graphviz", true);
+        assertNotNull(wrappedGraphviz);
+        assertFalse(wrappedGraphviz instanceof CachingGraphviz);
+
+        // The recursion guard is cleared once the implementation is created.
+        assertTrue(new CachingGraphvizFactory().create(this.skinParam, DOT, "svg") instanceof CachingGraphviz);
+    }
+
+    @Test
+    void removeLayoutCacheKeepsTheCacheOfAnotherInstance()
+    {
+        CachingGraphvizFactory.setLayoutCache(this.layoutCache);
+
+        CachingGraphvizFactory.removeLayoutCache(mock(GraphvizLayoutCache.class));
+
+        assertNotNull(new CachingGraphvizFactory().create(this.skinParam, DOT, "svg"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import net.sourceforge.plantuml.dot.Graphviz;
+import net.sourceforge.plantuml.dot.ProcessState;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link CachingGraphviz}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class CachingGraphvizTest
+{
+    private static final String DOT = "digraph unix { A -> B; }";
+
+    private static final String LAYOUT = "<svg>layout</svg>";
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private GraphvizLayoutCache layoutCache;
+
+    private final Graphviz graphviz = mock(Graphviz.class);
+
+    private ProcessState state = ProcessState.TERMINATED_OK();
+
+    private String output = LAYOUT;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getLayoutCacheMaxSize()).thenReturn(1L);
+    }
+
+    @BeforeEach
+    void beforeEach()
+    {
+        when(this.graphviz.getDotExe()).thenReturn(new File("/usr/bin/dot"));
+        when(this.graphviz.createFile3(any())).then(invocation -> {
+            invocation.<OutputStream>getArgument(0).write(this.output.getBytes(StandardCharsets.UTF_8));
+            return this.state;
+        });
+    }
+
+    @Test
+    void createFile3CachesTheLayout()
+    {
+        assertEquals(LAYOUT, createFile3(ProcessState.TERMINATED_OK()));
+        // Another diagram with the same structure.
+        assertEquals(LAYOUT, createFile3(ProcessState.TERMINATED_OK()));
+
+        verify(this.graphviz, times(1)).createFile3(any());
+        assertEquals(1, this.layoutCache.getEntryCount());
+        assertEquals(1, this.layoutCache.getHitCount());
+    }
+
+    @Test
+    void createFile3DoesNotCacheTheFailures()
+    {
+        this.state = ProcessState.TIMEOUT();
+        this.output = "<svg>lay";
+
+        // The partial output is passed to PlantUML which reports the failure.
+        assertEquals("<svg>lay", createFile3(ProcessState.TIMEOUT()));
+        assertEquals(0, this.layoutCache.getEntryCount());
+
+        this.state = ProcessState.TERMINATED_OK();
+        this.output = LAYOUT;
+
+        assertEquals(LAYOUT, createFile3(ProcessState.TERMINATED_OK()));
+        verify(this.graphviz, times(2)).createFile3(any());
+        assertEquals(1, this.layoutCache.getEntryCount());
+    }
+
+    @Test
+    void createFile3DoesNotCacheEmptyLayouts()
+    {
+        this.output = "";
+
+        assertEquals("", createFile3(ProcessState.TERMINATED_OK()));
+        assertEquals("", createFile3(ProcessState.TERMINATED_OK()));
+
+        verify(this.graphviz, times(2)).createFile3(any());
+        assertEquals(0, this.layoutCache.getEntryCount());
+    }
+
+    private String createFile3(ProcessState expectedState)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ProcessState processState = new CachingGraphviz(this.graphviz, this.layoutCache, DOT, "svg").createFile3(os);
+
+        assertFalse(processState.differs(expectedState));
+        return new String(os.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
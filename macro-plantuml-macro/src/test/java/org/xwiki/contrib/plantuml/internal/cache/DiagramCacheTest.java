@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link DiagramCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class DiagramCacheTest
+{
+    private static final int DIAGRAM_SIZE = 400 * 1024;
+
+    @XWikiTempDir
+    private File permanentDirectory;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private DiagramCache diagramCache;
+
+    private final DiagramKey first = new DiagramKey("A -> B", null, PlantUMLDiagramFormat.png);
+
+    private final DiagramKey second = new DiagramKey("B -> C", null, PlantUMLDiagramFormat.png);
+
+    private final DiagramKey third = new DiagramKey("C -> D", null, PlantUMLDiagramFormat.png);
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        // 1 MB, i.e. two diagrams.
+        when(this.configuration.getCacheMaxSize()).thenReturn(1L);
+    }
+
+    @Test
+    void putAndGet() throws Exception
+    {
+        byte[] diagram = diagram(1);
+        this.diagramCache.put(this.first, diagram);
+
+        assertTrue(this.diagramCache.contains(this.first));
+        assertArrayEquals(diagram, this.diagramCache.get(this.first));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertTrue(this.diagramCache.copyTo(this.first, outputStream));
+        assertArrayEquals(diagram, outputStream.toByteArray());
+
+        assertNull(this.diagramCache.get(this.second));
+        assertFalse(this.diagramCache.copyTo(this.second, outputStream));
+
+        assertEquals(2, this.diagramCache.getHitCount());
+        assertEquals(1, this.diagramCache.getMissCount());
+    }
+
+    @Test
+    void putEvictsTheLeastRecentlyUsedDiagrams()
+    {
+        this.diagramCache.put(this.first, diagram(1));
+        this.diagramCache.put(this.second, diagram(2));
+        // Use the first diagram so that the second one becomes the least recently used.
+        this.diagramCache.get(this.first);
+
+        this.diagramCache.put(this.third, diagram(3));
+
+        assertTrue(this.diagramCache.contains(this.first));
+        assertFalse(this.diagramCache.contains(this.second));
+        assertTrue(this.diagramCache.contains(this.third));
+        assertEquals(2, this.diagramCache.getEntryCount());
+        assertEquals(2 * DIAGRAM_SIZE, this.diagramCache.getSize());
+        // The evicted diagram is removed from the disk.
+        assertEquals(2, listCachedFiles().length);
+    }
+
+    @Test
+    void putIgnoresDiagramsBiggerThanTheCache()
+    {
+        this.diagramCache.put(this.first, diagram(1));
+
+        this.diagramCache.put(this.second, new byte[2 * 1024 * 1024]);
+
+        assertTrue(this.diagramCache.contains(this.first));
+        assertFalse(this.diagramCache.contains(this.second));
+        assertEquals(1, listCachedFiles().length);
+    }
+
+    @Test
+    void reloadAfterRestart() throws Exception
+    {
+        byte[] firstDiagram = diagram(1);
+        this.diagramCache.put(this.first, firstDiagram);
+        this.diagramCache.put(this.second, diagram(2));
+        // Make the first diagram the most recently used one, whatever the precision of the modification times.
+        getCachedFile(this.second).setLastModified(System.currentTimeMillis() - 60000);
+        getCachedFile(this.first).setLastModified(System.currentTimeMillis());
+
+        DiagramCache restartedCache = new DiagramCache();
+        ReflectionUtils.setFieldValue(restartedCache, "environment", this.environment);
+        ReflectionUtils.setFieldValue(restartedCache, "configuration", this.configuration);
+        ReflectionUtils.setFieldValue(restartedCache, "logger", mock(Logger.class));
+        restartedCache.initialize();
+
+        assertEquals(2, restartedCache.getEntryCount());
+        assertEquals(2 * DIAGRAM_SIZE, restartedCache.getSize());
+        assertArrayEquals(firstDiagram, restartedCache.get(this.first));
+
+        // The least recently used order is restored from the modification times.
+        restartedCache.put(this.third, diagram(3));
+        assertTrue(restartedCache.contains(this.first));
+        assertFalse(restartedCache.contains(this.second));
+    }
+
+    private File[] listCachedFiles()
+    {
+        return Arrays.stream(getCacheDirectory().listFiles())
+            .flatMap(directory -> Arrays.stream(directory.listFiles())).toArray(File[]::new);
+    }
+
+    private File getCachedFile(DiagramKey key)
+    {
+        return new File(new File(getCacheDirectory(), key.getHash().substring(0, 2)), key.getHash());
+    }
+
+    private File getCacheDirectory()
+    {
+        return new File(this.permanentDirectory, "cache/plantuml");
+    }
+
+    private static byte[] diagram(int value)
+    {
+        byte[] diagram = new byte[DIAGRAM_SIZE];
+        Arrays.fill(diagram, (byte) value);
+        return diagram;
+    }
+}
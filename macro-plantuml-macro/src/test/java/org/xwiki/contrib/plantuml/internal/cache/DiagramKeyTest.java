@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Unit tests for {@link DiagramKey}.
+ *
+ * @version $Id$
+ */
+class DiagramKeyTest
+{
+    private static final String CONTENT = "A -> B";
+
+    private static final String SERVER_URL = "https://www.plantuml.com/plantuml";
+
+    @Test
+    void equalsAndHashCode()
+    {
+        DiagramKey key = new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.png, "optimized");
+        DiagramKey sameKey = new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.png, "optimized");
+
+        assertEquals(key, sameKey);
+        assertEquals(key.hashCode(), sameKey.hashCode());
+        assertEquals(key.getHash(), sameKey.getHash());
+        assertEquals(64, key.getHash().length());
+    }
+
+    @Test
+    void everyFieldInfluencesTheKey()
+    {
+        DiagramKey key = new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.png, "optimized");
+
+        assertNotEquals(key, new DiagramKey("B -> C", SERVER_URL, PlantUMLDiagramFormat.png, "optimized"));
+        assertNotEquals(key, new DiagramKey(CONTENT, null, PlantUMLDiagramFormat.png, "optimized"));
+        assertNotEquals(key, new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.svg, "optimized"));
+        assertNotEquals(key, new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.png));
+        assertNotEquals(key.getHash(), new DiagramKey(CONTENT, SERVER_URL, PlantUMLDiagramFormat.png).getHash());
+    }
+
+    @Test
+    void fieldsAreSeparatedInTheHash()
+    {
+        // Moving a character from a field to the next one must change the key.
+        assertNotEquals(new DiagramKey("A -> B", "x", PlantUMLDiagramFormat.png),
+            new DiagramKey("A -> Bx", "", PlantUMLDiagramFormat.png));
+    }
+
+    @Test
+    void missingFieldsAreEquivalentToEmptyOnes()
+    {
+        assertEquals(new DiagramKey(CONTENT, null, PlantUMLDiagramFormat.png, null),
+            new DiagramKey(CONTENT, "", PlantUMLDiagramFormat.png, ""));
+    }
+}
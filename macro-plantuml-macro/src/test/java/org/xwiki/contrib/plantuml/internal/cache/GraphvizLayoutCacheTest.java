@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link GraphvizLayoutCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class GraphvizLayoutCacheTest
+{
+    private static final int LAYOUT_SIZE = 400 * 1024;
+
+    private static final String DOT = "digraph unix { A -> B; }";
+
+    private static final String DOT_EXE = "/usr/bin/dot";
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private GraphvizLayoutCache layoutCache;
+
+    @BeforeComponent
+    void configure()
+    {
+        // 1 MB, i.e. two layouts.
+        when(this.configuration.getLayoutCacheMaxSize()).thenReturn(1L);
+    }
+
+    @Test
+    void getKey()
+    {
+        String key = this.layoutCache.getKey(DOT, DOT_EXE, "svg");
+
+        assertEquals(64, key.length());
+        assertEquals(key, this.layoutCache.getKey(DOT, DOT_EXE, "svg"));
+        assertNotEquals(key, this.layoutCache.getKey("digraph unix { A -> C; }", DOT_EXE, "svg"));
+        assertNotEquals(key, this.layoutCache.getKey(DOT, DOT_EXE, "png"));
+        // The layout can change when another version of GraphViz is used.
+        assertNotEquals(key, this.layoutCache.getKey(DOT, "/usr/local/bin/dot", "svg"));
+    }
+
+    @Test
+    void putAndGet()
+    {
+        byte[] layout = new byte[] { 1, 2, 3 };
+        this.layoutCache.put("first", layout);
+
+        assertArrayEquals(layout, this.layoutCache.get("first"));
+        assertNull(this.layoutCache.get("second"));
+
+        assertEquals(1, this.layoutCache.getHitCount());
+        assertEquals(1, this.layoutCache.getMissCount());
+    }
+
+    @Test
+    void putEvictsTheLeastRecentlyUsedLayouts()
+    {
+        this.layoutCache.put("first", new byte[LAYOUT_SIZE]);
+        this.layoutCache.put("second", new byte[LAYOUT_SIZE]);
+        // Use the first layout so that the second one becomes the least recently used.
+        this.layoutCache.get("first");
+
+        this.layoutCache.put("third", new byte[LAYOUT_SIZE]);
+
+        assertNull(this.layoutCache.get("second"));
+        assertEquals(LAYOUT_SIZE, this.layoutCache.get("first").length);
+        assertEquals(LAYOUT_SIZE, this.layoutCache.get("third").length);
+        assertEquals(2, this.layoutCache.getEntryCount());
+    }
+}
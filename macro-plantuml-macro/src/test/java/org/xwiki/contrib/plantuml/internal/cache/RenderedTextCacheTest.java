@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.cache;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link RenderedTextCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class RenderedTextCacheTest
+{
+    private static final long TEXT_SIZE = 400 * 1024;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private RenderedTextCache textCache;
+
+    private final DiagramKey first = new DiagramKey("A -> B", null, PlantUMLDiagramFormat.svg);
+
+    private final DiagramKey second = new DiagramKey("B -> C", null, PlantUMLDiagramFormat.svg);
+
+    private final DiagramKey third = new DiagramKey("C -> D", null, PlantUMLDiagramFormat.svg);
+
+    @BeforeComponent
+    void configure()
+    {
+        // 1 MB, i.e. two texts.
+        when(this.configuration.getMemoryCacheMaxSize()).thenReturn(1L);
+        when(this.configuration.getMemoryCacheTimeToLive()).thenReturn(1L);
+    }
+
+    @Test
+    void putAndGet()
+    {
+        this.textCache.put(this.first, "<svg/>", TEXT_SIZE);
+
+        assertEquals("<svg/>", this.textCache.get(this.first));
+        assertNull(this.textCache.get(this.second));
+
+        assertEquals(1, this.textCache.getHitCount());
+        assertEquals(1, this.textCache.getMissCount());
+    }
+
+    @Test
+    void putEvictsTheLeastRecentlyUsedTexts()
+    {
+        this.textCache.put(this.first, "first", TEXT_SIZE);
+        this.textCache.put(this.second, "second", TEXT_SIZE);
+        // Use the first text so that the second one becomes the least recently used.
+        this.textCache.get(this.first);
+
+        this.textCache.put(this.third, "third", TEXT_SIZE);
+
+        assertEquals("first", this.textCache.get(this.first));
+        assertNull(this.textCache.get(this.second));
+        assertEquals("third", this.textCache.get(this.third));
+        assertEquals(2, this.textCache.getEntryCount());
+        assertEquals(2 * TEXT_SIZE, this.textCache.getSize());
+    }
+
+    @Test
+    void putIgnoresTextsBiggerThanTheCache()
+    {
+        this.textCache.put(this.first, "first", TEXT_SIZE);
+
+        this.textCache.put(this.second, "second", 2 * 1024 * 1024);
+
+        assertEquals("first", this.textCache.get(this.first));
+        assertNull(this.textCache.get(this.second));
+    }
+
+    @Test
+    void getRemovesTheExpiredTexts() throws Exception
+    {
+        this.textCache.put(this.first, "first", TEXT_SIZE);
+
+        Thread.sleep(1100);
+
+        assertNull(this.textCache.get(this.first));
+        assertEquals(0, this.textCache.getEntryCount());
+        assertEquals(0, this.textCache.getSize());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link Histogram}.
+ *
+ * @version $Id$
+ */
+class HistogramTest
+{
+    @Test
+    void snapshot()
+    {
+        Histogram histogram = new Histogram(10, 100);
+        histogram.record(5);
+        histogram.record(10);
+        histogram.record(50);
+        histogram.record(1000);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(4, snapshot.getCount());
+        assertEquals(1065, snapshot.getSum());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(266.25, snapshot.getMean());
+        // The counts are cumulative and the bounds are inclusive.
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        buckets.put("10", 2L);
+        buckets.put("100", 3L);
+        buckets.put("+Inf", 4L);
+        assertEquals(buckets, snapshot.getBuckets());
+    }
+
+    @Test
+    void snapshotWithoutValues()
+    {
+        HistogramSnapshot snapshot = new Histogram(10).snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0L, snapshot.getBuckets().get("+Inf"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.manager.NamespacedComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PlantUMLMetrics}.
+ *
+ * @version $Id$
+ */
+class PlantUMLMetricsTest
+{
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    private final NamespacedComponentManager wikiComponentManager = mock(NamespacedComponentManager.class);
+
+    private final PlantUMLMetrics farmMetrics = createMetrics(mock(ComponentManager.class));
+
+    private final PlantUMLMetrics wikiMetrics = createMetrics(this.wikiComponentManager);
+
+    @AfterEach
+    void afterEach()
+    {
+        this.farmMetrics.dispose();
+        this.wikiMetrics.dispose();
+    }
+
+    @Test
+    void registerOneInstancePerNamespace() throws Exception
+    {
+        when(this.wikiComponentManager.getNamespace()).thenReturn("wiki:dev");
+
+        this.farmMetrics.initialize();
+        this.wikiMetrics.initialize();
+
+        assertTrue(this.server.isRegistered(new ObjectName(PlantUMLMetrics.OBJECT_NAME)));
+        assertTrue(this.server.isRegistered(new ObjectName(PlantUMLMetrics.OBJECT_NAME + ",namespace=\"wiki:dev\"")));
+
+        this.wikiMetrics.dispose();
+
+        assertTrue(this.server.isRegistered(new ObjectName(PlantUMLMetrics.OBJECT_NAME)));
+        assertFalse(this.server.isRegistered(new ObjectName(PlantUMLMetrics.OBJECT_NAME + ",namespace=\"wiki:dev\"")));
+    }
+
+    @Test
+    void registerDoesNotReplaceAnotherInstance() throws Exception
+    {
+        // Another application in the same JVM.
+        PlantUMLMetrics otherMetrics = createMetrics(mock(ComponentManager.class));
+        Logger logger = mock(Logger.class);
+        ReflectionUtils.setFieldValue(otherMetrics, "logger", logger);
+
+        this.farmMetrics.initialize();
+        otherMetrics.initialize();
+        otherMetrics.dispose();
+
+        verify(logger).warn(eq("Failed to register the PlantUML metrics in JMX. Root cause: [{}]"), any(String.class));
+        assertTrue(this.server.isRegistered(new ObjectName(PlantUMLMetrics.OBJECT_NAME)));
+    }
+
+    private static PlantUMLMetrics createMetrics(ComponentManager componentManager)
+    {
+        PlantUMLMetrics metrics = new PlantUMLMetrics();
+        ReflectionUtils.setFieldValue(metrics, "componentManager", componentManager);
+        ReflectionUtils.setFieldValue(metrics, "logger", mock(Logger.class));
+        return metrics;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.prerender;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.PlantUMLBatchRenderer;
+import org.xwiki.contrib.plantuml.internal.PlantUMLMacro;
+import org.xwiki.model.ModelContext;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.rendering.block.MacroBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.macro.Macro;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PrerenderJob}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PrerenderJobTest
+{
+    @MockComponent
+    private DocumentAccessBridge documentAccessBridge;
+
+    @MockComponent
+    private ModelContext modelContext;
+
+    @MockComponent
+    private PlantUMLBatchRenderer batchRenderer;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @InjectMockComponents
+    private PrerenderJob job;
+
+    private final PlantUMLMacro macro = mock(PlantUMLMacro.class);
+
+    private final DocumentReference documentReference = mock(DocumentReference.class);
+
+    private final DocumentModelBridge document = mock(DocumentModelBridge.class);
+
+    private final EntityReference currentEntityReference = mock(EntityReference.class);
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.componentManager.registerComponent(Macro.class, PrerenderJob.MACRO_ID, this.macro);
+        when(this.configuration.getPrerenderMaxParallelism()).thenReturn(2);
+        when(this.documentAccessBridge.getDocumentInstance(this.documentReference)).thenReturn(this.document);
+        when(this.modelContext.getCurrentEntityReference()).thenReturn(this.currentEntityReference);
+        when(this.batchRenderer.prepare(same(this.macro), any(), anyInt()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        PrerenderRequest request = new PrerenderRequest();
+        request.setDocuments(Collections.singletonList(this.documentReference));
+        this.job.initialize(request);
+    }
+
+    @Test
+    void prerenderInTheContextOfTheDocument() throws Exception
+    {
+        MacroBlock macroBlock = new MacroBlock(PrerenderJob.MACRO_ID, Collections.emptyMap(), "A -> B", false);
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.singletonList(macroBlock)));
+
+        this.job.runInternal();
+
+        // The diagrams are generated while the document is the current document.
+        InOrder inOrder = inOrder(this.modelContext, this.documentAccessBridge, this.batchRenderer);
+        inOrder.verify(this.modelContext).setCurrentEntityReference(this.documentReference);
+        inOrder.verify(this.documentAccessBridge).pushDocumentInContext(anyMap(), same(this.document));
+        inOrder.verify(this.batchRenderer).prepare(this.macro, Collections.singletonList(macroBlock), 2);
+        inOrder.verify(this.documentAccessBridge).popDocumentFromContext(anyMap());
+        inOrder.verify(this.modelContext).setCurrentEntityReference(this.currentEntityReference);
+    }
+
+    @Test
+    void prerenderRestoresTheContextWhenTheGenerationFails() throws Exception
+    {
+        MacroBlock macroBlock = new MacroBlock(PrerenderJob.MACRO_ID, Collections.emptyMap(), "A -> B", false);
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.singletonList(macroBlock)));
+        CompletableFuture<Void> failedGeneration = new CompletableFuture<>();
+        failedGeneration.completeExceptionally(new RuntimeException("error"));
+        when(this.batchRenderer.prepare(same(this.macro), any(), anyInt())).thenReturn(failedGeneration);
+
+        this.job.runInternal();
+
+        verify(this.documentAccessBridge).popDocumentFromContext(anyMap());
+        verify(this.modelContext).setCurrentEntityReference(this.currentEntityReference);
+    }
+
+    @Test
+    void prerenderDocumentWithoutDiagrams() throws Exception
+    {
+        when(this.document.getXDOM()).thenReturn(new XDOM(Collections.emptyList()));
+
+        this.job.runInternal();
+
+        verify(this.documentAccessBridge, never()).pushDocumentInContext(anyMap(), any());
+        verify(this.batchRenderer, never()).prepare(any(), any(), anyInt());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.internal.server.CircuitBreaker.State;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ *
+ * @version $Id$
+ */
+class CircuitBreakerTest
+{
+    private static final long LONG_COOLDOWN = 3600000;
+
+    @Test
+    void opensAfterConsecutiveFailures()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, LONG_COOLDOWN);
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordFailure();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordFailure();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getFailureCount());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    void successResetsTheFailureCount()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, LONG_COOLDOWN);
+
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+
+        // The failures are not consecutive.
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getFailureCount());
+    }
+
+    @Test
+    void halfOpenAfterTheCooldownAndClosesOnSuccess()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0);
+        circuitBreaker.recordFailure();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+
+        // The cooldown is over: a single trial call is allowed.
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getFailureCount());
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    void halfOpenReopensOnFailure()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 0);
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+
+        // A single failure of the trial call is enough to open the circuit again.
+        circuitBreaker.recordFailure();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void staysOpenDuringTheCooldown()
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, LONG_COOLDOWN);
+        circuitBreaker.recordFailure();
+
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(State.OPEN, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.internal.metrics.PlantUMLMetrics;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link PlantUMLServerClient}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class PlantUMLServerClientTest
+{
+    private static final byte[] DIAGRAM = "<svg/>".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ERROR = "error".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Bigger than the copy buffer.
+     */
+    private static final byte[] LARGE_DIAGRAM = new byte[200 * 1024];
+
+    static {
+        new Random(42).nextBytes(LARGE_DIAGRAM);
+    }
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @MockComponent
+    private PlantUMLMetrics metrics;
+
+    @InjectMockComponents
+    private ServerLoadBalancer loadBalancer;
+
+    @InjectMockComponents
+    private PlantUMLServerClient client;
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private String serverURL;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * Released at the end of each test to stop sending the slow responses.
+     */
+    private final CountDownLatch slowResponses = new CountDownLatch(1);
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.configuration.getServerMaxConnections()).thenReturn(20);
+        when(this.configuration.getServerMaxConnectionsPerRoute()).thenReturn(10);
+        when(this.configuration.getServerKeepAlive()).thenReturn(60L);
+        when(this.configuration.getServerIdleTimeout()).thenReturn(30L);
+        when(this.configuration.getServerConnectTimeout()).thenReturn(10);
+        when(this.configuration.getServerResponseTimeout()).thenReturn(30);
+        when(this.configuration.getServerRequestTimeout()).thenReturn(60);
+        when(this.configuration.getServerFailureThreshold()).thenReturn(5);
+        when(this.configuration.getServerCooldown()).thenReturn(30L);
+    }
+
+    @BeforeEach
+    void beforeEach() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", this::handle);
+        // Handle the requests concurrently so that a slow response doesn't delay the other ones.
+        this.serverExecutor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverExecutor);
+        this.server.start();
+        this.serverURL = String.format("http://localhost:%s", this.server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void afterEach() throws Exception
+    {
+        this.slowResponses.countDown();
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+        this.client.dispose();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        this.requestCount.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        try (OutputStream body = exchange.getResponseBody()) {
+            if (path.startsWith("/error")) {
+                send(exchange, 500, ERROR);
+            } else if (path.startsWith("/invalid")) {
+                send(exchange, 400, ERROR);
+            } else if (path.startsWith("/slow")) {
+                // Start sending the response but never finish it.
+                exchange.sendResponseHeaders(200, 0);
+                body.write(DIAGRAM);
+                body.flush();
+                this.slowResponses.await(30, TimeUnit.SECONDS);
+            } else {
+                send(exchange, 200, path.endsWith("/large") ? LARGE_DIAGRAM : DIAGRAM);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] content) throws IOException
+    {
+        exchange.sendResponseHeaders(status, content.length);
+        exchange.getResponseBody().write(content);
+    }
+
+    @Test
+    void get() throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        this.client.get(this.serverURL, "svg/diagram", output);
+
+        assertEquals(new String(DIAGRAM, StandardCharsets.UTF_8), output.toString("UTF-8"));
+        assertEquals(CircuitBreaker.State.CLOSED, this.client.getCircuitBreakerStates().get(this.serverURL));
+    }
+
+    @Test
+    void getLargeDiagram() throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        this.client.get(this.serverURL, "png/large", output);
+
+        assertArrayEquals(LARGE_DIAGRAM, output.toByteArray());
+    }
+
+    @Test
+    void getKeepsTheStateOfALimitedNumberOfServers() throws IOException
+    {
+        // The server URL can be passed as a macro parameter so each distinct URL is a new server.
+        for (int i = 0; i < 150; i++) {
+            String otherServerURL = String.format("%s/server%s", this.serverURL, i);
+            this.client.get(otherServerURL, "svg/diagram", new ByteArrayOutputStream());
+        }
+
+        assertEquals(100, this.client.getCircuitBreakerStates().size());
+        // The least recently called servers are forgotten.
+        assertTrue(this.client.getCircuitBreakerStates().containsKey(this.serverURL + "/server149"));
+        assertFalse(this.client.getCircuitBreakerStates().containsKey(this.serverURL + "/server0"));
+    }
+
+    @Test
+    void getWithClientError()
+    {
+        String invalidServerURL = this.serverURL + "/invalid";
+
+        HttpResponseException exception = assertThrows(HttpResponseException.class,
+            () -> this.client.get(invalidServerURL, "svg/diagram", new ByteArrayOutputStream()));
+
+        assertEquals(400, exception.getStatusCode());
+        // An invalid diagram doesn't mean that the server is unhealthy.
+        assertEquals(CircuitBreaker.State.CLOSED, this.client.getCircuitBreakerStates().get(invalidServerURL));
+    }
+
+    @Test
+    void getRetriesOnAnotherServer() throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        this.client.get(this.serverURL + "/error," + this.serverURL, "svg/diagram", output);
+
+        assertEquals(new String(DIAGRAM, StandardCharsets.UTF_8), output.toString("UTF-8"));
+    }
+
+    @Test
+    void getOpensTheCircuitBreakerAfterConsecutiveFailures()
+    {
+        String failingServerURL = this.serverURL + "/error";
+        for (int i = 0; i < 5; i++) {
+            assertThrows(HttpResponseException.class,
+                () -> this.client.get(failingServerURL, "svg/diagram", new ByteArrayOutputStream()));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, this.client.getCircuitBreakerStates().get(failingServerURL));
+
+        // The server is not called anymore until the end of the cooldown.
+        assertThrows(ServerUnavailableException.class,
+            () -> this.client.get(failingServerURL, "svg/diagram", new ByteArrayOutputStream()));
+        assertEquals(5, this.requestCount.get());
+    }
+
+    @Test
+    void getAbortsTheRequestsTakingTooMuchTime()
+    {
+        when(this.configuration.getServerRequestTimeout()).thenReturn(1);
+
+        // The response timeout doesn't apply because the server keeps the connection busy.
+        assertThrows(SocketTimeoutException.class,
+            () -> this.client.get(this.serverURL + "/slow", "svg/diagram", new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void getAsync() throws Exception
+    {
+        assertArrayEquals(DIAGRAM, this.client.getAsync(this.serverURL, "svg/diagram").get(10, TimeUnit.SECONDS));
+        assertArrayEquals(LARGE_DIAGRAM, this.client.getAsync(this.serverURL, "png/large").get(10, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.CLOSED, this.client.getCircuitBreakerStates().get(this.serverURL));
+    }
+
+    @Test
+    void getAsyncWithClientError()
+    {
+        String invalidServerURL = this.serverURL + "/invalid";
+
+        HttpResponseException exception =
+            getFailure(this.client.getAsync(invalidServerURL, "svg/diagram"), HttpResponseException.class);
+
+        assertEquals(400, exception.getStatusCode());
+        assertEquals(CircuitBreaker.State.CLOSED, this.client.getCircuitBreakerStates().get(invalidServerURL));
+    }
+
+    @Test
+    void getAsyncRetriesOnAnotherServer() throws Exception
+    {
+        String serverURLs = this.serverURL + "/error," + this.serverURL;
+
+        assertArrayEquals(DIAGRAM, this.client.getAsync(serverURLs, "svg/diagram").get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void getAsyncOpensTheCircuitBreakerAfterConsecutiveFailures()
+    {
+        String failingServerURL = this.serverURL + "/error";
+        for (int i = 0; i < 5; i++) {
+            getFailure(this.client.getAsync(failingServerURL, "svg/diagram"), HttpResponseException.class);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, this.client.getCircuitBreakerStates().get(failingServerURL));
+
+        getFailure(this.client.getAsync(failingServerURL, "svg/diagram"), ServerUnavailableException.class);
+        assertEquals(5, this.requestCount.get());
+    }
+
+    @Test
+    void getAsyncAbortsTheRequestsTakingTooMuchTime()
+    {
+        when(this.configuration.getServerRequestTimeout()).thenReturn(1);
+
+        getFailure(this.client.getAsync(this.serverURL + "/slow", "svg/diagram"), SocketTimeoutException.class);
+        assertEquals(CircuitBreaker.State.CLOSED, this.client.getCircuitBreakerStates().get(this.serverURL + "/slow"));
+    }
+
+    private <T extends Throwable> T getFailure(CompletableFuture<byte[]> future, Class<T> failureType)
+    {
+        ExecutionException exception =
+            assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(failureType.isInstance(exception.getCause()), () -> "Unexpected failure " + exception.getCause());
+        return failureType.cast(exception.getCause());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link ServerLoadBalancer}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ServerLoadBalancerTest
+{
+    private static final String FIRST = "http://first:8080";
+
+    private static final String SECOND = "http://second:8080";
+
+    private static final String THIRD = "http://third:8080";
+
+    private static final List<String> SERVERS = Arrays.asList(FIRST, SECOND, THIRD);
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private ServerLoadBalancer loadBalancer;
+
+    @Test
+    void split()
+    {
+        assertEquals(SERVERS, this.loadBalancer.split(" http://first:8080/, http://second:8080\nhttp://third:8080 "));
+    }
+
+    @Test
+    void orderWithRoundRobin()
+    {
+        when(this.configuration.getServerLoadBalancing()).thenReturn(ServerLoadBalancer.ROUND_ROBIN);
+
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), this.loadBalancer.order(SERVERS));
+        assertEquals(Arrays.asList(SECOND, THIRD, FIRST), this.loadBalancer.order(SERVERS));
+        assertEquals(Arrays.asList(THIRD, FIRST, SECOND), this.loadBalancer.order(SERVERS));
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), this.loadBalancer.order(SERVERS));
+    }
+
+    @Test
+    void orderWithRoundRobinIgnoresTheCallsInProgress()
+    {
+        when(this.configuration.getServerLoadBalancing()).thenReturn(ServerLoadBalancer.ROUND_ROBIN);
+        this.loadBalancer.begin(FIRST);
+
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), this.loadBalancer.order(SERVERS));
+    }
+
+    @Test
+    void orderWithLeastRequests()
+    {
+        when(this.configuration.getServerLoadBalancing()).thenReturn(ServerLoadBalancer.LEAST_REQUESTS);
+        this.loadBalancer.begin(FIRST);
+        this.loadBalancer.begin(FIRST);
+        this.loadBalancer.begin(SECOND);
+
+        assertEquals(Arrays.asList(THIRD, SECOND, FIRST), this.loadBalancer.order(SERVERS));
+
+        this.loadBalancer.end(FIRST);
+        this.loadBalancer.end(FIRST);
+        this.loadBalancer.begin(THIRD);
+
+        // The servers with the same number of calls in progress stay in round robin order.
+        assertEquals(Arrays.asList(FIRST, SECOND, THIRD), this.loadBalancer.order(SERVERS));
+        assertEquals(0, (int) this.loadBalancer.getOutstandingRequests().get(FIRST));
+    }
+
+    @Test
+    void orderWithASingleServer()
+    {
+        List<String> servers = Collections.singletonList(FIRST);
+
+        assertEquals(servers, this.loadBalancer.order(servers));
+    }
+
+    @Test
+    void keepsTheStateOfALimitedNumberOfServers()
+    {
+        when(this.configuration.getServerLoadBalancing()).thenReturn(ServerLoadBalancer.ROUND_ROBIN);
+        this.loadBalancer.order(SERVERS);
+        this.loadBalancer.begin(FIRST);
+        this.loadBalancer.end(FIRST);
+
+        // The server URL can be passed as a macro parameter so each distinct URL is a new server.
+        for (int i = 0; i < 150; i++) {
+            String serverURL = "http://server" + i;
+            this.loadBalancer.order(Arrays.asList(serverURL, SECOND));
+            this.loadBalancer.begin(serverURL);
+        }
+
+        assertEquals(100, this.loadBalancer.getOutstandingRequests().size());
+        assertFalse(this.loadBalancer.getOutstandingRequests().containsKey(FIRST));
+        // Ending a call to a forgotten server doesn't track it again.
+        this.loadBalancer.end(FIRST);
+        assertFalse(this.loadBalancer.getOutstandingRequests().containsKey(FIRST));
+        // The round robin starts again for the forgotten replicas.
+        assertEquals(SERVERS, this.loadBalancer.order(SERVERS));
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.container.Container;
+import org.xwiki.container.servlet.ServletRequest;
+import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.contrib.plantuml.PlantUMLDiagramFormat;
+import org.xwiki.contrib.plantuml.internal.DiagramGenerator;
+import org.xwiki.contrib.plantuml.internal.cache.DiagramKey;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.resource.ResourceReferenceHandlerChain;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link ImageResourceReferenceHandler}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class ImageResourceReferenceHandlerTest
+{
+    private static final byte[] IMAGE = "image".getBytes(StandardCharsets.UTF_8);
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @XWikiTempDir
+    private File temporaryDirectory;
+
+    @MockComponent
+    private Container container;
+
+    @MockComponent
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @MockComponent
+    private ContextualAuthorizationManager authorization;
+
+    @MockComponent
+    private AuthorizationManager authorizationManager;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @MockComponent
+    private DiagramGenerator diagramGenerator;
+
+    @InjectMockComponents
+    private ImageResourceReferenceHandler handler;
+
+    @InjectMockComponents
+    private ImageStorageJanitor janitor;
+
+    private final WikiReference wiki = new WikiReference("wiki");
+
+    private final DiagramKey key = new DiagramKey("@startuml\nA -> B\n@enduml", null, PlantUMLDiagramFormat.png);
+
+    private final String imageId = this.key.getHash() + ".png";
+
+    private final TemporaryResourceReference reference =
+        new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, this.imageId, this.wiki);
+
+    private final HttpServletRequest request = mock(HttpServletRequest.class);
+
+    private final HttpServletResponse response = mock(HttpServletResponse.class);
+
+    private final ResourceReferenceHandlerChain chain = mock(ResourceReferenceHandlerChain.class);
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @BeforeComponent
+    void configureJanitor()
+    {
+        when(this.configuration.getImageStorageCleanupInterval()).thenReturn(3600L);
+        when(this.configuration.getImageStorageMaxSize()).thenReturn(500L);
+    }
+
+    @BeforeEach
+    void configure() throws Exception
+    {
+        File moduleDirectory = new File(this.temporaryDirectory, TemporaryImageWriter.MODULE_ID);
+        when(this.temporaryResourceStore.getTemporaryFile(any())).then(invocation -> {
+            TemporaryResourceReference resourceReference = invocation.getArgument(0);
+            EntityReference owner = resourceReference.getOwningEntityReference();
+            return new File(owner != null ? new File(moduleDirectory, "wiki") : moduleDirectory,
+                resourceReference.getResourceName());
+        });
+        when(this.container.getRequest()).thenReturn(new ServletRequest(this.request));
+        when(this.request.getDateHeader(any())).thenReturn(-1L);
+        when(this.container.getResponse()).thenReturn(new ServletResponse(this.response));
+        when(this.authorization.hasAccess(Right.VIEW, this.wiki)).thenReturn(true);
+        when(this.configuration.getImageStorageMaxAge()).thenReturn(604800L);
+        when(this.configuration.getImageStorageCacheMaxAge()).thenReturn(31536000L);
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write(IMAGE);
+            return null;
+        }).when(this.diagramGenerator).writeTo(eq(this.key), any());
+        when(this.response.getOutputStream()).thenReturn(new ServletOutputStream()
+        {
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener)
+            {
+                // Blocking output.
+            }
+
+            @Override
+            public void write(int b)
+            {
+                ImageResourceReferenceHandlerTest.this.output.write(b);
+            }
+        });
+    }
+
+    @Test
+    void handlePng() throws Exception
+    {
+        File imageFile = writeImage(this.imageId, IMAGE);
+        when(this.authorizationManager.hasAccess(Right.VIEW, null, this.wiki)).thenReturn(true);
+
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.chain, never()).handleNext(any());
+        verify(this.response).setContentType("image/png");
+        verify(this.response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        verify(this.response).setHeader("ETag", "W/\"" + this.imageId + "\"");
+        verify(this.response).setDateHeader("Last-Modified", imageFile.lastModified());
+        verify(this.response).setContentLengthLong(imageFile.length());
+        verify(this.response, never()).addHeader(eq("Vary"), any());
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+    }
+
+    @Test
+    void handleImageOnlyUsersCanView() throws Exception
+    {
+        writeImage(this.imageId, IMAGE);
+
+        this.handler.handle(this.reference, this.chain);
+
+        // Guests can't view the image so it must not be kept by the shared caches.
+        verify(this.response).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+    }
+
+    @Test
+    void handleCompressedSvg() throws Exception
+    {
+        String svgId = this.key.getHash() + ".svg";
+        writeImage(svgId, IMAGE);
+        byte[] compressed = "compressed".getBytes(StandardCharsets.UTF_8);
+        writeImage(svgId + TemporaryImageWriter.COMPRESSED_SUFFIX, compressed);
+        when(this.request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate, br");
+
+        this.handler.handle(new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, svgId, this.wiki),
+            this.chain);
+
+        verify(this.response).setContentType("image/svg+xml");
+        verify(this.response).setHeader("Content-Encoding", "gzip");
+        verify(this.response).addHeader("Vary", "Accept-Encoding");
+        assertArrayEquals(compressed, this.output.toByteArray());
+    }
+
+    @Test
+    void handleSvgWithoutCompression() throws Exception
+    {
+        String svgId = this.key.getHash() + ".svg";
+        writeImage(svgId, IMAGE);
+        writeImage(svgId + TemporaryImageWriter.COMPRESSED_SUFFIX, "compressed".getBytes(StandardCharsets.UTF_8));
+
+        this.handler.handle(new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, svgId, this.wiki),
+            this.chain);
+
+        verify(this.response).setContentType("image/svg+xml");
+        verify(this.response, never()).setHeader(eq("Content-Encoding"), any());
+        verify(this.response).addHeader("Vary", "Accept-Encoding");
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+    }
+
+    @Test
+    void handleIfNoneMatch() throws Exception
+    {
+        writeImage(this.imageId, IMAGE);
+        when(this.request.getHeader("If-None-Match")).thenReturn("W/\"other\", \"" + this.imageId + "\"");
+
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.response).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+        verify(this.response, never()).getOutputStream();
+        verify(this.chain, never()).handleNext(any());
+    }
+
+    @Test
+    void handleIfNoneMatchWithOtherImage() throws Exception
+    {
+        writeImage(this.imageId, IMAGE);
+        when(this.request.getHeader("If-None-Match")).thenReturn("W/\"other\"");
+        // The entity tags take precedence over the modification date.
+        when(this.request.getDateHeader("If-Modified-Since")).thenReturn(System.currentTimeMillis());
+
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+    }
+
+    @Test
+    void handleIfModifiedSince() throws Exception
+    {
+        File imageFile = writeImage(this.imageId, IMAGE);
+        // The modification time of the image is updated when it's used but the image doesn't change.
+        imageFile.setLastModified(System.currentTimeMillis() + DAY);
+        when(this.request.getDateHeader("If-Modified-Since")).thenReturn(System.currentTimeMillis() - DAY);
+
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(this.response, never()).getOutputStream();
+    }
+
+    @Test
+    void handleInvalidIfModifiedSince() throws Exception
+    {
+        writeImage(this.imageId, IMAGE);
+        when(this.request.getDateHeader("If-Modified-Since")).thenThrow(new IllegalArgumentException());
+
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+    }
+
+    @Test
+    void handleImageUserCannotView() throws Exception
+    {
+        writeImage(this.imageId, IMAGE);
+        when(this.authorization.hasAccess(Right.VIEW, this.wiki)).thenReturn(false);
+
+        this.handler.handle(this.reference, this.chain);
+
+        // The default handler sends the error, without the headers letting the browsers cache it.
+        verify(this.chain).handleNext(this.reference);
+        verify(this.response, never()).setHeader(any(), any());
+        verify(this.response, never()).getOutputStream();
+    }
+
+    @Test
+    void handleImageRemovedWhileDisplayedByCachedPage() throws Exception
+    {
+        // The image has been rendered in a page whose rendering is cached.
+        File imageFile = this.temporaryResourceStore.getTemporaryFile(this.reference);
+        TemporaryImageWriter.write(imageFile, outputStream -> outputStream.write(IMAGE));
+        TemporaryImageWriter.write(ImageSources.getFile(imageFile), outputStream -> ImageSources.write(this.key,
+            outputStream));
+
+        // The browsers which displayed it keep it in their cache so it's not requested anymore, and the image storage
+        // cleanup removes it.
+        long lastUse = System.currentTimeMillis() - 8 * DAY;
+        imageFile.setLastModified(lastUse);
+        ImageSources.getFile(imageFile).setLastModified(lastUse);
+        this.janitor.clean();
+        assertFalse(imageFile.exists());
+        assertTrue(ImageSources.getFile(imageFile).exists());
+
+        // A new visitor gets the cached page, which still displays the removed image.
+        this.handler.handle(this.reference, this.chain);
+
+        assertTrue(imageFile.isFile());
+        assertArrayEquals(IMAGE, Files.readAllBytes(imageFile.toPath()));
+        assertArrayEquals(IMAGE, this.output.toByteArray());
+        verify(this.chain, never()).handleNext(any());
+    }
+
+    @Test
+    void handleMissingImageWithoutSource() throws Exception
+    {
+        this.handler.handle(this.reference, this.chain);
+
+        verify(this.diagramGenerator, never()).writeTo(any(), any());
+        verify(this.chain).handleNext(this.reference);
+    }
+
+    @Test
+    void handleSource() throws Exception
+    {
+        File imageFile = this.temporaryResourceStore.getTemporaryFile(this.reference);
+        File sourceFile = ImageSources.getFile(imageFile);
+        sourceFile.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(sourceFile)) {
+            ImageSources.write(this.key, outputStream);
+        }
+
+        this.handler.handle(new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, sourceFile.getName(),
+            this.wiki), this.chain);
+
+        verify(this.response).sendError(HttpServletResponse.SC_NOT_FOUND);
+        verify(this.chain, never()).handleNext(any());
+    }
+
+    @Test
+    void cleanExpiredSources() throws Exception
+    {
+        File imageFile = this.temporaryResourceStore.getTemporaryFile(this.reference);
+        File sourceFile = ImageSources.getFile(imageFile);
+        TemporaryImageWriter.write(sourceFile, outputStream -> ImageSources.write(this.key, outputStream));
+
+        // The sources are kept as long as the browsers may cache the pages displaying the images.
+        sourceFile.setLastModified(System.currentTimeMillis() - 364 * DAY);
+        this.janitor.clean();
+        assertTrue(sourceFile.exists());
+
+        sourceFile.setLastModified(System.currentTimeMillis() - 366 * DAY);
+        this.janitor.clean();
+        assertFalse(sourceFile.exists());
+        assertNull(ImageSources.read(imageFile));
+    }
+
+    private File writeImage(String name, byte[] content) throws Exception
+    {
+        File file = this.temporaryResourceStore.getTemporaryFile(
+            new TemporaryResourceReference(TemporaryImageWriter.MODULE_ID, name, this.wiki));
+        TemporaryImageWriter.write(file, outputStream -> outputStream.write(content));
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link SharedImageReferences}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class SharedImageReferencesTest
+{
+    // The references are mocked so that the tests only rely on their identity.
+    private final WikiReference wiki = mock(WikiReference.class);
+
+    private final DocumentReference firstDocument = mockDocumentReference();
+
+    private final DocumentReference secondDocument = mockDocumentReference();
+
+    @XWikiTempDir
+    private File permanentDirectory;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    @MockComponent
+    private DocumentReferenceResolver<String> resolver;
+
+    @InjectMockComponents
+    private SharedImageReferences references;
+
+    @BeforeComponent
+    void configure()
+    {
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        when(this.serializer.serialize(this.firstDocument)).thenReturn("wiki:Space.First");
+        when(this.resolver.resolve("wiki:Space.First")).thenReturn(this.firstDocument);
+        when(this.serializer.serialize(this.secondDocument)).thenReturn("wiki:Space.Second");
+        when(this.resolver.resolve("wiki:Space.Second")).thenReturn(this.secondDocument);
+    }
+
+    @Test
+    void release()
+    {
+        this.references.add("shared", this.firstDocument);
+        this.references.add("shared", this.secondDocument);
+        this.references.add("first", this.firstDocument);
+        this.references.add("first", this.firstDocument);
+
+        assertEquals(2, this.references.getReferenceCount(this.wiki, "shared"));
+        assertEquals(1, this.references.getReferenceCount(this.wiki, "first"));
+
+        // The shared image is still used by the second document.
+        assertEquals(Collections.singleton("first"), this.references.release(this.firstDocument));
+        assertEquals(1, this.references.getReferenceCount(this.wiki, "shared"));
+        assertEquals(0, this.references.getReferenceCount(this.wiki, "first"));
+
+        assertEquals(Collections.singleton("shared"), this.references.release(this.secondDocument));
+        assertTrue(this.references.release(this.secondDocument).isEmpty());
+    }
+
+    @Test
+    void releaseAfterRestart() throws Exception
+    {
+        this.references.add("shared", this.firstDocument);
+        this.references.add("shared", this.secondDocument);
+        this.references.add("first", this.firstDocument);
+        this.references.release(this.secondDocument);
+
+        SharedImageReferences restartedReferences = restart();
+
+        assertEquals(1, restartedReferences.getReferenceCount(this.wiki, "shared"));
+        assertEquals(new HashSet<>(Arrays.asList("shared", "first")), restartedReferences.release(this.firstDocument));
+
+        // The released references are not loaded again.
+        assertEquals(0, restart().getReferenceCount(this.wiki, "shared"));
+    }
+
+    @Test
+    void releaseRemovesTheUnusedImagesWhileHoldingTheLock()
+    {
+        this.references.add("shared", this.firstDocument);
+        this.references.add("shared", this.secondDocument);
+        this.references.add("first", this.firstDocument);
+
+        List<String> removedImageIds = new ArrayList<>();
+        this.references.release(this.firstDocument, imageId -> {
+            assertTrue(Thread.holdsLock(this.references));
+            removedImageIds.add(imageId);
+        });
+
+        assertEquals(Collections.singletonList("first"), removedImageIds);
+        assertEquals(1, this.references.getReferenceCount(this.wiki, "shared"));
+    }
+
+    private DocumentReference mockDocumentReference()
+    {
+        DocumentReference documentReference = mock(DocumentReference.class);
+        when(documentReference.getWikiReference()).thenReturn(this.wiki);
+        return documentReference;
+    }
+
+    private SharedImageReferences restart() throws Exception
+    {
+        SharedImageReferences restartedReferences = new SharedImageReferences();
+        ReflectionUtils.setFieldValue(restartedReferences, "environment", this.environment);
+        ReflectionUtils.setFieldValue(restartedReferences, "serializer", this.serializer);
+        ReflectionUtils.setFieldValue(restartedReferences, "resolver", this.resolver);
+        ReflectionUtils.setFieldValue(restartedReferences, "logger", mock(Logger.class));
+        restartedReferences.initialize();
+        return restartedReferences;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.plantuml.internal.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.plantuml.PlantUMLConfiguration;
+import org.xwiki.resource.temporary.TemporaryResourceReference;
+import org.xwiki.resource.temporary.TemporaryResourceStore;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link TemporaryImageWriter}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class TemporaryImageWriterTest
+{
+    private static final byte[] IMAGE = "<svg/>".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] PREVIOUS_IMAGE = "<svg></svg>".getBytes(StandardCharsets.UTF_8);
+
+    @XWikiTempDir
+    private File temporaryDirectory;
+
+    @MockComponent
+    private TemporaryResourceStore temporaryResourceStore;
+
+    @MockComponent
+    private PlantUMLConfiguration configuration;
+
+    @InjectMockComponents
+    private TemporaryImageWriter writer;
+
+    private File imageDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        this.imageDirectory = new File(this.temporaryDirectory, TemporaryImageWriter.MODULE_ID);
+        when(this.temporaryResourceStore.getTemporaryFile(any())).then(invocation -> {
+            TemporaryResourceReference resourceReference = invocation.getArgument(0);
+            return new File(this.imageDirectory, resourceReference.getResourceName());
+        });
+    }
+
+    @Test
+    void writeMovesTheImageInPlaceOnceWritten() throws Exception
+    {
+        File imageFile = new File(this.imageDirectory, "image.svg");
+        TemporaryImageWriter.write(imageFile, outputStream -> outputStream.write(PREVIOUS_IMAGE));
+
+        this.writer.write("image.svg", outputStream -> {
+            outputStream.write(IMAGE);
+            outputStream.flush();
+            // The image being written is not visible until it's complete.
+            assertArrayEquals(PREVIOUS_IMAGE, Files.readAllBytes(imageFile.toPath()));
+        });
+
+        assertArrayEquals(IMAGE, Files.readAllBytes(imageFile.toPath()));
+        assertArrayEquals(new String[] {"image.svg"}, this.imageDirectory.list());
+    }
+
+    @Test
+    void writeFailureKeepsThePreviousImage() throws Exception
+    {
+        File imageFile = new File(this.imageDirectory, "image.svg");
+        TemporaryImageWriter.write(imageFile, outputStream -> outputStream.write(PREVIOUS_IMAGE));
+
+        assertThrows(IOException.class, () -> this.writer.write("image.svg", outputStream -> {
+            outputStream.write(IMAGE, 0, 2);
+            throw new IOException("Generation failed");
+        }));
+
+        assertArrayEquals(PREVIOUS_IMAGE, Files.readAllBytes(imageFile.toPath()));
+        // The partially written image is removed.
+        assertArrayEquals(new String[] {"image.svg"}, this.imageDirectory.list());
+    }
+
+    @Test
+    void writeCompressesTheSVGImages() throws Exception
+    {
+        when(this.configuration.isImageStorageCompressionEnabled()).thenReturn(true);
+
+        this.writer.write("image.svg", outputStream -> outputStream.write(IMAGE));
+        this.writer.write("image.png", outputStream -> outputStream.write(IMAGE));
+
+        File compressedFile = new File(this.imageDirectory, "image.svg" + TemporaryImageWriter.COMPRESSED_SUFFIX);
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(compressedFile.toPath()))) {
+            assertArrayEquals(IMAGE, IOUtils.toByteArray(inputStream));
+        }
+        // PNG images are already compressed.
+        assertFalse(new File(this.imageDirectory, "image.png" + TemporaryImageWriter.COMPRESSED_SUFFIX).exists());
+    }
+
+    @Test
+    void exists() throws Exception
+    {
+        assertFalse(this.writer.exists("image.svg"));
+
+        // An empty image is not valid.
+        File imageFile = new File(this.imageDirectory, "image.svg");
+        TemporaryImageWriter.write(imageFile, outputStream -> { });
+        assertFalse(this.writer.exists("image.svg"));
+
+        TemporaryImageWriter.write(imageFile, outputStream -> outputStream.write(IMAGE));
+        File sourceFile = ImageSources.getFile(imageFile);
+        TemporaryImageWriter.write(sourceFile, outputStream -> outputStream.write(IMAGE));
+        long lastWeek = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7);
+        imageFile.setLastModified(lastWeek);
+        sourceFile.setLastModified(lastWeek);
+
+        assertTrue(this.writer.exists("image.svg"));
+        // The image and its source are marked as used so that the image storage cleanup keeps them.
+        assertTrue(imageFile.lastModified() > lastWeek);
+        assertTrue(sourceFile.lastModified() > lastWeek);
+    }
+
+    @Test
+    void getInputStream() throws Exception
+    {
+        this.writer.write("image.svg", outputStream -> outputStream.write(IMAGE));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream inputStream = this.writer.getInputStream("image.svg")) {
+            IOUtils.copy(inputStream, output);
+        }
+        assertEquals(new String(IMAGE, StandardCharsets.UTF_8), output.toString("UTF-8"));
+        assertNull(this.writer.getInputStream("missing.svg"));
+    }
+}